@@ -16,8 +16,11 @@ import ch.qos.logback.core.util.StatusPrinter;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -54,6 +57,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.ConnectException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.channels.FileLock;
@@ -67,6 +71,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import javax.net.ssl.ManagerFactoryParameters;
+import javax.net.ssl.SSLException;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
@@ -252,20 +257,72 @@ public class App {
     }
 
     public void initClient(final String key, final String secret, final ICallback callback) throws Exception {
-        final String host = Configurations.get(Configurations.ConfigParams.SERVER_IP);
-        final int port = Integer.parseInt(Configurations.get(Configurations.ConfigParams.SERVER_PORT));
+        final URI uri = getRelayUri();
         final boolean useProxy = Boolean.parseBoolean(Configurations.get(Configurations.ConfigParams.USE_PROXY));
-        final URI uri = new URI("wss://" + host + ":" + port + Configurations.WEBSOCKET_PATH);
         int proxPort;
         String proxyHost;
-        String proxyUserName;
-        String proxyPassword;
         Platform.shelloidLogger.warn("Client authenticating Authenticating with " + key);
-        final SslContext sslCtx = SslContext.newClientContext(ShelloidTrustManagerFactory.INSTANCE);
         group = new NioEventLoopGroup();
+        Bootstrap b = getRelayBootstrap(uri, useProxy, key, secret, callback, null, 0, 0);
+        if (useProxy) {
+            try {
+                proxPort = Integer.parseInt(Configurations.get(Configurations.ConfigParams.PROXY_PORT) + "");
+                proxyHost = Configurations.get(Configurations.ConfigParams.PROXY_SERVER) + "";
+                Platform.shelloidLogger.warn("Using proxy server " + proxyHost + ":" + proxPort);
+                Channel ch = DnsResolver.shared().connect(b, proxyHost, proxPort).sync().channel();
+                ch.writeAndFlush(getProxyConnectRequest(uri)).sync();
+            } catch (NumberFormatException ex) {
+                Configurations.put(Configurations.ConfigParams.USE_PROXY, false + "");
+                throw new Exception("Invalid proxy port number: " + Configurations.get(Configurations.ConfigParams.PROXY_PORT) + "\nRetrying without proxy support.");
+            }
+        } else {
+            DnsResolver.shared().connect(b, uri.getHost(), uri.getPort()).sync();
+        }
+    }
+
+    /* Opens a tunnel-only WebSocket (stripe) for the given control connection. Never blocks: it is called from the relay event loop. */
+    public void connectDataLink(final VPTClient owner, final int stripe, final int stripes) {
+        final String key = Configurations.get(Configurations.ConfigParams.CLIENT_KEY);
+        final String secret = Configurations.get(Configurations.ConfigParams.CLIENT_SECRET);
+        try {
+            final URI uri = getRelayUri();
+            final boolean useProxy = Boolean.parseBoolean(Configurations.get(Configurations.ConfigParams.USE_PROXY));
+            Bootstrap b = getRelayBootstrap(uri, useProxy, key, secret, null, owner, stripe, stripes);
+            ChannelFuture f;
+            if (useProxy) {
+                f = DnsResolver.shared().connect(b, Configurations.get(Configurations.ConfigParams.PROXY_SERVER) + "", Integer.parseInt(Configurations.get(Configurations.ConfigParams.PROXY_PORT) + ""));
+            } else {
+                f = DnsResolver.shared().connect(b, uri.getHost(), uri.getPort());
+            }
+            f.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        owner.onDataLinkClosed(stripe, null, future.cause());
+                    } else if (useProxy) {
+                        future.channel().writeAndFlush(getProxyConnectRequest(uri));
+                    }
+                }
+            });
+        } catch (Exception ex) {
+            owner.onDataLinkClosed(stripe, null, ex);
+        }
+    }
+
+    private URI getRelayUri() throws URISyntaxException {
+        final String host = Configurations.get(Configurations.ConfigParams.SERVER_IP);
+        final int port = Integer.parseInt(Configurations.get(Configurations.ConfigParams.SERVER_PORT));
+        return new URI("wss://" + host + ":" + port + Configurations.WEBSOCKET_PATH);
+    }
+
+    private Bootstrap getRelayBootstrap(final URI uri, final boolean useProxy, final String key, final String secret, final ICallback callback,
+            final VPTClient dataLinkOwner, final int stripe, final int stripes) throws SSLException {
+        final SslContext sslCtx = SslContext.newClientContext(ShelloidTrustManagerFactory.INSTANCE);
         Bootstrap b = new Bootstrap();
         b.group(group)
                 .channel(NioSocketChannel.class)
+                .option(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, Configurations.RELAY_WRITE_BUFFER_HIGH_WATER_MARK)
+                .option(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, Configurations.RELAY_WRITE_BUFFER_LOW_WATER_MARK)
                 .handler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) {
@@ -273,31 +330,24 @@ public class App {
                         if (useProxy) {
                             p.addLast(new HttpClientCodec(),
                                     new HttpObjectAggregator(ShelloidUtil.getMaxFrameSize()),
-                                    new ProxyClient(uri, key, secret, callback));
-                        } else {
+                                    new ProxyClient(uri, key, secret, callback, dataLinkOwner, stripe, stripes));
+                        } else if (dataLinkOwner == null) {
                             preparePipeLine(ch, key, secret, callback, uri, sslCtx);
+                        } else {
+                            prepareDataLinkPipeLine(ch, key, secret, dataLinkOwner, stripe, stripes, uri, sslCtx);
                         }
                     }
                 });
-        if (useProxy) {
-            try {
-                proxPort = Integer.parseInt(Configurations.get(Configurations.ConfigParams.PROXY_PORT) + "");
-                proxyHost = Configurations.get(Configurations.ConfigParams.PROXY_SERVER) + "";
-                proxyUserName = Configurations.get(Configurations.ConfigParams.PROXY_USERNAME) + "";
-                proxyPassword = Configurations.get(Configurations.ConfigParams.PROXY_PASSWORD) + "";
-                Platform.shelloidLogger.warn("Using proxy server " + proxyHost + ":" + proxPort);
-                Channel ch = b.connect(proxyHost, proxPort).sync().channel();
-                HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, uri.getHost() + ":" + uri.getPort());
-                request.headers().add("Host", uri.getHost() + ":" + uri.getPort());
-                request.headers().add("Proxy-Authorization", "basic " + new String(Base64.encodeBase64((proxyUserName + ":" + proxyPassword).getBytes())));
-                ch.writeAndFlush(request).sync();
-            } catch (NumberFormatException ex) {
-                Configurations.put(Configurations.ConfigParams.USE_PROXY, false + "");
-                throw new Exception("Invalid proxy port number: " + Configurations.get(Configurations.ConfigParams.PROXY_PORT) + "\nRetrying without proxy support.");
-            }
-        } else {
-            b.connect(uri.getHost(), uri.getPort()).sync();
-        }
+        return b;
+    }
+
+    private HttpRequest getProxyConnectRequest(URI uri) {
+        String proxyUserName = Configurations.get(Configurations.ConfigParams.PROXY_USERNAME) + "";
+        String proxyPassword = Configurations.get(Configurations.ConfigParams.PROXY_PASSWORD) + "";
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, uri.getHost() + ":" + uri.getPort());
+        request.headers().add("Host", uri.getHost() + ":" + uri.getPort());
+        request.headers().add("Proxy-Authorization", "basic " + new String(Base64.encodeBase64((proxyUserName + ":" + proxyPassword).getBytes())));
+        return request;
     }
 
     private Image createImage(String imgpath) throws IOException {
@@ -352,25 +402,44 @@ public class App {
     }
 
     private VPTClient preparePipeLine(Channel ch, String key, String secret, ICallback callback, URI uri, SslContext sslCtx) {
-        HttpHeaders headers = getAuthHeader(key, secret);
+        HttpHeaders headers = getAuthHeader(key, secret, false);
+        final VPTClient clientVar = new VPTClient(WebSocketClientHandshakerFactory.newHandshaker(uri, WebSocketVersion.V13, null, false, headers, ShelloidUtil.getMaxFrameSize()), callback, messenger, this);
+        addRelayHandlers(ch, uri, sslCtx);
+        ch.pipeline().addLast(clientVar);
+        return clientVar;
+    }
+
+    private DataLink prepareDataLinkPipeLine(Channel ch, String key, String secret, VPTClient owner, int stripe, int stripes, URI uri, SslContext sslCtx) {
+        HttpHeaders headers = getAuthHeader(key, secret, true);
+        headers.add(Configurations.DATA_CONNECTION_HEADER, stripe + "/" + stripes);
+        final DataLink link = new DataLink(WebSocketClientHandshakerFactory.newHandshaker(uri, WebSocketVersion.V13, null, false, headers, ShelloidUtil.getMaxFrameSize()), owner, stripe);
+        addRelayHandlers(ch, uri, sslCtx);
+        ch.pipeline().addLast(link);
+        return link;
+    }
+
+    private void addRelayHandlers(Channel ch, URI uri, SslContext sslCtx) {
         ChannelPipeline p = ch.pipeline();
-        final VPTClient clientVar = new VPTClient(WebSocketClientHandshakerFactory.newHandshaker(uri, WebSocketVersion.V13, null, false, headers, ShelloidUtil.getMaxFrameSize()), callback, messenger);
         if (sslCtx != null) {
             p.addLast(sslCtx.newHandler(ch.alloc(), uri.getHost(), uri.getPort()));
         }
         p.addLast("idleStateHandler", new IdleStateHandler(Configurations.PING_SEND_INTERVAL * 2, 0, Configurations.PING_SEND_INTERVAL));
         p.addLast("idleTimeHandler", new ShelloidIdleTimeHandler());
-        p.addLast(new HttpClientCodec(), new HttpObjectAggregator(ShelloidUtil.getMaxFrameSize()), clientVar);
-        return clientVar;
+        p.addLast(new HttpClientCodec(), new HttpObjectAggregator(ShelloidUtil.getMaxFrameSize()));
     }
 
-    private HttpHeaders getAuthHeader(String key, String secret) {
+    private HttpHeaders getAuthHeader(String key, String secret, boolean dataConnection) {
         String version = getVersion();
         final HttpHeaders headers = new DefaultHttpHeaders();
         headers.add(ShelloidHeaderFields.key, key);
         headers.add(ShelloidHeaderFields.secret, secret);
         headers.add(ShelloidHeaderFields.version, version);
-        headers.add(ShelloidHeaderFields.resetLastSendAck, rtmFilesCorrepted);
+        if (dataConnection) {
+            /* a data connection must never reset the reliable message sequence of the control connection */
+            headers.add(ShelloidHeaderFields.resetLastSendAck, false);
+        } else {
+            headers.add(ShelloidHeaderFields.resetLastSendAck, rtmFilesCorrepted);
+        }
         return headers;
     }
 
@@ -506,12 +575,18 @@ public class App {
         private final String key;
         private final String secret;
         private final ICallback callback;
+        private final VPTClient dataLinkOwner;
+        private final int stripe;
+        private final int stripes;
 
-        private ProxyClient(URI uri, String key, String secret, ICallback callback) {
+        private ProxyClient(URI uri, String key, String secret, ICallback callback, VPTClient dataLinkOwner, int stripe, int stripes) {
             this.uri = uri;
             this.callback = callback;
             this.key = key;
             this.secret = secret;
+            this.dataLinkOwner = dataLinkOwner;
+            this.stripe = stripe;
+            this.stripes = stripes;
         }
 
         @Override
@@ -527,11 +602,19 @@ public class App {
                         break;
                     }
                 }
-                VPTClient clientVar = preparePipeLine(ctx.channel(), key, secret, callback, uri, sslCtx);
-                clientVar.handshaker.handshake(ctx.channel());
+                if (dataLinkOwner == null) {
+                    VPTClient clientVar = preparePipeLine(ctx.channel(), key, secret, callback, uri, sslCtx);
+                    clientVar.handshaker.handshake(ctx.channel());
+                } else {
+                    DataLink link = prepareDataLinkPipeLine(ctx.channel(), key, secret, dataLinkOwner, stripe, stripes, uri, sslCtx);
+                    link.handshaker.handshake(ctx.channel());
+                }
             } else {
                 App.showTrayMessage("Proxy authentication Failed.", TrayIcon.MessageType.ERROR);
                 Platform.shelloidLogger.warn("Proxy authentication Failed.");
+                if (dataLinkOwner != null) {
+                    ctx.close();
+                }
             }
         }
 
@@ -543,6 +626,9 @@ public class App {
         @Override
         public void channelInactive(ChannelHandlerContext ctx) {
             Platform.shelloidLogger.warn("Disconnected from Proxy Server");
+            if (dataLinkOwner != null) {
+                dataLinkOwner.onDataLinkClosed(stripe, null, null);
+            }
         }
     }
 }
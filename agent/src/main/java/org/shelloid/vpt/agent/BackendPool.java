@@ -0,0 +1,277 @@
+/*
+ Copyright (c) Shelloid Systems LLP. All rights reserved.
+ The use and distribution terms for this software are covered by the
+ GNU General Public License 3.0 (http://www.gnu.org/copyleft/gpl.html)
+ which can be found in the file LICENSE at the root of this distribution.
+ By using this software in any fashion, you are agreeing to be bound by
+ the terms of this license.
+ You must not remove this notice, or any other, from this software.
+ */
+package org.shelloid.vpt.agent;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOption;
+import io.netty.util.AttributeKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.shelloid.ptcp.PoolSizer;
+import org.shelloid.vpt.agent.util.Configurations;
+import org.shelloid.vpt.agent.util.Platform;
+
+/*
+ * Service-side sockets to the service of a port mapping with "backendpool" in client.tunnelOptions,
+ * connected before a tunnel connection needs one. A new tunnel connection or mux stream takes an
+ * idle socket instead of connecting, and is handed it on the socket's own event loop together with
+ * anything the service sent while the socket was idle, such as a greeting. Sockets spread over
+ * the backends of the service as connections do. PoolSizer decides how
+ * many to keep from the recent arrival rate and the measured connect time. Sockets the service
+ * closes leave the pool as they go; none is kept idle for longer than BACKEND_POOL_MAX_IDLE, as
+ * services tend to drop idle connections of their own. After a failed connect the pool does not
+ * refill for BACKEND_POOL_RETRY_INTERVAL.
+ */
+public class BackendPool {
+
+    /* Set on pooled sockets; they go to the pool's handling until CONNECTION_MAPPING or MUX_LOCAL is set. */
+    static final AttributeKey<Socket> POOLED = AttributeKey.valueOf("BACKEND_POOLED");
+
+    private static final ConcurrentHashMap<Long, BackendPool> pools = new ConcurrentHashMap<Long, BackendPool>();
+
+    private final VPTClient client;
+    private final long portMapId;
+    private final SvcInfo svcInfo;
+    private final PoolSizer sizer;
+    /* Connected and not taken, most recently connected first. */
+    private final ArrayDeque<Socket> idle = new ArrayDeque<Socket>();
+    private int connecting;
+    private long failedAt;
+    private boolean removed;
+
+    /* A pooled socket. held and lost are only touched on the socket's event loop. */
+    public static class Socket {
+        final BackendPool pool;
+        Channel channel;
+        long connectedAt;
+        final List<ByteBuf> held = new ArrayList<ByteBuf>();
+        int heldBytes;
+        /* The pool saw the socket go inactive. */
+        boolean lost;
+
+        Socket(BackendPool pool) {
+            this.pool = pool;
+        }
+
+        public Channel getChannel() {
+            return channel;
+        }
+
+        /* Hands the socket over to owner, set as key, on its event loop. */
+        public <T> void claim(final AttributeKey<T> key, final T owner) {
+            SvcInfo.Backend backend = channel.attr(SvcInfo.BACKEND).get();
+            if (backend != null) {
+                backend.opened();
+            }
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    channel.attr(key).set(owner);
+                    if (lost) {
+                        channel.pipeline().fireChannelInactive();
+                    } else if (channel.isActive()) {
+                        channel.pipeline().fireChannelActive();
+                        for (ByteBuf buf : held) {
+                            channel.pipeline().fireChannelRead(buf);
+                        }
+                        if (!held.isEmpty()) {
+                            channel.pipeline().fireChannelReadComplete();
+                        }
+                    } else {
+                        /* Closing: its channelInactive is still to come and goes to owner. */
+                        for (ByteBuf buf : held) {
+                            buf.release();
+                        }
+                    }
+                    held.clear();
+                }
+            });
+        }
+
+        void onRead(ByteBuf buf) {
+            heldBytes += buf.readableBytes();
+            held.add(buf);
+            if (heldBytes > Configurations.BACKEND_POOL_MAX_HELD) {
+                Platform.shelloidLogger.warn("Service of port mapping " + pool.portMapId + " keeps sending on an idle socket, closing " + channel);
+                channel.close();
+            }
+        }
+
+        void onInactive() {
+            lost = true;
+            for (ByteBuf buf : held) {
+                buf.release();
+            }
+            held.clear();
+            pool.lost(this);
+        }
+    }
+
+    private BackendPool(VPTClient client, long portMapId, SvcInfo svcInfo) {
+        this.client = client;
+        this.portMapId = portMapId;
+        this.svcInfo = svcInfo;
+        this.sizer = new PoolSizer(Configurations.BACKEND_POOL_MAX, Configurations.SESSION_POOL_RATE_WINDOW,
+                Configurations.CONN_IDLE_THRESHOLD, System.currentTimeMillis());
+    }
+
+    /* The pool of a port mapping, created and filled if there is none yet; null without a service. */
+    public static BackendPool forPortMap(VPTClient client, long portMapId) {
+        BackendPool pool = pools.get(portMapId);
+        if (pool == null) {
+            SvcInfo svcInfo = VPTClient.getSvcInfo(portMapId);
+            if (svcInfo == null) {
+                return null;
+            }
+            BackendPool created = new BackendPool(client, portMapId, svcInfo);
+            pool = pools.putIfAbsent(portMapId, created);
+            if (pool == null) {
+                pool = created;
+                pool.maintain(System.currentTimeMillis());
+            }
+        }
+        return pool;
+    }
+
+    /* Drops the pool of a port mapping, or all of them for null, closing their idle sockets. */
+    public static void remove(Long portMapId) {
+        for (BackendPool pool : pools.values()) {
+            if (portMapId == null || portMapId.equals(pool.portMapId)) {
+                pools.remove(pool.portMapId, pool);
+                pool.clear();
+            }
+        }
+    }
+
+    /* Drops expired sockets and resizes every pool to its current target; run from the cleanup timer. */
+    static void maintainAll(long now) {
+        for (BackendPool pool : pools.values()) {
+            pool.maintain(now);
+        }
+    }
+
+    /* The pooled socket of ch if it has not been claimed yet, else null. */
+    static Socket unclaimed(Channel ch) {
+        if (ch.attr(LocalLink.CONNECTION_MAPPING).get() != null || ch.attr(LocalLink.MUX_LOCAL).get() != null) {
+            return null;
+        }
+        return ch.attr(POOLED).get();
+    }
+
+    /* An idle connected socket for a new tunnel connection, or null to connect one as usual. */
+    public synchronized Socket take() {
+        long now = System.currentTimeMillis();
+        sizer.arrival(now);
+        Socket socket;
+        do {
+            socket = idle.poll();
+        } while (socket != null && !socket.channel.isActive());
+        refill(now);
+        return socket;
+    }
+
+    private synchronized void connected(Socket socket, SvcInfo.Backend backend, boolean success, long millis) {
+        connecting--;
+        long now = System.currentTimeMillis();
+        if (!success) {
+            failedAt = now;
+            Platform.shelloidLogger.warn("Can't pre-connect " + backend + " for port mapping " + portMapId);
+            backend.failed();
+            return;
+        }
+        backend.succeeded();
+        sizer.handshake(millis);
+        if (removed || !socket.channel.isActive()) {
+            socket.channel.close();
+            return;
+        }
+        socket.connectedAt = now;
+        idle.addFirst(socket);
+        trim(now);
+    }
+
+    private synchronized void lost(Socket socket) {
+        idle.remove(socket);
+    }
+
+    private void maintain(long now) {
+        List<Socket> expired = new ArrayList<Socket>();
+        synchronized (this) {
+            if (removed) {
+                return;
+            }
+            for (Iterator<Socket> i = idle.iterator(); i.hasNext();) {
+                Socket socket = i.next();
+                if (!socket.channel.isActive() || now - socket.connectedAt > Configurations.BACKEND_POOL_MAX_IDLE) {
+                    i.remove();
+                    expired.add(socket);
+                }
+            }
+            trim(now);
+            refill(now);
+        }
+        for (Socket socket : expired) {
+            socket.channel.close();
+        }
+    }
+
+    private void trim(long now) {
+        while (idle.size() + connecting > sizer.target(now) && !idle.isEmpty()) {
+            Socket socket = idle.pollLast();
+            Platform.shelloidLogger.debug("Closing surplus backend socket of port mapping " + portMapId);
+            socket.channel.close();
+        }
+    }
+
+    private void refill(long now) {
+        while (!removed && now - failedAt >= Configurations.BACKEND_POOL_RETRY_INTERVAL
+                && idle.size() + connecting < sizer.target(now)) {
+            connect();
+        }
+    }
+
+    private void connect() {
+        connecting++;
+        final long start = System.currentTimeMillis();
+        final Socket socket = new Socket(this);
+        final SvcInfo.Backend backend = svcInfo.pick();
+        Bootstrap b = new LocalLink(client).getClientBootstrap(LocalLink.nextEventLoop());
+        b.option(ChannelOption.SO_KEEPALIVE, true);
+        b.attr(POOLED, socket);
+        b.attr(SvcInfo.BACKEND, backend);
+        ChannelFuture cf = DnsResolver.shared().connect(b, backend.getHost(), backend.getPort());
+        socket.channel = cf.channel();
+        cf.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                connected(socket, backend, future.isSuccess(), System.currentTimeMillis() - start);
+            }
+        });
+    }
+
+    private void clear() {
+        List<Socket> all;
+        synchronized (this) {
+            removed = true;
+            all = new ArrayList<Socket>(idle);
+            idle.clear();
+        }
+        for (Socket socket : all) {
+            socket.channel.close();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ Copyright (c) Shelloid Systems LLP. All rights reserved.
+ The use and distribution terms for this software are covered by the
+ GNU General Public License 3.0 (http://www.gnu.org/copyleft/gpl.html)
+ which can be found in the file LICENSE at the root of this distribution.
+ By using this software in any fashion, you are agreeing to be bound by
+ the terms of this license.
+ You must not remove this notice, or any other, from this software.
+ */
+package org.shelloid.vpt.agent;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.CharsetUtil;
+import org.shelloid.vpt.agent.util.Platform;
+
+/*
+ * Secondary WebSocket to the relay that carries only TUNNEL traffic, so that
+ * reliable control messages on the VPTClient connection never queue behind
+ * bulk tunnel data. There is one DataLink per stripe; each fails and
+ * reconnects independently of the control link and of the other stripes.
+ */
+public class DataLink extends SimpleChannelInboundHandler<Object> {
+
+    public final WebSocketClientHandshaker handshaker;
+    private final VPTClient owner;
+    private final int stripe;
+    private ChannelPromise handshakeFuture;
+    private volatile Channel channel;
+
+    public DataLink(WebSocketClientHandshaker handshaker, VPTClient owner, int stripe) {
+        this.handshaker = handshaker;
+        this.owner = owner;
+        this.stripe = stripe;
+    }
+
+    public int getStripe() {
+        return stripe;
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    public boolean isReady() {
+        Channel ch = channel;
+        return ch != null && ch.isActive();
+    }
+
+    public void close() {
+        Channel ch = channel;
+        if (ch != null) {
+            ch.close();
+        }
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        handshakeFuture = ctx.newPromise();
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        handshaker.handshake(ctx.channel());
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        Platform.shelloidLogger.warn("Data connection " + stripe + " closed: " + ctx.channel());
+        channel = null;
+        owner.onDataLinkClosed(stripe, this, null);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        owner.onRelayWritabilityChanged();
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        owner.flushTunnelBatches(ctx.channel());
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
+        Channel ch = ctx.channel();
+        if (!handshaker.isHandshakeComplete()) {
+            handshaker.finishHandshake(ch, (FullHttpResponse) msg);
+            handshakeFuture.setSuccess();
+            Platform.shelloidLogger.warn("Data connection " + stripe + " established using " + ch);
+            channel = ch;
+            owner.onDataLinkReady(this);
+            return;
+        }
+
+        if (msg instanceof FullHttpResponse) {
+            FullHttpResponse response = (FullHttpResponse) msg;
+            throw new IllegalStateException(
+                    "Unexpected FullHttpResponse (getStatus=" + response.getStatus()
+                    + ", content=" + response.content().toString(CharsetUtil.UTF_8) + ')');
+        }
+
+        WebSocketFrame frame = (WebSocketFrame) msg;
+        if (frame instanceof BinaryWebSocketFrame) {
+            ByteBuf b = frame.content();
+            byte[] bytes = new byte[b.readableBytes()];
+            b.getBytes(b.readerIndex(), bytes);
+            owner.handleDataLinkMsg(bytes, ch);
+        } else if (frame instanceof PingWebSocketFrame) {
+            ch.writeAndFlush(new PongWebSocketFrame());
+        } else if (frame instanceof PongWebSocketFrame) {
+            Platform.shelloidLogger.info("Data connection received pong");
+        } else if (frame instanceof CloseWebSocketFrame) {
+            Platform.shelloidLogger.info("Data connection received closing");
+            ch.close();
+        } else {
+            throw new Exception("Frame type not supported on data connection: " + msg);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        Platform.shelloidLogger.error("Closing data connection because of an exception", cause);
+        if (!handshakeFuture.isDone()) {
+            handshakeFuture.setFailure(cause);
+        }
+        ctx.close();
+    }
+}
@@ -0,0 +1,575 @@
+/*
+ Copyright (c) Shelloid Systems LLP. All rights reserved.
+ The use and distribution terms for this software are covered by the
+ GNU General Public License 3.0 (http://www.gnu.org/copyleft/gpl.html)
+ which can be found in the file LICENSE at the root of this distribution.
+ By using this software in any fashion, you are agreeing to be bound by
+ the terms of this license.
+ You must not remove this notice, or any other, from this software.
+ */
+package org.shelloid.vpt.agent;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.shelloid.vpt.agent.util.Configurations;
+import org.shelloid.vpt.agent.util.Platform;
+
+/*
+ * Resolves the host names of services and of the relay without blocking the caller, which is
+ * mostly an event loop. Addresses are cached for the TTL of their DNS records and names that do
+ * not exist for the negative TTL of their zone. A name looked up again in the last quarter of its
+ * TTL is looked up anew in the background while the cached addresses keep being served, and
+ * lookups of the same name in flight share one query. Queries go over UDP, each from a port of
+ * its own, to the servers of client.dnsServers, else those of /etc/resolv.conf, one after the
+ * other. What they cannot answer, and everything where no server is known, goes to the JDK
+ * resolver on a thread of its own, which also covers the hosts file. When a lookup fails outright, the last addresses of the name are
+ * served for DNS_NEGATIVE_TTL more rather than none.
+ */
+public class DnsResolver {
+
+    static final int TYPE_A = 1;
+    static final int TYPE_AAAA = 28;
+    static final int TYPE_CNAME = 5;
+    static final int TYPE_SOA = 6;
+    static final int RCODE_NXDOMAIN = 3;
+
+    private static volatile DnsResolver shared;
+
+    private static final ExecutorService systemLookups = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "dns-lookup");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final EventLoop loop;
+    private final List<InetSocketAddress> servers;
+    private final boolean systemFallback;
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+    /* Only touched on loop: lookups by name. */
+    private final Map<String, Lookup> lookups = new HashMap<String, Lookup>();
+    private final Random random = new SecureRandom();
+
+    /* The addresses of a name, or none if it does not exist. */
+    private static class Entry {
+        final InetAddress[] addresses;
+        final long expiresAt;
+        final long refreshAt;
+        final AtomicInteger next = new AtomicInteger();
+
+        Entry(InetAddress[] addresses, long now, long ttl) {
+            this.addresses = addresses;
+            this.expiresAt = now + ttl;
+            this.refreshAt = now + ttl - ttl / 4;
+        }
+
+        /* The addresses in turn. */
+        InetAddress pick() {
+            return addresses[(next.getAndIncrement() & Integer.MAX_VALUE) % addresses.length];
+        }
+    }
+
+    private static class Lookup {
+        final String name;
+        final List<Promise<InetAddress>> waiters = new ArrayList<Promise<InetAddress>>();
+        int server;
+        int type = TYPE_A;
+        int id;
+        /* The socket of the query in flight, if any. */
+        Channel channel;
+        ScheduledFuture<?> timeout;
+        boolean nonExistent;
+        long negativeTtl = Configurations.DNS_NEGATIVE_TTL;
+
+        Lookup(String name) {
+            this.name = name;
+        }
+    }
+
+    /* What a DNS response says; null from parse if it is not the answer to the query. */
+    static class Answer {
+        int rcode;
+        boolean truncated;
+        final List<InetAddress> addresses = new ArrayList<InetAddress>();
+        /* Seconds: of the address records, and from the SOA record of a negative answer, or -1. */
+        long ttl = -1;
+        long negativeTtl = -1;
+    }
+
+    /* servers: empty to leave every lookup to the JDK resolver; systemFallback: whether it takes those the servers fail. */
+    public DnsResolver(EventLoop loop, List<InetSocketAddress> servers, boolean systemFallback) {
+        this.loop = loop;
+        this.servers = servers;
+        this.systemFallback = systemFallback || servers.isEmpty();
+    }
+
+    /* The resolver of the agent. */
+    public static DnsResolver shared() {
+        DnsResolver resolver = shared;
+        if (resolver == null) {
+            synchronized (DnsResolver.class) {
+                resolver = shared;
+                if (resolver == null) {
+                    List<InetSocketAddress> servers = configuredServers();
+                    Platform.shelloidLogger.info("Resolving host names with " + (servers.isEmpty() ? "the system resolver" : servers.toString()));
+                    resolver = shared = new DnsResolver(LocalLink.nextEventLoop(), servers, true);
+                }
+            }
+        }
+        return resolver;
+    }
+
+    private static List<InetSocketAddress> configuredServers() {
+        List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+        String configured = Configurations.get(Configurations.ConfigParams.DNS_SERVERS);
+        if (configured != null && configured.trim().length() > 0) {
+            for (String entry : configured.split(",")) {
+                entry = entry.trim();
+                int colon = entry.lastIndexOf(':');
+                boolean withPort = colon > 0 && entry.indexOf(':') == colon;
+                InetAddress address = literal(withPort ? entry.substring(0, colon) : entry);
+                try {
+                    if (address == null) {
+                        throw new IllegalArgumentException(entry);
+                    }
+                    servers.add(new InetSocketAddress(address, withPort ? Integer.parseInt(entry.substring(colon + 1)) : 53));
+                } catch (IllegalArgumentException ex) {
+                    Platform.shelloidLogger.warn("Ignoring DNS server '" + entry + "', not an IP address[:port]");
+                }
+            }
+            return servers;
+        }
+        File resolvConf = new File("/etc/resolv.conf");
+        if (resolvConf.canRead()) {
+            try {
+                BufferedReader in = new BufferedReader(new FileReader(resolvConf));
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        String[] words = line.trim().split("\\s+");
+                        if (words.length >= 2 && words[0].equals("nameserver") && literal(words[1]) != null) {
+                            servers.add(new InetSocketAddress(literal(words[1]), 53));
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException ex) {
+                Platform.shelloidLogger.warn("Can't read /etc/resolv.conf: " + ex.getMessage());
+            }
+        }
+        return servers;
+    }
+
+    /* host as an address if it is an IP address literal, else null. */
+    static InetAddress literal(String host) {
+        boolean dotted = true;
+        for (int i = 0; i < host.length() && dotted; i++) {
+            char c = host.charAt(i);
+            dotted = (c >= '0' && c <= '9') || c == '.';
+        }
+        if (host.length() == 0 || (!dotted && host.indexOf(':') < 0)) {
+            return null;
+        }
+        try {
+            return InetAddress.getByName(host);
+        } catch (UnknownHostException ex) {
+            return null;
+        }
+    }
+
+    /* Connects a channel of b to host:port once host is resolved. As with b.connect, the channel is there at once. */
+    public ChannelFuture connect(Bootstrap b, String host, final int port) {
+        final ChannelFuture registered = b.register();
+        final Channel ch = registered.channel();
+        final ChannelPromise promise = ch.newPromise();
+        resolve(host).addListener(new FutureListener<InetAddress>() {
+            @Override
+            public void operationComplete(final Future<InetAddress> resolved) {
+                registered.addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        if (!future.isSuccess()) {
+                            promise.setFailure(future.cause());
+                        } else if (!resolved.isSuccess()) {
+                            ch.close();
+                            promise.setFailure(resolved.cause());
+                        } else {
+                            ch.connect(new InetSocketAddress(resolved.getNow(), port), promise);
+                        }
+                    }
+                });
+            }
+        });
+        return promise;
+    }
+
+    /* An address of host. */
+    public Future<InetAddress> resolve(final String host) {
+        InetAddress address = literal(host);
+        if (address != null) {
+            return loop.newSucceededFuture(address);
+        }
+        String lower = host.toLowerCase(Locale.ENGLISH);
+        final String name = lower.endsWith(".") ? lower.substring(0, lower.length() - 1) : lower;
+        if (!validName(name)) {
+            return loop.newFailedFuture(new UnknownHostException(host));
+        }
+        long now = System.currentTimeMillis();
+        Entry entry = cache.get(name);
+        if (entry != null && now < entry.expiresAt) {
+            if (now >= entry.refreshAt) {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        lookup(name, null);
+                    }
+                });
+            }
+            if (entry.addresses == null) {
+                return loop.newFailedFuture(new UnknownHostException(host));
+            }
+            return loop.newSucceededFuture(entry.pick());
+        }
+        final Promise<InetAddress> promise = loop.newPromise();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                lookup(name, promise);
+            }
+        });
+        return promise;
+    }
+
+    private void execute(Runnable task) {
+        if (loop.inEventLoop()) {
+            task.run();
+        } else {
+            loop.execute(task);
+        }
+    }
+
+    private void lookup(String name, Promise<InetAddress> waiter) {
+        Lookup lookup = lookups.get(name);
+        if (lookup == null) {
+            Entry entry = cache.get(name);
+            if (waiter != null && entry != null && System.currentTimeMillis() < entry.refreshAt) {
+                /* Answered while this waited for the loop. */
+                complete(waiter, name, entry);
+                return;
+            }
+            lookup = new Lookup(name);
+            lookups.put(name, lookup);
+            if (servers.isEmpty()) {
+                systemLookup(lookup);
+            } else {
+                query(lookup);
+            }
+        }
+        if (waiter != null) {
+            lookup.waiters.add(waiter);
+        }
+    }
+
+    private void query(final Lookup lookup) {
+        /* Encoded here, the name being valid; the listener only puts in the ID. */
+        final byte[] query = query(0, lookup.name, lookup.type);
+        /* Every query goes out of a socket of its own, on an ephemeral port the system picks at
+         * random, so a spoofed answer has to guess the port as well as the 16-bit ID. */
+        ChannelFuture bound = new Bootstrap().group(loop).channel(NioDatagramChannel.class)
+                .handler(new SimpleChannelInboundHandler<DatagramPacket>() {
+                    @Override
+                    protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+                        onResponse(lookup, ctx.channel(), packet);
+                    }
+                }).bind(0);
+        lookup.channel = bound.channel();
+        bound.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                final Channel ch = future.channel();
+                if (!future.isSuccess()) {
+                    Platform.shelloidLogger.warn("Can't open a DNS socket: " + future.cause().getMessage());
+                    endQuery(lookup);
+                    failed(lookup);
+                    return;
+                }
+                lookup.id = random.nextInt(0x10000);
+                query[0] = (byte) (lookup.id >> 8);
+                query[1] = (byte) lookup.id;
+                ch.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(query), servers.get(lookup.server)));
+                lookup.timeout = loop.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (lookup.channel == ch) {
+                            endQuery(lookup);
+                            nextServer(lookup);
+                        }
+                    }
+                }, Configurations.DNS_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /* Closes the socket of the query of lookup in flight. */
+    private void endQuery(Lookup lookup) {
+        lookup.channel.close();
+        lookup.channel = null;
+    }
+
+    private void onResponse(Lookup lookup, Channel ch, DatagramPacket packet) {
+        if (lookup.channel != ch || !servers.get(lookup.server).equals(packet.sender())) {
+            return;
+        }
+        ByteBuf content = packet.content();
+        byte[] message = new byte[content.readableBytes()];
+        content.getBytes(content.readerIndex(), message);
+        Answer answer = parse(message, message.length, lookup.id, lookup.name, lookup.type);
+        if (answer == null) {
+            /* Not for this query after all: the timeout stays. */
+            return;
+        }
+        endQuery(lookup);
+        lookup.timeout.cancel(false);
+        if (!answer.addresses.isEmpty()) {
+            long ttl = Math.max(Configurations.DNS_MIN_TTL, Math.min(answer.ttl * 1000, Configurations.DNS_MAX_TTL));
+            lookups.remove(lookup.name);
+            store(lookup, answer.addresses.toArray(new InetAddress[answer.addresses.size()]), ttl);
+        } else if (answer.truncated || (answer.rcode != 0 && answer.rcode != RCODE_NXDOMAIN)) {
+            nextServer(lookup);
+        } else if (answer.rcode == 0 && lookup.type == TYPE_A) {
+            /* The name exists without IPv4 addresses. */
+            lookup.type = TYPE_AAAA;
+            query(lookup);
+        } else {
+            lookup.nonExistent = true;
+            if (answer.negativeTtl >= 0) {
+                lookup.negativeTtl = Math.max(Configurations.DNS_MIN_TTL, Math.min(answer.negativeTtl * 1000, Configurations.DNS_MAX_NEGATIVE_TTL));
+            }
+            failed(lookup);
+        }
+    }
+
+    private void nextServer(Lookup lookup) {
+        if (++lookup.server < servers.size()) {
+            lookup.type = TYPE_A;
+            query(lookup);
+        } else {
+            failed(lookup);
+        }
+    }
+
+    /* The servers did not come up with addresses. */
+    private void failed(Lookup lookup) {
+        if (systemFallback) {
+            systemLookup(lookup);
+        } else {
+            lookups.remove(lookup.name);
+            store(lookup, null, lookup.negativeTtl);
+        }
+    }
+
+    private void systemLookup(final Lookup lookup) {
+        systemLookups.execute(new Runnable() {
+            @Override
+            public void run() {
+                InetAddress[] found = null;
+                try {
+                    found = InetAddress.getAllByName(lookup.name);
+                } catch (UnknownHostException ex) {
+                    Platform.shelloidLogger.debug("Can't resolve " + lookup.name + ": " + ex.getMessage());
+                }
+                final InetAddress[] addresses = found;
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        lookups.remove(lookup.name);
+                        store(lookup, addresses, (addresses == null) ? lookup.negativeTtl : Configurations.DNS_SYSTEM_TTL);
+                    }
+                });
+            }
+        });
+    }
+
+    private void store(Lookup lookup, InetAddress[] addresses, long ttl) {
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(addresses, now, ttl);
+        Entry last = cache.get(lookup.name);
+        if (addresses == null && !lookup.nonExistent && last != null && last.addresses != null) {
+            Platform.shelloidLogger.warn("Can't resolve " + lookup.name + ", staying with its last addresses");
+            entry = new Entry(last.addresses, now, Configurations.DNS_NEGATIVE_TTL);
+        }
+        cache.put(lookup.name, entry);
+        for (Promise<InetAddress> waiter : lookup.waiters) {
+            complete(waiter, lookup.name, entry);
+        }
+    }
+
+    private static void complete(Promise<InetAddress> waiter, String name, Entry entry) {
+        if (entry.addresses == null) {
+            waiter.setFailure(new UnknownHostException(name));
+        } else {
+            waiter.setSuccess(entry.pick());
+        }
+    }
+
+    /* Whether name can go into a query: ASCII labels of 1 to 63 characters, 253 at most in all. */
+    static boolean validName(String name) {
+        if (name.length() == 0 || name.length() > 253) {
+            return false;
+        }
+        int label = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '.') {
+                if (label == 0) {
+                    return false;
+                }
+                label = 0;
+            } else if (c >= 0x80 || ++label > 63) {
+                return false;
+            }
+        }
+        return label > 0;
+    }
+
+    /* A recursive query for the records of type of name, which must be valid. */
+    static byte[] query(int id, String name, int type) {
+        if (!validName(name)) {
+            throw new IllegalArgumentException("Bad host name: " + name);
+        }
+        ByteBuffer b = ByteBuffer.allocate(12 + name.length() + 2 + 4);
+        b.putShort((short) id).putShort((short) 0x0100).putShort((short) 1).putShort((short) 0).putInt(0);
+        for (String label : name.split("\\.")) {
+            b.put((byte) label.length());
+            for (int i = 0; i < label.length(); i++) {
+                b.put((byte) label.charAt(i));
+            }
+        }
+        b.put((byte) 0).putShort((short) type).putShort((short) 1);
+        byte[] query = new byte[b.position()];
+        System.arraycopy(b.array(), 0, query, 0, query.length);
+        return query;
+    }
+
+    static Answer parse(byte[] message, int len, int id, String name, int type) {
+        ByteBuffer b = ByteBuffer.wrap(message, 0, len);
+        try {
+            int flags = b.getShort(2) & 0xffff;
+            if ((b.getShort(0) & 0xffff) != id || (flags & 0x8000) == 0) {
+                return null;
+            }
+            Answer answer = new Answer();
+            answer.rcode = flags & 0xf;
+            answer.truncated = (flags & 0x0200) != 0;
+            int questions = b.getShort(4) & 0xffff;
+            int answers = b.getShort(6) & 0xffff;
+            int authorities = b.getShort(8) & 0xffff;
+            int pos = 12;
+            for (int i = 0; i < questions; i++) {
+                StringBuilder qname = new StringBuilder();
+                pos = readName(b, pos, qname) + 4;
+                if (!qname.toString().equalsIgnoreCase(name)) {
+                    return null;
+                }
+            }
+            for (int i = 0; i < answers + authorities; i++) {
+                pos = readName(b, pos, null);
+                int rtype = b.getShort(pos) & 0xffff;
+                long ttl = b.getInt(pos + 4) & 0xffffffffL;
+                int rdlength = b.getShort(pos + 8) & 0xffff;
+                pos += 10;
+                if (pos + rdlength > len) {
+                    return null;
+                }
+                if (i < answers && rtype == type && rdlength == ((type == TYPE_A) ? 4 : 16)) {
+                    byte[] address = new byte[rdlength];
+                    System.arraycopy(message, pos, address, 0, rdlength);
+                    answer.addresses.add(InetAddress.getByAddress(name, address));
+                    answer.ttl = (answer.ttl < 0) ? ttl : Math.min(answer.ttl, ttl);
+                } else if (i < answers && rtype == TYPE_CNAME) {
+                    answer.ttl = (answer.ttl < 0) ? ttl : Math.min(answer.ttl, ttl);
+                } else if (i >= answers && rtype == TYPE_SOA) {
+                    int p = readName(b, readName(b, pos, null), null);
+                    long minimum = b.getInt(p + 16) & 0xffffffffL;
+                    answer.negativeTtl = Math.min(ttl, minimum);
+                }
+                pos += rdlength;
+            }
+            return answer;
+        } catch (IndexOutOfBoundsException ex) {
+            return null;
+        } catch (UnknownHostException ex) {
+            return null;
+        }
+    }
+
+    /* Reads the name at pos into out if not null; returns where what follows it starts. Labels
+     * move forward through the message, so only compression pointers can go round in a loop. */
+    private static int readName(ByteBuffer b, int pos, StringBuilder out) {
+        int end = -1;
+        int jumps = 0;
+        while (true) {
+            int len = b.get(pos) & 0xff;
+            if (len == 0) {
+                return (end < 0) ? pos + 1 : end;
+            }
+            if ((len & 0xc0) == 0xc0) {
+                if (++jumps > 64) {
+                    throw new IndexOutOfBoundsException("Name compression loop");
+                }
+                if (end < 0) {
+                    end = pos + 2;
+                }
+                pos = ((len & 0x3f) << 8) | (b.get(pos + 1) & 0xff);
+                continue;
+            }
+            if (out != null) {
+                if (out.length() > 0) {
+                    out.append('.');
+                }
+                for (int i = 1; i <= len; i++) {
+                    out.append((char) (b.get(pos + i) & 0xff));
+                }
+            }
+            pos += len + 1;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ Copyright (c) Shelloid Systems LLP. All rights reserved.
+ The use and distribution terms for this software are covered by the
+ GNU General Public License 3.0 (http://www.gnu.org/copyleft/gpl.html)
+ which can be found in the file LICENSE at the root of this distribution.
+ By using this software in any fashion, you are agreeing to be bound by
+ the terms of this license.
+ You must not remove this notice, or any other, from this software.
+ */
+package org.shelloid.vpt.agent;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.shelloid.vpt.agent.common.ConnectionInfo;
+import org.shelloid.vpt.agent.util.Configurations;
+import org.shelloid.vpt.agent.util.Platform;
+
+/*
+ * Closes tunnel connections nothing has gone through for CONN_IDLE_THRESHOLD. Every connection
+ * has one timeout on a timer wheel at its idle deadline. Traffic only moves lastRcvdTs; a timeout
+ * that finds the connection used since is set again for the rest of its new deadline. So the
+ * cost goes with deadlines reached, not with the number of connections. Idle connections are
+ * closed on their own event loop.
+ */
+public class IdleReaper {
+
+    private static final HashedWheelTimer wheel = new HashedWheelTimer(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "idle-reaper");
+            t.setDaemon(true);
+            return t;
+        }
+    }, Configurations.IDLE_WHEEL_TICK, TimeUnit.MILLISECONDS, Configurations.IDLE_WHEEL_SIZE);
+
+    /* Starts the idle deadline of a connection just put in agentConnMap. */
+    public static void watch(String connId, ConnectionInfo info) {
+        schedule(connId, info, Configurations.CONN_IDLE_THRESHOLD);
+    }
+
+    /* Stops it, for a connection leaving agentConnMap. */
+    public static void cancel(ConnectionInfo info) {
+        Timeout timeout = info.getIdleTimeout();
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /* Runs task on the wheel every period ms; it must be short and must not block. */
+    static void every(final long period, final Runnable task) {
+        wheel.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    Platform.shelloidLogger.error("Housekeeping failed", ex);
+                } finally {
+                    wheel.newTimeout(this, period, TimeUnit.MILLISECONDS);
+                }
+            }
+        }, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static void schedule(final String connId, final ConnectionInfo info, long delay) {
+        info.setIdleTimeout(wheel.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) {
+                if (!stillIdle(connId, info)) {
+                    return;
+                }
+                info.getEventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (stillIdle(connId, info)) {
+                            expire(connId, info);
+                        }
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS));
+    }
+
+    /* True if the connection is due; false if it is gone or was used since, in which case its deadline is set again. */
+    private static boolean stillIdle(String connId, ConnectionInfo info) {
+        if (VPTClient.agentConnMap.get(connId) != info) {
+            return false;
+        }
+        long idle = System.currentTimeMillis() - info.getLastRcvdTs();
+        if (idle < Configurations.CONN_IDLE_THRESHOLD) {
+            schedule(connId, info, Configurations.CONN_IDLE_THRESHOLD - idle);
+            return false;
+        }
+        return true;
+    }
+
+    private static void expire(String connId, ConnectionInfo info) {
+        Platform.shelloidLogger.warn("ConnInfo timeout - clearing connInfo " + connId + ": lastRcvTs: " + info.getLastRcvdTs() + ". Idle for: " + (System.currentTimeMillis() - info.getLastRcvdTs()));
+        if (info.getPtcp() != null) {
+            info.getPtcp().close(true);
+        }
+        if (info.getChannel() != null) {
+            info.getChannel().close();
+        }
+        Platform.shelloidLogger.info("Idle: removing from agentConnMap: " + connId);
+        VPTClient.removeConnection(connId);
+    }
+}
@@ -10,18 +10,21 @@
 package org.shelloid.vpt.agent;
 
 import org.shelloid.common.ShelloidUtil;
+import org.shelloid.ptcp.ConfinedPseudoTcp;
 import org.shelloid.ptcp.HelperFunctions;
+import org.shelloid.ptcp.IOwner;
 import org.shelloid.ptcp.IPseudoTcpNotify;
 import static org.shelloid.ptcp.NetworkConstants.*;
 import org.shelloid.ptcp.PseudoTcp;
 import static org.shelloid.vpt.agent.VPTClient.agentConnMap;
 import org.shelloid.vpt.agent.common.ConnectionInfo;
 import org.shelloid.vpt.agent.common.PortMapInfo;
+import org.shelloid.vpt.agent.util.Configurations;
 import org.shelloid.vpt.agent.util.Platform;
+import org.shelloid.vpt.agent.util.TunnelMemory;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
@@ -29,6 +32,7 @@ import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
@@ -38,10 +42,13 @@ import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.util.AttributeKey;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /* @author Harikrishnan */
 public class LocalLink {
@@ -50,20 +57,108 @@ public class LocalLink {
     private final VPTClient client;
     private final ShelloidUtil sutils;
     public static final AttributeKey<ConnectionInfo> CONNECTION_MAPPING = AttributeKey.valueOf("CONNECTION_MAPPING");
+    /* Set instead of CONNECTION_MAPPING on local sockets carried by a stream of a MuxSession. */
+    public static final AttributeKey<MuxSession.Local> MUX_LOCAL = AttributeKey.valueOf("MUX_LOCAL");
+    /* Event loops owning the local sockets - and with them the PTCP state - of all tunnel connections. */
+    private static final EventLoopGroup tunnelGroup = new NioEventLoopGroup();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                tunnelGroup.shutdownGracefully().awaitUninterruptibly(1000 * 60 * 5);
+            }
+        });
+    }
 
     public LocalLink(VPTClient cl) {
         client = cl;
         sutils = ShelloidUtil.getInstance();
     }
 
+    public static EventLoop nextEventLoop() {
+        return tunnelGroup.next();
+    }
+
+    /* The owner of a ConfinedPseudoTcp whose connection belongs to loop. */
+    public static IOwner owner(final EventLoop loop) {
+        return new IOwner() {
+            @Override
+            public boolean isCurrentThread() {
+                return loop.inEventLoop();
+            }
+        };
+    }
+
+    /* Applies the client.tunnelOptions setting of a port mapping - a comma separated
+     * list of nodelay, cork, quickack, interactive, offheap, zerortt, mux, pool and backendpool - to
+     * a new PTCP connection. With zerortt the first bytes of an app-side connection go out with its
+     * connect. */
+    public static void applyTunnelOptions(PseudoTcp ptcp, long portMapId) {
+        for (String opt : tunnelOptions(portMapId)) {
+            if (opt.equals("mux") || opt.equals("pool") || opt.equals("backendpool")) {
+                /* not PTCP options: see hasTunnelOption */
+            } else if (opt.equals("nodelay")) {
+                ptcp.setOption(PseudoTcp.Option.OPT_NODELAY, 1);
+            } else if (opt.equals("cork")) {
+                ptcp.setOption(PseudoTcp.Option.OPT_CORK, 1);
+            } else if (opt.equals("quickack")) {
+                ptcp.setOption(PseudoTcp.Option.OPT_QUICKACK, 1);
+            } else if (opt.equals("interactive")) {
+                ptcp.setOption(PseudoTcp.Option.OPT_INTERACTIVE, 1);
+            } else if (opt.equals("offheap")) {
+                ptcp.setOption(PseudoTcp.Option.OPT_OFFHEAP, 1);
+            } else if (opt.equals("zerortt")) {
+                ptcp.setOption(PseudoTcp.Option.OPT_ZERO_RTT, 1);
+            }
+        }
+    }
+
+    /* True if client.tunnelOptions of the port mapping has option. With "mux" its connections
+     * share one MuxSession, with "pool" they take sessions from a SessionPool; on the service side,
+     * with "backendpool" they take service sockets from a BackendPool. */
+    public static boolean hasTunnelOption(long portMapId, String option) {
+        return tunnelOptions(portMapId).contains(option.toLowerCase());
+    }
+
+    /* client.tunnelOptions of the port mapping, split and lower-cased. Every accept looks at it,
+     * so each distinct setting is split once and kept, and an unknown option is only reported once. */
+    private static List<String> tunnelOptions(long portMapId) {
+        String opts = Configurations.get(Configurations.ConfigParams.TUNNEL_OPTIONS, portMapId);
+        if (opts == null) {
+            return Collections.<String>emptyList();
+        }
+        List<String> parsed = parsedTunnelOptions.get(opts);
+        if (parsed == null) {
+            parsed = new ArrayList<String>();
+            for (String opt : opts.split(",")) {
+                opt = opt.trim().toLowerCase();
+                if (opt.length() == 0) {
+                    continue;
+                }
+                if (!KNOWN_TUNNEL_OPTIONS.contains(opt)) {
+                    Platform.shelloidLogger.warn("Unknown tunnel option '" + opt + "' for port mapping " + portMapId);
+                }
+                parsed.add(opt);
+            }
+            parsedTunnelOptions.put(opts, parsed);
+        }
+        return parsed;
+    }
+
+    private static final List<String> KNOWN_TUNNEL_OPTIONS = Arrays.asList("nodelay", "cork", "quickack",
+            "interactive", "offheap", "zerortt", "mux", "pool", "backendpool");
+    private static final ConcurrentHashMap<String, List<String>> parsedTunnelOptions = new ConcurrentHashMap<String, List<String>>();
+
     public Channel bind(int port) throws Exception {
         final EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        final EventLoopGroup workerGroup = new NioEventLoopGroup();
         ServerBootstrap b = new ServerBootstrap();
-        b.group(bossGroup, workerGroup)
+        b.group(bossGroup, tunnelGroup)
                 .channel(NioServerSocketChannel.class)
-                .option(ChannelOption.SO_BACKLOG, 20)
-                .handler(new LoggingHandler(LogLevel.INFO))
+                .option(ChannelOption.SO_BACKLOG, Configurations.LOCAL_ACCEPT_BACKLOG)
+                .childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, Configurations.LOCAL_WRITE_BUFFER_HIGH_WATER_MARK)
+                .childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, Configurations.LOCAL_WRITE_BUFFER_LOW_WATER_MARK)
+                .handler(new LoggingHandler(LogLevel.DEBUG))
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     public void initChannel(SocketChannel ch) throws Exception {
@@ -82,7 +177,6 @@ public class LocalLink {
                     ChannelFuture cf = ch.close();
                     cf.awaitUninterruptibly(timeOut);
                     bossGroup.shutdownGracefully().awaitUninterruptibly(timeOut);
-                    workerGroup.shutdownGracefully().awaitUninterruptibly(timeOut);
                     Platform.shelloidLogger.info("Gracefull shutdown finidhed.");
                 }
             });
@@ -92,12 +186,13 @@ public class LocalLink {
         }
     }
 
-    public Bootstrap getClientBootstrap() throws InterruptedException {
-        EventLoopGroup group = new NioEventLoopGroup();
+    public Bootstrap getClientBootstrap(EventLoop owner) {
         Bootstrap b = new Bootstrap();
-        b.group(group)
+        b.group(owner)
                 .channel(NioSocketChannel.class)
                 .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, Configurations.LOCAL_WRITE_BUFFER_HIGH_WATER_MARK)
+                .option(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, Configurations.LOCAL_WRITE_BUFFER_LOW_WATER_MARK)
                 .handler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     public void initChannel(SocketChannel ch) throws Exception {
@@ -127,47 +222,15 @@ public class LocalLink {
         @Override
         public void onTcpReadable(PseudoTcp tcp) {
             //System.out.println("onTcpReadable");
-            ConnectionInfo connInfo = ((ConnectionInfo) tcp.attachment());
-            int len = tcp.recv(connInfo.recvBuffer);
-            //System.out.println("Read from TCP: " + len);
-            if (len > 0) {
-                connInfo.totalReadFromPtcp += len;
-                //System.out.println("Total Read from PTCP so far: " + connInfo.totalReadFromPtcp);
-            }
-            if (len == SOCKET_ERROR) {
-                assert (tcp.getError() == EWOULDBLOCK);
-                return;
-            }
-            ByteBuf buf = Unpooled.buffer(len);
-            buf.writeBytes(connInfo.recvBuffer, 0, len);
-            if (connInfo.isConnected()) {
-                connInfo.getChannel().writeAndFlush(buf);
-            } else {
-                connInfo.pendingChannelWriteBufs.add(buf);
-                return;
-            }
-            if (tcp.getRcvBufLen() > 0) {
-                onTcpReadable(tcp);
-            } else if (connInfo.getPendingClose()) {
-                String connId = connInfo.getPortMapInfo().getPortMapId() + ":" + connInfo.getConnTs();
-                try {
-                    connInfo.getChannel().close().sync();
-                } catch (InterruptedException ex) {
-                    Platform.shelloidLogger.error("InterruptedException while closing channel", ex);
-                }
-                tcp.close(true);
-                Platform.shelloidLogger.info("Closing channel from onTcpReadable. So removing from agentConnMap: " + connId);
-                agentConnMap.remove(connId);
-            }
+            downlinkData((ConnectionInfo) tcp.attachment());
         }
 
         @Override
         public void onTcpWriteable(PseudoTcp tcp) {
             //System.out.println("onTcpWriteable");
             ConnectionInfo info = ((ConnectionInfo) tcp.attachment());
-            byte[] pendingPtcpWriteBuf = info.getPendingPtcpWriteBuf();
-            if (pendingPtcpWriteBuf != null) {
-                uplinkData(info, pendingPtcpWriteBuf, pendingPtcpWriteBuf.length);
+            if (!info.isPendingPtcpWriteBufEmpty()) {
+                uplinkData(info);
             }
         }
 
@@ -188,7 +251,7 @@ public class LocalLink {
             //System.out.println("tcpWritePacket");
             ConnectionInfo connInfo = (ConnectionInfo) tcp.attachment();
             Long portMapId = connInfo.getPortMapInfo().getPortMapId();
-            client.sendTunnelMessage(client.getChannel(), portMapId, connInfo.isSvcSide(), connInfo.getConnTs(), buffer, len, null);
+            client.sendTunnelMessage(client.getTunnelChannel(portMapId, connInfo.getConnTs()), portMapId, connInfo.isSvcSide(), connInfo.getConnTs(), buffer, len, null);
             return IPseudoTcpNotify.WriteResult.WR_SUCCESS;
         }
 
@@ -198,54 +261,168 @@ public class LocalLink {
         }
     }
 
-    public void uplinkData(ConnectionInfo connInfo, byte[] data, int length) {
+    /*
+     * Moves data from the PTCP receive buffer to the local socket for as long as the socket
+     * stays below its high watermark. Whatever is left stays in the PTCP receive buffer, which
+     * closes the window advertised to the peer; channelWritabilityChanged resumes the drain.
+     */
+    void downlinkData(ConnectionInfo connInfo) {
+        PseudoTcp tcp = connInfo.getPtcp();
+        Channel ch = connInfo.getChannel();
+        if (ch == null || !connInfo.isConnected()) {
+            /* Service side still connecting: channelActive drains once the socket is up. */
+            return;
+        }
+        boolean written = false;
+        while (ch.isWritable()) {
+            int len = tcp.recv(connInfo.recvBuffer);
+            if (len == SOCKET_ERROR) {
+                assert (tcp.getError() == EWOULDBLOCK || tcp.getError() == ENOTCONN);
+                break;
+            }
+            connInfo.totalReadFromPtcp += len;
+            ByteBuf buf = ch.alloc().buffer(len);
+            buf.writeBytes(connInfo.recvBuffer, 0, len);
+            TunnelMemory.reserveOutbound(ch.write(buf), len);
+            written = true;
+        }
+        if (written) {
+            ch.flush();
+            HelperFunctions.adjustClock(connInfo.getEventLoop(), tcp);
+        }
+        if (tcp.getRcvBufLen() <= 0 && connInfo.getPendingClose()) {
+            String connId = connInfo.getPortMapInfo().getPortMapId() + ":" + connInfo.getConnTs();
+            try {
+                ch.close().sync();
+            } catch (InterruptedException ex) {
+                Platform.shelloidLogger.error("InterruptedException while closing channel", ex);
+            }
+            tcp.close(true);
+            Platform.shelloidLogger.info("Closing channel from onTcpReadable. So removing from agentConnMap: " + connId);
+            VPTClient.removeConnection(connId);
+        }
+    }
+
+    /*
+     * Feeds the pending local socket data to PTCP. Reads from the socket stay off until PTCP
+     * has taken all of it; onTcpWriteable calls back here as the send buffer frees up.
+     */
+    public void uplinkData(ConnectionInfo connInfo) {
         PseudoTcp ptcp = connInfo.getPtcp();
+        ByteBuf data = connInfo.getPendingPtcpWriteBuf();
+        if (data == null) {
+            return;
+        }
         if (connInfo.getChannel() == null || ptcp.state() == PseudoTcp.TcpState.TCP_CLOSED) {
             Platform.shelloidLogger.debug("Channel is null or PTCP is closed");
-            /* return */
-        } else {
-            int nWritten = ptcp.send(data, length);
-            if (nWritten > 0) {
-                connInfo.totalWrittenToPtcp += nWritten;
-            }
-            if (nWritten == length) {
-                connInfo.getChannel().config().setAutoRead(true);
-                connInfo.clearPendingPtcpWritebuf();
-                Platform.shelloidLogger.info("Completely sent data via PTCP.");
+            connInfo.clearPendingPtcpWritebuf();
+            return;
+        }
+        int length = data.readableBytes();
+        int nWritten = 0;
+        while (data.isReadable()) {
+            int chunk = data.readableBytes();
+            int n;
+            if (data.hasArray()) {
+                n = ptcp.send(data.array(), data.arrayOffset() + data.readerIndex(), chunk);
             } else {
-                if (nWritten == SOCKET_ERROR && (ptcp.getError() == EWOULDBLOCK || ptcp.getError() == ENOTCONN)) {
+                /* PTCP copies into its send buffer, so recvBuffer serves as scratch space here. */
+                chunk = Math.min(chunk, connInfo.recvBuffer.length);
+                data.getBytes(data.readerIndex(), connInfo.recvBuffer, 0, chunk);
+                n = ptcp.send(connInfo.recvBuffer, 0, chunk);
+            }
+            if (n <= 0) {
+                if (n == SOCKET_ERROR && (ptcp.getError() == EWOULDBLOCK || ptcp.getError() == ENOTCONN)) {
                     Platform.shelloidLogger.debug("PTCP Error: (" + ptcp.getError() + ")");
-                    nWritten = 0;
                 }
-                connInfo.getChannel().config().setAutoRead(false);
-                Platform.shelloidLogger.debug("PTCP could send only " + nWritten + " bytes of " + length + ".");
-                connInfo.setPendingPtcpWriteBuf(data, nWritten, length);
+                break;
+            }
+            data.skipBytes(n);
+            nWritten += n;
+            if (n < chunk) {
+                break;
             }
         }
+        connInfo.totalWrittenToPtcp += nWritten;
+        if (!data.isReadable()) {
+            connInfo.getChannel().config().setAutoRead(true);
+            connInfo.clearPendingPtcpWritebuf();
+            Platform.shelloidLogger.debug("Completely sent data via PTCP.");
+        } else {
+            connInfo.getChannel().config().setAutoRead(false);
+            Platform.shelloidLogger.debug("PTCP could send only " + nWritten + " bytes of " + length + ".");
+        }
+        if (nWritten > 0) {
+            HelperFunctions.adjustClock(connInfo.getEventLoop(), ptcp);
+        }
     }
 
     private void doRemoteClose(ChannelHandlerContext ctx) {
+        MuxSession.Local local = ctx.channel().attr(MUX_LOCAL).get();
+        if (local != null) {
+            local.getSession().onLocalError(local);
+            return;
+        }
         ConnectionInfo conn = ctx.channel().attr(CONNECTION_MAPPING).get();
         if (conn != null) {
             Long portMapId = conn.getPortMapInfo().getPortMapId();
             String connId = portMapId + ":" + conn.getConnTs();
-            client.doRemoteClose(client.getChannel(), ctx.channel(), connId, portMapId, conn.isSvcSide(), conn.getConnTs(), conn.getPtcp(), conn);
+            client.doRemoteClose(client.getTunnelChannel(portMapId, conn.getConnTs()), ctx.channel(), connId, portMapId, conn.isSvcSide(), conn.getConnTs(), conn.getPtcp(), conn);
         }
     }
 
     private void sendDataToAgent(Object msg, ChannelHandlerContext ctx) {
-        ByteBuf buf = (ByteBuf) msg;
-        byte[] bytes = new byte[buf.readableBytes()];
-        buf.readBytes(bytes);
+        MuxSession.Local local = ctx.channel().attr(MUX_LOCAL).get();
+        if (local != null) {
+            local.getSession().onLocalRead(local, (ByteBuf) msg);
+            return;
+        }
         ConnectionInfo connInfo = ctx.channel().attr(CONNECTION_MAPPING).get();
-        assert (connInfo.isPendingPtcpWriteBufEmpty() == true);
-        uplinkData(connInfo, bytes, bytes.length);
+        if (connInfo == null) {
+            ((ByteBuf) msg).release();
+            return;
+        }
+        connInfo.setLastRcvdTs(System.currentTimeMillis());
+        connInfo.addPendingPtcpWriteBuf((ByteBuf) msg);
+        uplinkData(connInfo);
+    }
+
+    private void onLocalWritabilityChanged(ChannelHandlerContext ctx) {
+        MuxSession.Local local = ctx.channel().attr(MUX_LOCAL).get();
+        if (local != null) {
+            if (ctx.channel().isWritable()) {
+                local.getSession().onLocalWritable(local);
+            }
+            return;
+        }
+        ConnectionInfo connInfo = ctx.channel().attr(CONNECTION_MAPPING).get();
+        if (connInfo != null && ctx.channel().isWritable()) {
+            downlinkData(connInfo);
+        }
+    }
+
+    private void onLocalChannelInactive(ChannelHandlerContext ctx) {
+        MuxSession.Local local = ctx.channel().attr(MUX_LOCAL).get();
+        if (local != null) {
+            local.getSession().onLocalInactive(local);
+            return;
+        }
+        doRemoteClose(ctx);
+        ConnectionInfo connInfo = ctx.channel().attr(CONNECTION_MAPPING).get();
+        if (connInfo != null) {
+            connInfo.clearPendingPtcpWritebuf();
+        }
     }
 
     class SvcSideAgentHandler extends ChannelInboundHandlerAdapter {
 
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            BackendPool.Socket pooled = BackendPool.unclaimed(ctx.channel());
+            if (pooled != null) {
+                pooled.onRead((ByteBuf) msg);
+                return;
+            }
             sendDataToAgent(msg, ctx);
         }
 
@@ -256,6 +433,12 @@ public class LocalLink {
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            SvcInfo.failed(ctx.channel());
+            if (BackendPool.unclaimed(ctx.channel()) != null) {
+                Platform.shelloidLogger.info("Closing pooled backend socket " + ctx.channel() + ": " + cause.getMessage());
+                ctx.close();
+                return;
+            }
             cause.printStackTrace();
             Platform.shelloidLogger.info("Sending Remote Close (ReasonL.1)");
             doRemoteClose(ctx);
@@ -265,34 +448,45 @@ public class LocalLink {
         public void channelActive(ChannelHandlerContext ctx) throws Exception {
             Platform.shelloidLogger.info("Agent opens " + ctx.channel().toString());
             Channel ch = ctx.channel();
+            if (BackendPool.unclaimed(ch) != null) {
+                /* Pooled: claiming it replays this event to its owner. */
+                return;
+            }
+            MuxSession.Local local = ch.attr(MUX_LOCAL).get();
+            if (local != null) {
+                local.getSession().onLocalActive(local);
+                return;
+            }
             ConnectionInfo connInfo = (ConnectionInfo) ch.attr(CONNECTION_MAPPING).get();
             assert (connInfo != null);
+            connInfo.setAgentPort(sutils.getLocalPort(ch));
             connInfo.setIsConnected(true);
-            ArrayList<ByteBuf> buffs = connInfo.getPendingChannelWriteBufs();
-            Iterator<ByteBuf> it = buffs.iterator();
-            while (it.hasNext()) {
-                ByteBuf buf = it.next();
-                try {
-                    ch.writeAndFlush(buf);
-                } finally {
-                }
-                it.remove();
-            }
-            connInfo.clearPendingChannelWriteBufs();
+            Platform.shelloidLogger.info("Svc connected with " + connInfo.getAgentPort());
+            downlinkData(connInfo);
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            onLocalWritabilityChanged(ctx);
+            ctx.fireChannelWritabilityChanged();
         }
 
         @Override
         public void channelInactive(ChannelHandlerContext ctx) throws Exception {
             Platform.shelloidLogger.debug("CHANNEL INACTIVE: SVC_SIDE");
+            BackendPool.Socket pooled = BackendPool.unclaimed(ctx.channel());
+            if (pooled != null) {
+                pooled.onInactive();
+                return;
+            }
+            SvcInfo.closed(ctx.channel());
             Platform.shelloidLogger.info("Sending Remote Close (ReasonL.2) for channel: " + ctx.channel());
-            doRemoteClose(ctx);
+            onLocalChannelInactive(ctx);
         }
     }
 
     class AppSideAgentHandler extends ChannelInboundHandlerAdapter {
 
-        private final ScheduledExecutorService executer = Executors.newSingleThreadScheduledExecutor();
-
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) {
             sendDataToAgent(msg, ctx);
@@ -318,29 +512,72 @@ public class LocalLink {
                 Platform.shelloidLogger.debug("channelActive Connection info already exists.");
                 return;
             }
+            if (TunnelMemory.canAdmit()) {
+                openTunnel(ch);
+            } else if (TunnelMemory.startWaiting()) {
+                /* Hold the connection unread until tunnels in flight release enough memory. */
+                Platform.shelloidLogger.info("Tunnel memory under pressure, holding " + ch + ". " + TunnelMemory.stats());
+                ch.config().setAutoRead(false);
+                awaitMemory(ch, System.currentTimeMillis());
+            } else {
+                TunnelMemory.refused();
+                Platform.shelloidLogger.warn("Tunnel memory exhausted, refusing " + ch + ". " + TunnelMemory.stats());
+                ch.close();
+            }
+        }
+
+        private void awaitMemory(final Channel ch, final long since) {
+            ch.eventLoop().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!ch.isActive()) {
+                        TunnelMemory.stopWaiting();
+                    } else if (TunnelMemory.canAdmit()) {
+                        TunnelMemory.stopWaiting();
+                        /* before openTunnel: a mux stream keeps reads off until it is attached */
+                        ch.config().setAutoRead(true);
+                        openTunnel(ch);
+                    } else if (System.currentTimeMillis() - since >= Configurations.ADMISSION_MAX_WAIT) {
+                        TunnelMemory.stopWaiting();
+                        TunnelMemory.refused();
+                        Platform.shelloidLogger.warn("Timed out waiting for tunnel memory, closing " + ch + ". " + TunnelMemory.stats());
+                        ch.close();
+                    } else {
+                        awaitMemory(ch, since);
+                    }
+                }
+            }, Configurations.ADMISSION_RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        private void openTunnel(Channel ch) {
             int agentPort = sutils.getLocalPort(ch);
             PortMapInfo info = VPTClient.agentPortMap.get(agentPort);
-            if (info != null) {
-                long currentTime = generateConnectionTs();
-                PseudoTcp ptcp = new PseudoTcp(new PTCPNotifier(), 0);
-                String connId = info.getPortMapId() + ":" + currentTime;
-                if (VPTClient.agentConnMap.get(connId) != null) {
+            if (info != null && hasTunnelOption(info.getPortMapId(), "mux")) {
+                MuxSession.forPortMap(client, info.getPortMapId()).openStream(ch);
+                TunnelMemory.admitted();
+            } else if (info != null && hasTunnelOption(info.getPortMapId(), "pool")) {
+                SessionPool.forPortMap(client, info.getPortMapId()).take().openStream(ch);
+                TunnelMemory.admitted();
+            } else if (info != null) {
+                long connTs = generateConnectionTs();
+                PseudoTcp ptcp = new ConfinedPseudoTcp(new PTCPNotifier(), 0, owner(ch.eventLoop()));
+                String connId = info.getPortMapId() + ":" + connTs;
+                ConnectionInfo connInfo = new ConnectionInfo(ch, info, ptcp, agentPort, false, connTs, System.currentTimeMillis(), true);
+                if (VPTClient.agentConnMap.putIfAbsent(connId, connInfo) != null) {
                     Platform.shelloidLogger.debug("ConnectionInfo already exists for " + connId);
-                    try {
-                        ch.close().sync();
-                    } catch (InterruptedException ex) {
-                        Platform.shelloidLogger.error("InterruptedException while closing channel", ex);
-                    }
+                    connInfo.releaseMemory();
+                    ch.close();
                     return;
                 }
-                ConnectionInfo connInfo = new ConnectionInfo(ch, info, ptcp, agentPort, false, currentTime, currentTime, true);
-                VPTClient.agentConnMap.put(connId, connInfo);
+                IdleReaper.watch(connId, connInfo);
                 ch.attr(CONNECTION_MAPPING).set(connInfo);
                 ptcp.attach(connInfo);
+                applyTunnelOptions(ptcp, info.getPortMapId());
                 Platform.shelloidLogger.info("Connection ID from AppSideAgentHandler.channelActive: " + connId);
                 Platform.shelloidLogger.debug("PTCP connecting from App Side");
                 ptcp.connect();
-                HelperFunctions.adjustClock(executer, ptcp);
+                HelperFunctions.adjustClock(ch.eventLoop(), ptcp);
+                TunnelMemory.admitted();
             } else {
                 Platform.shelloidLogger.error("No port-map info for: " + agentPort);
                 try {
@@ -355,19 +592,31 @@ public class LocalLink {
         public void channelInactive(ChannelHandlerContext ctx) throws Exception {
             Platform.shelloidLogger.debug("CHANNEL INACTIVE: APP_SIDE");
             Platform.shelloidLogger.info("Sending Remote Close (ReasonL.4)");
-            doRemoteClose(ctx);
+            onLocalChannelInactive(ctx);
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            onLocalWritabilityChanged(ctx);
+            ctx.fireChannelWritabilityChanged();
         }
 
     }
 
-    private static synchronized long generateConnectionTs() {
-        long connTs = System.currentTimeMillis();
-        if (connTs == lastConnectionTs) {
-            connTs++;
+    /* A connTs for a new connection of this agent: the current time in ms, or one past the last
+     * one given out if that is not behind it, so every one is unique even when the clock
+     * stands still or steps back, without a lock on the accept path. More than one connection a
+     * ms runs the IDs ahead of the clock until the rate drops again; they are IDs, not times. */
+    static long generateConnectionTs() {
+        for (;;) {
+            long now = System.currentTimeMillis();
+            long last = lastConnectionTs.get();
+            long connTs = (now > last) ? now : last + 1;
+            if (lastConnectionTs.compareAndSet(last, connTs)) {
+                return connTs;
+            }
         }
-        lastConnectionTs = connTs;
-        return connTs;
     }
 
-    static long lastConnectionTs = 0;
+    private static final AtomicLong lastConnectionTs = new AtomicLong();
 }
@@ -0,0 +1,631 @@
+/*
+ Copyright (c) Shelloid Systems LLP. All rights reserved.
+ The use and distribution terms for this software are covered by the
+ GNU General Public License 3.0 (http://www.gnu.org/copyleft/gpl.html)
+ which can be found in the file LICENSE at the root of this distribution.
+ By using this software in any fashion, you are agreeing to be bound by
+ the terms of this license.
+ You must not remove this notice, or any other, from this software.
+ */
+package org.shelloid.vpt.agent;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.shelloid.common.messages.MessageValues;
+import org.shelloid.ptcp.ConfinedPseudoTcp;
+import org.shelloid.ptcp.HelperFunctions;
+import org.shelloid.ptcp.IPseudoTcpNotify;
+import org.shelloid.ptcp.IScheduler;
+import org.shelloid.ptcp.IStreamMuxNotify;
+import org.shelloid.ptcp.MuxStream;
+import static org.shelloid.ptcp.NetworkConstants.*;
+import org.shelloid.ptcp.PseudoTcp;
+import org.shelloid.ptcp.StreamMux;
+import org.shelloid.vpt.agent.util.Configurations;
+import org.shelloid.vpt.agent.util.Platform;
+import org.shelloid.vpt.agent.util.TunnelMemory;
+
+/*
+ * One long-lived PTCP session of a port mapping that carries all its local connections as
+ * StreamMux streams, so a new connection skips the PTCP handshake through the relay and starts
+ * on a warm congestion window. The app side opens it for port mappings with "mux" in
+ * client.tunnelOptions; the service side sets up its end on the first TUNNEL frame marked MUX
+ * and connects the service once per stream. SessionPool keeps app-side sessions of its own,
+ * carrying one connection at a time. The session, its PTCP and its streams belong to
+ * one event loop. Local sockets belong to other loops, so their events are handed over to it.
+ */
+public class MuxSession implements IPseudoTcpNotify, IStreamMuxNotify {
+
+    /* ctrlMsg of every TUNNEL data frame of a session: tells the service side to demultiplex. */
+    public static final String MUX = "MUX";
+    /* Open sessions by connection ID (portMapId:connTs), on both sides. */
+    public static final ConcurrentHashMap<String, MuxSession> sessions = new ConcurrentHashMap<String, MuxSession>();
+    /* The app-side session of each port mapping. */
+    private static final ConcurrentHashMap<Long, MuxSession> appSessions = new ConcurrentHashMap<Long, MuxSession>();
+
+    private final VPTClient client;
+    private final LocalLink link;
+    private final long portMapId;
+    private final long connTs;
+    private final String connId;
+    private final boolean svcSide;
+    /* The pool the session belongs to, or null. */
+    private final SessionPool pool;
+    private final EventLoop eventLoop;
+    private final IScheduler scheduler;
+    private final PseudoTcp ptcp;
+    /* Created on the owner loop, as it sets PTCP options. */
+    private StreamMux mux;
+    private volatile boolean closed;
+    /* Since when the session has had no streams; 0 while it has some. */
+    private volatile long idleSince;
+    private volatile long connectedAt;
+    private boolean hasReceivedRemoteClose;
+    private int noRouteMsgCount;
+    /* Local sockets written to in the current PTCP read, flushed once it is done. */
+    private final List<Channel> unflushed = new ArrayList<Channel>();
+    private final byte[] scratch = new byte[(int) MAX_PACKET];
+
+    /* A stream and the local socket it carries. Only touched on the session loop. */
+    public static class Local {
+        final MuxSession session;
+        final MuxStream stream;
+        Channel channel;
+        /* Service side: the socket is still connecting; data for it is held until it is up. */
+        boolean connected;
+        final List<ByteBuf> held = new ArrayList<ByteBuf>();
+        boolean endPending;
+        /* Socket data the stream has not taken yet. */
+        ByteBuf pending;
+        long reservedPending;
+        boolean localClosed;
+        /* Data written to the socket above its high watermark, credited back once it drains. */
+        int unconsumed;
+
+        Local(MuxSession session, MuxStream stream, Channel channel, boolean connected) {
+            this.session = session;
+            this.stream = stream;
+            this.channel = channel;
+            this.connected = connected;
+        }
+
+        public MuxSession getSession() {
+            return session;
+        }
+
+        void releasePending() {
+            if (pending != null) {
+                pending.release();
+                pending = null;
+            }
+            TunnelMemory.budget.release(reservedPending);
+            reservedPending = 0;
+            for (ByteBuf b : held) {
+                b.release();
+            }
+            held.clear();
+        }
+    }
+
+    private MuxSession(VPTClient client, long portMapId, long connTs, boolean svcSide, SessionPool pool) {
+        this.client = client;
+        this.link = new LocalLink(client);
+        this.portMapId = portMapId;
+        this.connTs = connTs;
+        this.connId = portMapId + ":" + connTs;
+        this.svcSide = svcSide;
+        this.pool = pool;
+        this.eventLoop = LocalLink.nextEventLoop();
+        this.scheduler = HelperFunctions.scheduler(eventLoop);
+        this.ptcp = new ConfinedPseudoTcp(this, 0, LocalLink.owner(eventLoop));
+        this.idleSince = System.currentTimeMillis();
+    }
+
+    /* The app-side session of a port mapping, opened if there is none yet. */
+    public static MuxSession forPortMap(VPTClient client, long portMapId) {
+        synchronized (appSessions) {
+            MuxSession session = appSessions.get(portMapId);
+            if (session == null || session.closed) {
+                session = new MuxSession(client, portMapId, LocalLink.generateConnectionTs(), false, null);
+                appSessions.put(portMapId, session);
+                sessions.put(session.connId, session);
+                session.start();
+                Platform.shelloidLogger.info("Opening mux session " + session.connId);
+            }
+            return session;
+        }
+    }
+
+    /* A new app-side session of a SessionPool. */
+    static MuxSession pooled(VPTClient client, long portMapId, SessionPool pool) {
+        MuxSession session = new MuxSession(client, portMapId, LocalLink.generateConnectionTs(), false, pool);
+        sessions.put(session.connId, session);
+        session.start();
+        Platform.shelloidLogger.info("Opening pooled session " + session.connId);
+        return session;
+    }
+
+    /* The service side of a session the app side has just opened. */
+    public static MuxSession accept(VPTClient client, long portMapId, long connTs) {
+        if (VPTClient.getSvcInfo(portMapId) == null) {
+            Platform.shelloidLogger.error("Unexpected mux session for port mapping " + portMapId);
+            return null;
+        }
+        MuxSession existing = sessions.get(portMapId + ":" + connTs);
+        if (existing != null) {
+            return existing;
+        }
+        MuxSession session = new MuxSession(client, portMapId, connTs, true, null);
+        existing = sessions.putIfAbsent(session.connId, session);
+        if (existing != null) {
+            /* lost a race, e.g. with a frame of the session that came over the control link: give back its buffers */
+            final MuxSession lost = session;
+            lost.execute(new Runnable() {
+                @Override
+                public void run() {
+                    lost.ptcp.cleanup();
+                }
+            });
+            return existing;
+        }
+        session.start();
+        Platform.shelloidLogger.info("Accepting mux session " + session.connId);
+        return session;
+    }
+
+    /* Closes every session of a port mapping, or all of them for null. */
+    public static void closeAll(Long portMapId) {
+        for (MuxSession session : sessions.values()) {
+            if (portMapId == null || portMapId.equals(session.portMapId)) {
+                session.close();
+            }
+        }
+    }
+
+    public long getPortMapId() {
+        return portMapId;
+    }
+
+    public long getConnTs() {
+        return connTs;
+    }
+
+    public EventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /* When the app side started the handshake. */
+    public long getConnectedAt() {
+        return connectedAt;
+    }
+
+    /* How long the session has had no streams, 0 if it has some. */
+    public long idleFor(long now) {
+        long since = idleSince;
+        return since == 0 ? 0 : now - since;
+    }
+
+    private void execute(Runnable task) {
+        if (eventLoop.inEventLoop()) {
+            task.run();
+        } else {
+            eventLoop.execute(task);
+        }
+    }
+
+    private void start() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mux = new StreamMux(ptcp, !svcSide, MuxSession.this, scheduler);
+                LocalLink.applyTunnelOptions(ptcp, portMapId);
+                if (!svcSide) {
+                    connectedAt = System.currentTimeMillis();
+                    ptcp.connect();
+                }
+                HelperFunctions.adjustClock(scheduler, ptcp);
+            }
+        });
+    }
+
+    /* App side: carries a newly accepted local connection on a new stream. */
+    public void openStream(final Channel ch) {
+        ch.config().setAutoRead(false);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (closed || !ch.isActive()) {
+                    ch.close();
+                    return;
+                }
+                MuxStream stream = mux.open();
+                idleSince = 0;
+                Local local = new Local(MuxSession.this, stream, ch, true);
+                stream.attach(local);
+                ch.attr(LocalLink.MUX_LOCAL).set(local);
+                ch.config().setAutoRead(true);
+                Platform.shelloidLogger.debug("Stream " + stream.id() + " of mux session " + connId + " for " + ch);
+            }
+        });
+    }
+
+    /* Data read from the local socket of a stream. */
+    public void onLocalRead(final Local local, final ByteBuf buf) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (local.stream.isClosed() || local.localClosed) {
+                    buf.release();
+                    return;
+                }
+                local.reservedPending += buf.readableBytes();
+                TunnelMemory.budget.reserve(buf.readableBytes());
+                local.pending = (local.pending == null) ? buf : Unpooled.wrappedBuffer(local.pending, buf);
+                uplink(local);
+            }
+        });
+    }
+
+    /* Service side: the connection to the service is up. */
+    public void onLocalActive(final Local local) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                local.connected = true;
+                Channel ch = local.channel;
+                int len = 0;
+                for (ByteBuf b : local.held) {
+                    len += b.readableBytes();
+                    TunnelMemory.reserveOutbound(ch.write(b), b.readableBytes());
+                }
+                local.held.clear();
+                ch.flush();
+                credit(local, len);
+                if (local.endPending) {
+                    ch.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+                }
+            }
+        });
+    }
+
+    public void onLocalWritable(final Local local) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (local.unconsumed > 0 && local.channel.isWritable()) {
+                    int len = local.unconsumed;
+                    local.unconsumed = 0;
+                    local.stream.consumed(len);
+                }
+            }
+        });
+    }
+
+    /* The local socket closed: the stream ends once the data read from it has gone out. */
+    public void onLocalInactive(final Local local) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                local.localClosed = true;
+                if (local.pending == null) {
+                    local.stream.close();
+                }
+            }
+        });
+    }
+
+    public void onLocalError(final Local local) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                local.releasePending();
+                local.stream.reset();
+                onStreamGone();
+                if (local.channel != null) {
+                    local.channel.close();
+                }
+            }
+        });
+    }
+
+    /* Hands the local socket data to the stream; reads stay off while it has not taken all of it. */
+    private void uplink(Local local) {
+        ByteBuf data = local.pending;
+        if (data == null) {
+            return;
+        }
+        while (data.isReadable()) {
+            int chunk = data.readableBytes();
+            int n;
+            if (data.hasArray()) {
+                n = local.stream.write(data.array(), data.arrayOffset() + data.readerIndex(), chunk);
+            } else {
+                chunk = Math.min(chunk, scratch.length);
+                data.getBytes(data.readerIndex(), scratch, 0, chunk);
+                n = local.stream.write(scratch, 0, chunk);
+            }
+            if (n == SOCKET_ERROR) {
+                local.releasePending();
+                return;
+            }
+            if (n == 0) {
+                break;
+            }
+            data.skipBytes(n);
+        }
+        if (!data.isReadable()) {
+            local.releasePending();
+            if (local.localClosed) {
+                local.stream.close();
+            } else {
+                local.channel.config().setAutoRead(true);
+            }
+        } else {
+            local.channel.config().setAutoRead(false);
+        }
+    }
+
+    /* Gives the peer back len bytes of stream window, unless the local socket is above its high watermark. */
+    private void credit(Local local, int len) {
+        if (local.channel.isWritable()) {
+            local.stream.consumed(len);
+        } else {
+            local.unconsumed += len;
+        }
+    }
+
+    private void onStreamGone() {
+        if (mux.streamCount() == 0) {
+            idleSince = System.currentTimeMillis();
+            if (pool != null && !closed) {
+                pool.release(this);
+            }
+        }
+    }
+
+    void dispatchTunnelBatch(final TunnelBatch batch) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                processTunnelBatch(batch);
+            }
+        });
+    }
+
+    /* Runs on the session loop: feeds the TUNNEL data frames of one relay read to PTCP together. */
+    private void processTunnelBatch(TunnelBatch batch) {
+        if (closed) {
+            return;
+        }
+        noRouteMsgCount = 0;
+        int count = batch.msgs.size();
+        byte[][] packets = new byte[count][];
+        int[] lens = new int[count];
+        for (int i = 0; i < count; i++) {
+            packets[i] = batch.msgs.get(i).getData().toByteArray();
+            lens[i] = packets[i].length;
+        }
+        if (!ptcp.notifyPackets(packets, lens, count)) {
+            Platform.shelloidLogger.info("Mux session " + connId + " rejected a packet, closing it");
+            close();
+            return;
+        }
+        HelperFunctions.adjustClock(scheduler, ptcp);
+    }
+
+    void onRemoteClose() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                hasReceivedRemoteClose = true;
+                close();
+            }
+        });
+    }
+
+    void onNoRoute(final String reason) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                noRouteMsgCount++;
+                if (noRouteMsgCount > Configurations.MAX_NO_ROUTE_MSG) {
+                    Platform.shelloidLogger.warn("No route for mux session " + connId + ": " + reason);
+                    close();
+                }
+            }
+        });
+    }
+
+    void notifyLinkWritable(final boolean writable) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!closed) {
+                    ptcp.notifyLinkWritable(writable);
+                    HelperFunctions.adjustClock(scheduler, ptcp);
+                }
+            }
+        });
+    }
+
+    /* Resets every stream, closes their local sockets and drops the session on both sides. */
+    public void close() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                sessions.remove(connId, MuxSession.this);
+                appSessions.remove(portMapId, MuxSession.this);
+                if (pool != null) {
+                    pool.closed(MuxSession.this);
+                }
+                mux.onTcpClosed(ECONNABORTED);
+                ptcp.close(true);
+                if (!hasReceivedRemoteClose) {
+                    client.sendTunnelMessage(client.getTunnelChannel(portMapId, connTs), portMapId, svcSide, connTs, null, 0, MessageValues.REMOTE_CLOSE);
+                }
+                ptcp.cleanup();
+                Platform.shelloidLogger.info("Mux session " + connId + " closed after " + mux.opened() + " streams opened, " + mux.accepted() + " accepted");
+            }
+        });
+    }
+
+    @Override
+    public void onTcpOpen(PseudoTcp tcp) {
+        Platform.shelloidLogger.debug("Mux session open: " + connId);
+        if (pool != null) {
+            pool.opened(this, System.currentTimeMillis() - connectedAt);
+        }
+        mux.onTcpOpen();
+    }
+
+    @Override
+    public void onTcpReadable(PseudoTcp tcp) {
+        mux.onTcpReadable();
+        for (Channel ch : unflushed) {
+            ch.flush();
+        }
+        unflushed.clear();
+    }
+
+    @Override
+    public void onTcpWriteable(PseudoTcp tcp) {
+        mux.onTcpWriteable();
+    }
+
+    @Override
+    public void onTcpClosed(PseudoTcp tcp, long error) {
+        Platform.shelloidLogger.info("Mux session " + connId + " went down: " + error);
+        close();
+    }
+
+    @Override
+    public IPseudoTcpNotify.WriteResult tcpWritePacket(PseudoTcp tcp, byte[] buffer, int len) {
+        client.sendTunnelMessage(client.getTunnelChannel(portMapId, connTs), portMapId, svcSide, connTs, buffer, len, MUX);
+        return IPseudoTcpNotify.WriteResult.WR_SUCCESS;
+    }
+
+    @Override
+    public void log(PseudoTcp tcp, IPseudoTcpNotify.LogType type, String msg) {
+        Platform.shelloidLogger.debug("TCP Log: (" + type + ")" + msg);
+    }
+
+    /* Service side: connects the service for the new stream. */
+    @Override
+    public void onStreamOpen(final MuxStream stream) {
+        SvcInfo svcInfo = VPTClient.getSvcInfo(portMapId);
+        if (!svcSide || svcInfo == null) {
+            stream.reset();
+            return;
+        }
+        idleSince = 0;
+        final Local local = new Local(this, stream, null, false);
+        stream.attach(local);
+        BackendPool.Socket pooled = null;
+        if (LocalLink.hasTunnelOption(portMapId, "backendpool")) {
+            BackendPool pool = BackendPool.forPortMap(client, portMapId);
+            pooled = (pool == null) ? null : pool.take();
+        }
+        if (pooled != null) {
+            local.channel = pooled.getChannel();
+            pooled.claim(LocalLink.MUX_LOCAL, local);
+            return;
+        }
+        final SvcInfo.Backend backend = svcInfo.pick();
+        Bootstrap b = link.getClientBootstrap(eventLoop);
+        b.attr(LocalLink.MUX_LOCAL, local);
+        b.attr(SvcInfo.BACKEND, backend);
+        backend.opened();
+        ChannelFuture cf = DnsResolver.shared().connect(b, backend.getHost(), backend.getPort());
+        local.channel = cf.channel();
+        cf.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (future.isSuccess()) {
+                    backend.succeeded();
+                } else {
+                    Platform.shelloidLogger.error("Can't connect stream " + stream.id() + " of " + connId + " to " + backend + ": " + future.cause().getMessage());
+                    backend.closed();
+                    backend.failed();
+                    onLocalError(local);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onStreamData(MuxStream stream, byte[] buffer, int offset, int len) {
+        Local local = (Local) stream.attachment();
+        Channel ch = local.channel;
+        if (ch == null || local.localClosed) {
+            stream.consumed(len);
+        } else if (!local.connected) {
+            local.held.add(Unpooled.copiedBuffer(buffer, offset, len));
+        } else {
+            ByteBuf buf = ch.alloc().buffer(len);
+            buf.writeBytes(buffer, offset, len);
+            TunnelMemory.reserveOutbound(ch.write(buf), len);
+            if (!unflushed.contains(ch)) {
+                unflushed.add(ch);
+            }
+            credit(local, len);
+        }
+    }
+
+    /* The peer is done sending: close the local socket once what it sent is written. */
+    @Override
+    public void onStreamEnd(MuxStream stream) {
+        Local local = (Local) stream.attachment();
+        if (local.channel == null || local.localClosed) {
+            return;
+        }
+        if (local.connected) {
+            local.channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        } else {
+            local.endPending = true;
+        }
+    }
+
+    @Override
+    public void onStreamWriteable(MuxStream stream) {
+        uplink((Local) stream.attachment());
+    }
+
+    @Override
+    public void onStreamClosed(MuxStream stream, boolean reset) {
+        Local local = (Local) stream.attachment();
+        local.releasePending();
+        if (reset && local.channel != null) {
+            local.channel.close();
+        }
+        if (!closed) {
+            onStreamGone();
+        }
+    }
+
+    /* Closes the sessions that have had no streams for longer than the idle threshold. */
+    static void closeIdle(long now) {
+        for (Map.Entry<String, MuxSession> entry : sessions.entrySet()) {
+            if (entry.getValue().idleFor(now) > Configurations.CONN_IDLE_THRESHOLD) {
+                Platform.shelloidLogger.info("Mux session idle, closing: " + entry.getKey());
+                entry.getValue().close();
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ Copyright (c) Shelloid Systems LLP. All rights reserved.
+ The use and distribution terms for this software are covered by the
+ GNU General Public License 3.0 (http://www.gnu.org/copyleft/gpl.html)
+ which can be found in the file LICENSE at the root of this distribution.
+ By using this software in any fashion, you are agreeing to be bound by
+ the terms of this license.
+ You must not remove this notice, or any other, from this software.
+ */
+package org.shelloid.vpt.agent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.shelloid.ptcp.PoolSizer;
+import org.shelloid.vpt.agent.util.Configurations;
+import org.shelloid.vpt.agent.util.Platform;
+
+/*
+ * App-side MuxSessions of a port mapping with "pool" in client.tunnelOptions, handshaked through
+ * the relay before they are needed. A new local connection takes one and goes out on a stream of
+ * it at once, one connection per session at a time; the session comes back when the connection
+ * is done. PoolSizer decides how many to keep from the recent connection arrival rate and the
+ * measured handshake time. The last session given back is the next one taken, so sessions with
+ * grown congestion windows stay in use and the surplus is the one closed.
+ */
+public class SessionPool {
+
+    private static final ConcurrentHashMap<Long, SessionPool> pools = new ConcurrentHashMap<Long, SessionPool>();
+
+    private final VPTClient client;
+    private final long portMapId;
+    private final PoolSizer sizer;
+    /* Handshaked and without a connection, most recently used first. */
+    private final ArrayDeque<MuxSession> idle = new ArrayDeque<MuxSession>();
+    /* Still handshaking, oldest first. */
+    private final ArrayDeque<MuxSession> warming = new ArrayDeque<MuxSession>();
+    private boolean removed;
+
+    private SessionPool(VPTClient client, long portMapId) {
+        this.client = client;
+        this.portMapId = portMapId;
+        this.sizer = new PoolSizer(Configurations.SESSION_POOL_MAX, Configurations.SESSION_POOL_RATE_WINDOW,
+                Configurations.CONN_IDLE_THRESHOLD, System.currentTimeMillis());
+    }
+
+    /* The pool of a port mapping, created with its first session if there is none yet. */
+    public static SessionPool forPortMap(VPTClient client, long portMapId) {
+        SessionPool pool = pools.get(portMapId);
+        if (pool == null) {
+            SessionPool created = new SessionPool(client, portMapId);
+            pool = pools.putIfAbsent(portMapId, created);
+            if (pool == null) {
+                pool = created;
+                pool.maintain(System.currentTimeMillis());
+            }
+        }
+        return pool;
+    }
+
+    /* Drops the pool of a port mapping, or all of them for null, closing their idle sessions. */
+    public static void remove(Long portMapId) {
+        for (SessionPool pool : pools.values()) {
+            if (portMapId == null || portMapId.equals(pool.portMapId)) {
+                pools.remove(pool.portMapId, pool);
+                pool.clear();
+            }
+        }
+    }
+
+    /* Resizes every pool to its current target; run from the cleanup timer. */
+    static void maintainAll(long now) {
+        for (SessionPool pool : pools.values()) {
+            pool.maintain(now);
+        }
+    }
+
+    /* A session for a new local connection: an idle one, else one still handshaking unless its
+     * handshake looks lost, else a new one. */
+    public synchronized MuxSession take() {
+        long now = System.currentTimeMillis();
+        sizer.arrival(now);
+        MuxSession session;
+        do {
+            session = idle.poll();
+        } while (session != null && session.isClosed());
+        if (session == null) {
+            MuxSession oldest = warming.peek();
+            if (oldest != null && now - oldest.getConnectedAt() < 2 * sizer.handshake()) {
+                session = warming.poll();
+            }
+        }
+        if (session == null) {
+            session = MuxSession.pooled(client, portMapId, this);
+        }
+        refill(now);
+        return session;
+    }
+
+    /* The session finished its handshake after millis. */
+    synchronized void opened(MuxSession session, long millis) {
+        sizer.handshake(millis);
+        if (warming.remove(session)) {
+            idle.addLast(session);
+        }
+    }
+
+    /* The session's connection is done. */
+    synchronized void release(MuxSession session) {
+        if (removed || session.isClosed()) {
+            session.close();
+            return;
+        }
+        idle.remove(session);
+        idle.addFirst(session);
+        trim(System.currentTimeMillis());
+    }
+
+    synchronized void closed(MuxSession session) {
+        idle.remove(session);
+        warming.remove(session);
+    }
+
+    private synchronized void maintain(long now) {
+        if (!removed) {
+            trim(now);
+            refill(now);
+        }
+    }
+
+    private void trim(long now) {
+        List<MuxSession> surplus = new ArrayList<MuxSession>();
+        while (idle.size() + warming.size() > sizer.target(now) && !idle.isEmpty()) {
+            surplus.add(idle.pollLast());
+        }
+        for (MuxSession session : surplus) {
+            Platform.shelloidLogger.debug("Closing surplus pooled session of port mapping " + portMapId);
+            session.close();
+        }
+    }
+
+    private void refill(long now) {
+        while (!removed && idle.size() + warming.size() < sizer.target(now)) {
+            warming.addLast(MuxSession.pooled(client, portMapId, this));
+        }
+    }
+
+    private void clear() {
+        List<MuxSession> all;
+        synchronized (this) {
+            removed = true;
+            all = new ArrayList<MuxSession>(idle);
+            all.addAll(warming);
+            idle.clear();
+            warming.clear();
+        }
+        for (MuxSession session : all) {
+            session.close();
+        }
+    }
+}
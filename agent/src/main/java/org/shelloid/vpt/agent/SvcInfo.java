@@ -0,0 +1,201 @@
+/*
+ Copyright (c) Shelloid Systems LLP. All rights reserved.
+ The use and distribution terms for this software are covered by the
+ GNU General Public License 3.0 (http://www.gnu.org/copyleft/gpl.html)
+ which can be found in the file LICENSE at the root of this distribution.
+ By using this software in any fashion, you are agreeing to be bound by
+ the terms of this license.
+ You must not remove this notice, or any other, from this software.
+ */
+package org.shelloid.vpt.agent;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.shelloid.vpt.agent.util.Configurations;
+import org.shelloid.vpt.agent.util.Platform;
+
+/*
+ * The service of a port mapping: the host and port of its OPEN_PORT, and the backends its
+ * connections go to. Those are the host and port themselves unless client.backends has a list
+ * of host[:port] for the port mapping, in which case each new connection goes to the less loaded
+ * of two backends drawn at random. A backend whose connects or sockets fail
+ * BACKEND_EJECT_FAILURES times in a row is ejected for BACKEND_EJECT_TIME, twice that the next
+ * time and so on, as long as at most BACKEND_MAX_EJECTED_PERCENT of the backends are out.
+ */
+class SvcInfo {
+
+    /* The backend of a service-side socket. */
+    static final AttributeKey<Backend> BACKEND = AttributeKey.valueOf("BACKEND");
+
+    private static final Random random = new Random();
+
+    private final String host;
+    private final int port;
+    private final List<Backend> backends = new ArrayList<Backend>();
+
+    static class Backend {
+        final SvcInfo svc;
+        final String host;
+        final int port;
+        /* Connections on it. */
+        final AtomicInteger active = new AtomicInteger();
+        /* Guarded by svc. */
+        int failures;
+        int ejections;
+        long ejectedUntil;
+
+        Backend(SvcInfo svc, String host, int port) {
+            this.svc = svc;
+            this.host = host;
+            this.port = port;
+        }
+
+        String getHost() {
+            return host;
+        }
+
+        int getPort() {
+            return port;
+        }
+
+        /* A connection starts using it. */
+        void opened() {
+            active.incrementAndGet();
+        }
+
+        void closed() {
+            active.decrementAndGet();
+        }
+
+        void succeeded() {
+            svc.succeeded(this);
+        }
+
+        void failed() {
+            svc.failed(this, System.currentTimeMillis());
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    public SvcInfo(String host, int port) {
+        this(host, port, null);
+    }
+
+    /* backendList: comma separated host[:port], the port defaulting to port; null or empty for host:port alone. */
+    public SvcInfo(String host, int port, String backendList) {
+        this.host = host;
+        this.port = port;
+        if (backendList != null) {
+            for (String entry : backendList.split(",")) {
+                entry = entry.trim();
+                if (entry.length() == 0) {
+                    continue;
+                }
+                int colon = entry.lastIndexOf(':');
+                try {
+                    if (colon < 0) {
+                        backends.add(new Backend(this, entry, port));
+                    } else {
+                        backends.add(new Backend(this, entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 1))));
+                    }
+                } catch (NumberFormatException ex) {
+                    Platform.shelloidLogger.warn("Ignoring backend '" + entry + "' of " + host + ":" + port);
+                }
+            }
+        }
+        if (backends.isEmpty()) {
+            backends.add(new Backend(this, host, port));
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /* The backend for a new connection. */
+    synchronized Backend pick() {
+        long now = System.currentTimeMillis();
+        List<Backend> up = new ArrayList<Backend>(backends.size());
+        for (Backend b : backends) {
+            if (b.ejectedUntil <= now) {
+                up.add(b);
+            }
+        }
+        if (up.isEmpty()) {
+            up = backends;
+        }
+        int n = up.size();
+        if (n == 1) {
+            return up.get(0);
+        }
+        int i = random.nextInt(n);
+        int j = random.nextInt(n - 1);
+        if (j >= i) {
+            j++;
+        }
+        Backend a = up.get(i);
+        Backend b = up.get(j);
+        return (a.active.get() <= b.active.get()) ? a : b;
+    }
+
+    private synchronized void succeeded(Backend b) {
+        b.failures = 0;
+        if (b.ejections > 0 && b.ejectedUntil <= System.currentTimeMillis()) {
+            b.ejections--;
+        }
+    }
+
+    private synchronized void failed(Backend b, long now) {
+        b.failures++;
+        if (b.failures < Configurations.BACKEND_EJECT_FAILURES || b.ejectedUntil > now) {
+            return;
+        }
+        int ejected = 0;
+        for (Backend other : backends) {
+            if (other.ejectedUntil > now) {
+                ejected++;
+            }
+        }
+        if ((ejected + 1) * 100 > backends.size() * Configurations.BACKEND_MAX_EJECTED_PERCENT) {
+            return;
+        }
+        long time = Math.min(Configurations.BACKEND_EJECT_TIME << Math.min(b.ejections, 16), Configurations.BACKEND_EJECT_MAX_TIME);
+        b.ejections++;
+        b.failures = 0;
+        b.ejectedUntil = now + time;
+        Platform.shelloidLogger.warn("Ejecting backend " + b + " of " + host + ":" + port + " for " + time + " ms");
+    }
+
+    /* A service-side socket ch errored: counts against its backend. */
+    static void failed(Channel ch) {
+        Backend backend = ch.attr(BACKEND).get();
+        if (backend != null) {
+            backend.failed();
+        }
+    }
+
+    /* A service-side socket ch carrying a connection is gone. */
+    static void closed(Channel ch) {
+        Backend backend = ch.attr(BACKEND).get();
+        if (backend != null) {
+            backend.closed();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port + ((backends.size() > 1) ? " " + backends : "");
+    }
+}
@@ -15,8 +15,10 @@ import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
@@ -30,16 +32,15 @@ import io.netty.util.AttributeKey;
 import io.netty.util.CharsetUtil;
 import java.awt.TrayIcon;
 import java.io.File;
-import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.shelloid.common.ICallback;
 import org.shelloid.common.ShelloidUtil;
 import org.shelloid.common.exceptions.ShelloidNonRetriableException;
@@ -47,6 +48,7 @@ import org.shelloid.common.messages.MessageValues;
 import org.shelloid.common.messages.ShelloidMessageModel.MessageTypes;
 import org.shelloid.common.messages.ShelloidMessageModel.PortMappingInfo;
 import org.shelloid.common.messages.ShelloidMessageModel.ShelloidMessage;
+import org.shelloid.ptcp.ConfinedPseudoTcp;
 import org.shelloid.ptcp.HelperFunctions;
 import org.shelloid.ptcp.PseudoTcp;
 import org.shelloid.vpt.agent.common.CallbackMessage;
@@ -56,6 +58,7 @@ import org.shelloid.vpt.agent.util.AgentReliableMessenger;
 import org.shelloid.vpt.agent.util.Configurations;
 import org.shelloid.vpt.agent.util.Platform;
 import org.shelloid.vpt.agent.util.ShelloidPolicyAddon;
+import org.shelloid.vpt.agent.util.TunnelMemory;
 
 /* @author Harikrishnan */
 public class VPTClient extends SimpleChannelInboundHandler<Object> {
@@ -63,25 +66,33 @@ public class VPTClient extends SimpleChannelInboundHandler<Object> {
     public static final ConcurrentHashMap<Integer, PortMapInfo> agentPortMap = new ConcurrentHashMap();
     public static final ConcurrentHashMap<String, ConnectionInfo> agentConnMap = new ConcurrentHashMap();
     private static final ConcurrentHashMap<Long, SvcInfo> agentSvcMap = new ConcurrentHashMap();
+    /* TUNNEL data frames read from a relay channel in the current read, per connection. Only touched on that channel's loop. */
+    private static final AttributeKey<Map<ConnectionInfo, TunnelBatch>> TUNNEL_BATCHES = AttributeKey.valueOf("TUNNEL_BATCHES");
+    /* The same for mux sessions. */
+    private static final AttributeKey<Map<MuxSession, TunnelBatch>> MUX_BATCHES = AttributeKey.valueOf("MUX_BATCHES");
     private boolean deviceMappingRcvd;
+    private static final AtomicBoolean housekeeping = new AtomicBoolean();
 
-    public VPTClient(WebSocketClientHandshaker handshaker, ICallback<CallbackMessage> callback, AgentReliableMessenger messenger) {
+    public VPTClient(WebSocketClientHandshaker handshaker, ICallback<CallbackMessage> callback, AgentReliableMessenger messenger, App app) {
         this.handshaker = handshaker;
         this.callback = callback;
         this.messenger = messenger;
+        this.app = app;
         this.sutils = ShelloidUtil.getInstance();
         this.deviceMappingRcvd = false;
-        startClearConnectionsTimer();
+        startHousekeeping();
     }
 
     // <editor-fold defaultstate="collapsed" desc="Other codes from the netty web sockets">
-    private final ScheduledExecutorService executer = Executors.newSingleThreadScheduledExecutor();
     public final WebSocketClientHandshaker handshaker;
     private final ICallback<CallbackMessage> callback;
     private final AgentReliableMessenger messenger;
     private final ShelloidUtil sutils;
+    private final App app;
     private ChannelPromise handshakeFuture;
     private Channel websocketChannel;
+    private volatile AtomicReferenceArray<DataLink> dataLinks;
+    private volatile boolean disconnected;
     private long lastSentAckNum;
 
     public ChannelFuture handshakeFuture() {
@@ -109,6 +120,18 @@ public class VPTClient extends SimpleChannelInboundHandler<Object> {
         onWsDisconnected(null);
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        onRelayWritabilityChanged();
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        flushTunnelBatches(ctx.channel());
+        ctx.fireChannelReadComplete();
+    }
+
     @Override
     public void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
         Channel ch = ctx.channel();
@@ -119,6 +142,13 @@ public class VPTClient extends SimpleChannelInboundHandler<Object> {
             Platform.shelloidLogger.debug("Client connected using " + ch + ". Now sending init ACK");
             sendAckMessage(ch, messenger.getLastSendAckNum());
             setChannel(ch);
+            int stripes = Integer.parseInt(Configurations.get(Configurations.ConfigParams.DATA_CONNECTIONS));
+            if (stripes > 0) {
+                dataLinks = new AtomicReferenceArray<DataLink>(stripes);
+                for (int i = 0; i < stripes; i++) {
+                    app.connectDataLink(this, i, stripes);
+                }
+            }
             return;
         }
 
@@ -175,6 +205,21 @@ public class VPTClient extends SimpleChannelInboundHandler<Object> {
     private void handleShelloidClientMsg(byte[] data, Channel channel) throws Exception {
         ShelloidMessage msg = ShelloidMessage.parseFrom(data);
         Platform.shelloidLogger.debug("Client Received data: {" + TextFormat.shortDebugString(msg) + "}");
+        handleShelloidClientMsg(msg, channel);
+    }
+
+    public void handleDataLinkMsg(byte[] data, Channel channel) throws Exception {
+        ShelloidMessage msg = ShelloidMessage.parseFrom(data);
+        Platform.shelloidLogger.debug("Client Received data on data connection: {" + TextFormat.shortDebugString(msg) + "}");
+        if ((msg.getType() == MessageTypes.URGENT)
+                && ((msg.getSubType() == MessageTypes.TUNNEL) || (msg.getSubType() == MessageTypes.NO_ROUTE))) {
+            handleShelloidClientMsg(msg, channel);
+        } else {
+            Platform.shelloidLogger.warn("Ignoring non tunnel message on data connection: " + msg.getType() + "/" + msg.getSubType());
+        }
+    }
+
+    private void handleShelloidClientMsg(final ShelloidMessage msg, Channel channel) throws Exception {
         MessageTypes type = msg.getType();
         if (type == MessageTypes.URGENT) {
             switch (msg.getSubType()) {
@@ -195,24 +240,18 @@ public class VPTClient extends SimpleChannelInboundHandler<Object> {
                     break;
                 }
                 case NO_ROUTE: {
-                    String connId = msg.getPortMapId() + ":" + msg.getConnTs();
-                    ConnectionInfo info = agentConnMap.get(connId);
-                    if (info != null) {
-                        info.noRouteMsgCount++;
-                        if (info.noRouteMsgCount > Configurations.MAX_NO_ROUTE_MSG) {
-                            info.getPtcp().close(true);
-                            try {
-                                info.getChannel().close().sync();
-                            } catch (InterruptedException ex) {
-                                Platform.shelloidLogger.error("InterruptedException while closing channel", ex);
+                    final String connId = msg.getPortMapId() + ":" + msg.getConnTs();
+                    final ConnectionInfo info = agentConnMap.get(connId);
+                    MuxSession session = MuxSession.sessions.get(connId);
+                    if (session != null) {
+                        session.onNoRoute(msg.getMsg());
+                    } else if (info != null) {
+                        runOnOwner(info, new Runnable() {
+                            @Override
+                            public void run() {
+                                handleNoRouteMsg(msg, connId, info);
                             }
-                            Platform.shelloidLogger.warn("No route found for the other device. So removing from agentConnMap: " + connId);
-                            agentConnMap.remove(connId);
-                            Platform.shelloidLogger.error("No route found for the device " + msg.getRemoteDevId() + ": " + msg.getMsg());
-                            Platform.shelloidLogger.warn("No route found for the other device\n" + msg.getMsg());
-                        } else {
-                            Platform.shelloidLogger.warn("Ignoring for the device " + msg.getRemoteDevId() + ": " + msg.getMsg() + ", count: " + info.noRouteMsgCount);
-                        }
+                        });
                     } else {
                         /* Message may be a non Tunnel message */
                     }
@@ -259,12 +298,46 @@ public class VPTClient extends SimpleChannelInboundHandler<Object> {
         }
     }
 
+    private void handleNoRouteMsg(ShelloidMessage msg, String connId, ConnectionInfo info) {
+        info.noRouteMsgCount++;
+        if (info.noRouteMsgCount > Configurations.MAX_NO_ROUTE_MSG) {
+            info.getPtcp().close(true);
+            if (info.getChannel() != null) {
+                info.getChannel().close();
+            }
+            Platform.shelloidLogger.warn("No route found for the other device. So removing from agentConnMap: " + connId);
+            removeConnection(connId);
+            Platform.shelloidLogger.error("No route found for the device " + msg.getRemoteDevId() + ": " + msg.getMsg());
+            Platform.shelloidLogger.warn("No route found for the other device\n" + msg.getMsg());
+        } else {
+            Platform.shelloidLogger.warn("Ignoring for the device " + msg.getRemoteDevId() + ": " + msg.getMsg() + ", count: " + info.noRouteMsgCount);
+        }
+    }
+
+    /*
+     * Every tunnel connection is owned by the event loop of its local socket. All PTCP calls,
+     * PTCP timers and local socket writes for the connection happen on that loop, so frames
+     * read from the relay are handed over to it instead of being processed on the relay loop.
+     */
+    private static void runOnOwner(ConnectionInfo info, Runnable task) {
+        EventLoop owner = info.getEventLoop();
+        if (owner.inEventLoop()) {
+            task.run();
+        } else {
+            owner.execute(task);
+        }
+    }
+
     private void handleOpenPortMsg(long portMapId, String hostName, int svcPort, Channel serverChannel, String appName, String policyText) {
         String processedOutput = null;
         if (agentSvcMap.containsKey(portMapId) && (svcPort == agentSvcMap.get(portMapId).getPort()) && (hostName.equals(agentSvcMap.get(portMapId).getHost()))) {
             Platform.shelloidLogger.debug("Already received an OPEN_PORT request for port: " + agentSvcMap.get(portMapId));
         } else {
-            agentSvcMap.put(portMapId, new SvcInfo(hostName, svcPort));
+            agentSvcMap.put(portMapId, new SvcInfo(hostName, svcPort, Configurations.get(Configurations.ConfigParams.BACKENDS, portMapId)));
+            BackendPool.remove(portMapId);
+            if (LocalLink.hasTunnelOption(portMapId, "backendpool")) {
+                BackendPool.forPortMap(this, portMapId);
+            }
             processedOutput = processPolicyAddon(hostName, svcPort, appName, policyText);
         }
         String msg = "Your port " + svcPort + " is shared with someone.";
@@ -313,6 +386,9 @@ public class VPTClient extends SimpleChannelInboundHandler<Object> {
                 break;
             }
         }
+        SessionPool.remove(portMapId);
+        BackendPool.remove(portMapId);
+        MuxSession.closeAll(portMapId);
         if (info != null) {
             for (Map.Entry<String, ConnectionInfo> o : agentConnMap.entrySet()) {
                 PortMapInfo obj = o.getValue().getPortMapInfo();
@@ -418,6 +494,11 @@ public class VPTClient extends SimpleChannelInboundHandler<Object> {
     public void executeListeningStartedProcedure(Long portMapId, Channel listeningChannel, Channel serverChannel) {
         int port = sutils.getLocalPort(listeningChannel);
         agentPortMap.put(port, new PortMapInfo(portMapId, listeningChannel));
+        if (LocalLink.hasTunnelOption(portMapId, "mux")) {
+            MuxSession.forPortMap(this, portMapId);
+        } else if (LocalLink.hasTunnelOption(portMapId, "pool")) {
+            SessionPool.forPortMap(this, portMapId);
+        }
         sendListeningStartedMsg(port, portMapId, serverChannel);
         String msg = "Listening started on port " + port;
         Platform.shelloidLogger.warn(msg);
@@ -449,6 +530,99 @@ public class VPTClient extends SimpleChannelInboundHandler<Object> {
         return this.websocketChannel;
     }
 
+    /*
+     * Channel for the TUNNEL frames of one tunnel connection: the data connection (stripe) the
+     * connection hashes to when it is up, otherwise the control connection. A connection always
+     * hashes to the same stripe, so its frames are never spread over several TCP streams.
+     */
+    public Channel getTunnelChannel(Long portMapId, long connTs) {
+        AtomicReferenceArray<DataLink> links = dataLinks;
+        if (links != null) {
+            DataLink link = links.get(getStripe(portMapId, connTs, links.length()));
+            if (link != null && link.isReady()) {
+                return link.getChannel();
+            }
+        }
+        return this.websocketChannel;
+    }
+
+    public static int getStripe(long portMapId, long connTs, int stripes) {
+        long h = portMapId * 0x9E3779B97F4A7C15L + connTs;
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        return (int) ((h & 0x7fffffffffffffffL) % stripes);
+    }
+
+    public void onDataLinkReady(DataLink link) {
+        AtomicReferenceArray<DataLink> links = dataLinks;
+        if (disconnected || links == null) {
+            link.close();
+        } else {
+            links.set(link.getStripe(), link);
+            onRelayWritabilityChanged();
+        }
+    }
+
+    /*
+     * Stops PTCP from sending new data on every tunnel connection whose relay channel is above
+     * its high watermark, and lets the others resume. Called whenever a relay channel changes
+     * writability or a stripe comes or goes, since either can change a connection's channel.
+     */
+    public void onRelayWritabilityChanged() {
+        for (MuxSession session : MuxSession.sessions.values()) {
+            Channel ch = getTunnelChannel(session.getPortMapId(), session.getConnTs());
+            session.notifyLinkWritable(ch == null || ch.isWritable());
+        }
+        for (final ConnectionInfo info : agentConnMap.values()) {
+            final PortMapInfo portMapInfo = info.getPortMapInfo();
+            if (portMapInfo == null) {
+                continue;
+            }
+            runOnOwner(info, new Runnable() {
+                @Override
+                public void run() {
+                    Channel ch = getTunnelChannel(portMapInfo.getPortMapId(), info.getConnTs());
+                    PseudoTcp ptcp = info.getPtcp();
+                    ptcp.notifyLinkWritable(ch == null || ch.isWritable());
+                    HelperFunctions.adjustClock(info.getEventLoop(), ptcp);
+                }
+            });
+        }
+    }
+
+    public void onDataLinkClosed(final int stripe, DataLink link, Throwable cause) {
+        AtomicReferenceArray<DataLink> links = dataLinks;
+        if (links == null) {
+            return;
+        }
+        if (link != null) {
+            DataLink current = links.get(stripe);
+            if (current != null && link != current) {
+                return;
+            }
+        }
+        links.set(stripe, null);
+        Channel ch = websocketChannel;
+        if (disconnected || ch == null) {
+            return;
+        }
+        onRelayWritabilityChanged();
+        if (cause != null) {
+            Platform.shelloidLogger.warn("Can't open data connection " + stripe + ": " + cause.getMessage());
+        }
+        Platform.shelloidLogger.warn("Tunnel traffic of data connection " + stripe + " falls back to the control connection. Retrying in " + Configurations.DATA_CONNECTION_RETRY_INTERVAL + " seconds.");
+        final int stripes = links.length();
+        ch.eventLoop().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!disconnected) {
+                    app.connectDataLink(VPTClient.this, stripe, stripes);
+                }
+            }
+        }, Configurations.DATA_CONNECTION_RETRY_INTERVAL, TimeUnit.SECONDS);
+    }
+
     public void send(Channel channel, ShelloidMessage msg) {
         if (messenger == null) {
             messenger.sendImmediate(msg, channel);
@@ -463,6 +637,9 @@ public class VPTClient extends SimpleChannelInboundHandler<Object> {
 
     public void clearConnection() {
         Platform.shelloidLogger.debug("Cleaning up connection details...");
+        SessionPool.remove(null);
+        BackendPool.remove(null);
+        MuxSession.closeAll(null);
         for (Map.Entry<String, ConnectionInfo> obj : agentConnMap.entrySet()) {
             if (obj.getValue().getChannel() != null) {
                 try {
@@ -481,12 +658,24 @@ public class VPTClient extends SimpleChannelInboundHandler<Object> {
                 }
             }
         }
-        agentConnMap.clear();
+        for (String connId : agentConnMap.keySet()) {
+            removeConnection(connId);
+        }
         agentPortMap.clear();
         agentSvcMap.clear();
     }
 
     private void onWsDisconnected(Throwable cause) {
+        disconnected = true;
+        AtomicReferenceArray<DataLink> links = dataLinks;
+        if (links != null) {
+            for (int i = 0; i < links.length(); i++) {
+                DataLink link = links.getAndSet(i, null);
+                if (link != null) {
+                    link.close();
+                }
+            }
+        }
         clearConnection();
         if (callback != null) {
             callback.callback(new CallbackMessage(CallbackMessage.Status.DISCONNECTED, new Object[]{cause}));
@@ -527,7 +716,7 @@ public class VPTClient extends SimpleChannelInboundHandler<Object> {
                 }
             }
             Platform.shelloidLogger.info("From doRemoteClose: removing from agentConnMap: " + connId);
-            agentConnMap.remove(connId);
+            removeConnection(connId);
         }
     }
 
@@ -553,32 +742,40 @@ public class VPTClient extends SimpleChannelInboundHandler<Object> {
         }
     }
 
-    private void startClearConnectionsTimer() {
+    /* Once for all clients: mux sessions and pools are looked after every 15 seconds. Connections
+     * have idle deadlines of their own, see IdleReaper. */
+    private static void startHousekeeping() {
         final int CLEANUP_TIMER_DURATION = 15 * 1000;
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new TimerTask() {
+        if (!housekeeping.compareAndSet(false, true)) {
+            return;
+        }
+        IdleReaper.every(CLEANUP_TIMER_DURATION, new Runnable() {
             @Override
             public void run() {
                 long currTime = System.currentTimeMillis();
-                for (Map.Entry<String, ConnectionInfo> entry : agentConnMap.entrySet()) {
-                    if (currTime - entry.getValue().getLastRcvdTs() > Configurations.CONN_IDLE_THRESHOLD) {
-                        Platform.shelloidLogger.warn("ConnInfo timeout - clearing connInfo: lastRcvTs: " + entry.getValue().getLastRcvdTs() + " curr ts: " + currTime + ". Diff: " + (currTime - entry.getValue().getLastRcvdTs()));
-                        if (entry.getValue().getPtcp() != null) {
-                            entry.getValue().getPtcp().close(true);
-                        }
-                        if (entry.getValue().getChannel() != null) {
-                            try {
-                                entry.getValue().getChannel().close().sync();
-                            } catch (InterruptedException ex) {
-                                Platform.shelloidLogger.error("InterruptedException while closing channel", ex);
-                            }
-                        }
-                        Platform.shelloidLogger.info(" Removing from timer: removing from agentConnMap: " + entry.getKey());
-                        agentConnMap.remove(entry.getKey());
-                    }
+                MuxSession.closeIdle(currTime);
+                SessionPool.maintainAll(currTime);
+                BackendPool.maintainAll(currTime);
+                if (TunnelMemory.budget.underPressure()) {
+                    Platform.shelloidLogger.info(TunnelMemory.stats());
+                } else {
+                    Platform.shelloidLogger.debug(TunnelMemory.stats());
                 }
             }
-        }, 0, CLEANUP_TIMER_DURATION);
+        });
+    }
+
+    static SvcInfo getSvcInfo(long portMapId) {
+        return agentSvcMap.get(portMapId);
+    }
+
+    /* Drops a connection and returns its buffers to the tunnel memory budget. */
+    public static void removeConnection(String connId) {
+        ConnectionInfo info = agentConnMap.remove(connId);
+        if (info != null) {
+            IdleReaper.cancel(info);
+            info.releaseMemory();
+        }
     }
 
     private void handleDeviceMappingsMsg(ShelloidMessage msg, Channel channel) {
@@ -645,115 +842,254 @@ public class VPTClient extends SimpleChannelInboundHandler<Object> {
         }
     }
 
-    public void handleTunnelMessage(ShelloidMessage msg, Channel remoteChannel) {
+    public void handleTunnelMessage(final ShelloidMessage msg, final Channel remoteChannel) {
         long connTs = msg.getConnTs();
         long portMapId = msg.getPortMapId();
-        String connId = portMapId + ":" + connTs;
-        ConnectionInfo connInfo = agentConnMap.get(connId);
-        String ctrl = msg.getCtrlMsg();
-        if ((ctrl != null) && (ctrl.equals(MessageValues.REMOTE_CLOSE))) {
-            if (connInfo != null) {
-                connInfo.hasReceivedRemoteClose = true;
-                //System.out.println("RCV-BUF-len: " + connInfo.getPtcp().getRcvBufLen());
-                if (connInfo.getPtcp().getRcvBufLen() > 0) {
-                    connInfo.setPendingClose(true);
-                } else {
-                    try {
-                        connInfo.getChannel().close().sync();
-                    } catch (InterruptedException ex) {
-                        Platform.shelloidLogger.error("InterruptedException while closing channel", ex);
-                    }
-                    connInfo.getPtcp().close(true);
-                    Platform.shelloidLogger.info("Closing from handleTunnelMessage.REMOTE_CLOSE. So removing from agentConnMap: " + connId);
-                    agentConnMap.remove(connId);
-                }
-            }
+        final String connId = portMapId + ":" + connTs;
+        MuxSession session = MuxSession.sessions.get(connId);
+        if (session == null && MuxSession.MUX.equals(msg.getCtrlMsg()) && !msg.getIsSvcSide()) {
+            session = MuxSession.accept(this, portMapId, connTs);
+        }
+        if (session != null) {
+            handleMuxMessage(msg, remoteChannel, session);
             return;
         }
-        boolean remoteIsSvcSide = msg.getIsSvcSide();
-        PseudoTcp ptcp = null;
+        ConnectionInfo connInfo = agentConnMap.get(connId);
         if (connInfo == null) {
+            String ctrl = msg.getCtrlMsg();
+            if ((ctrl != null) && (ctrl.equals(MessageValues.REMOTE_CLOSE))) {
+                return;
+            }
             //this is probably svc-side receiving msg for first time
-            if (remoteIsSvcSide) {
+            if (msg.getIsSvcSide()) {
                 //this is app-side - so we've closed the conn
                 Platform.shelloidLogger.debug("Conn Info Null for App Side. So sending Remote Close.");
                 Platform.shelloidLogger.info("Sending Remote Close (Reason: 1). ConnID: " + connId);
                 doRemoteClose(remoteChannel, null, connId, portMapId, false, connTs, null, null);
                 return;
             }
-            try {
-                //this is host-side receiving msg for first time - so set up our connInfo
-                SvcInfo svcInfo = agentSvcMap.get(portMapId);
-                if (svcInfo != null) {
-                    Channel newChannel;
-                    LocalLink currentLocalink = new LocalLink(this);
-                    ptcp = new PseudoTcp(currentLocalink.new PTCPNotifier(), 0);
-                    connInfo = new ConnectionInfo(ptcp, 0, true, connTs, System.currentTimeMillis(), false);
-                    Bootstrap b = currentLocalink.getClientBootstrap();
-                    b.attr(LocalLink.CONNECTION_MAPPING, connInfo);
-                    newChannel = b.connect(svcInfo.getHost(), svcInfo.getPort()).sync().channel();
-                    Platform.shelloidLogger.info("Establishing a new Connection (id: " + connId + "): " + newChannel);
-                    connInfo.setAgentPort(sutils.getLocalPort(newChannel));
-                    connInfo.setChannel(newChannel);
-                    connInfo.setPortMapInfo(new PortMapInfo(portMapId, newChannel));
-                    ptcp.attach(connInfo);
-                    connInfo.setLastRcvdTs(System.currentTimeMillis());
-                    agentConnMap.put(connId, connInfo);
-                    Platform.shelloidLogger.info("Svc connected with " + ((InetSocketAddress) newChannel.localAddress()).getPort());
+            //this is host-side receiving msg for first time - so set up our connInfo
+            connInfo = openSvcConnection(portMapId, connTs, connId);
+            if (connInfo == null) {
+                return;
+            }
+        }
+        final ConnectionInfo info = connInfo;
+        if (!MessageValues.REMOTE_CLOSE.equals(msg.getCtrlMsg())) {
+            /* Data goes to PTCP in one run per connection once the relay read is complete. */
+            Map<ConnectionInfo, TunnelBatch> batches = remoteChannel.attr(TUNNEL_BATCHES).get();
+            if (batches == null) {
+                batches = new LinkedHashMap<ConnectionInfo, TunnelBatch>();
+                remoteChannel.attr(TUNNEL_BATCHES).set(batches);
+            }
+            TunnelBatch batch = batches.get(info);
+            if (batch == null) {
+                batch = new TunnelBatch(connId, remoteChannel);
+                batches.put(info, batch);
+            }
+            batch.msgs.add(msg);
+            return;
+        }
+        /* Data read before the close must reach PTCP first. */
+        Map<ConnectionInfo, TunnelBatch> batches = remoteChannel.attr(TUNNEL_BATCHES).get();
+        if (batches != null) {
+            TunnelBatch batch = batches.remove(info);
+            if (batch != null) {
+                dispatchTunnelBatch(info, batch);
+            }
+        }
+        runOnOwner(info, new Runnable() {
+            @Override
+            public void run() {
+                processTunnelMessage(msg, remoteChannel, connId, info);
+            }
+        });
+    }
+
+    /* TUNNEL frames of a mux session: batched as for a connection, REMOTE_CLOSE after the data before it. */
+    private void handleMuxMessage(ShelloidMessage msg, Channel remoteChannel, MuxSession session) {
+        Map<MuxSession, TunnelBatch> batches = remoteChannel.attr(MUX_BATCHES).get();
+        if (MessageValues.REMOTE_CLOSE.equals(msg.getCtrlMsg())) {
+            TunnelBatch batch = (batches == null) ? null : batches.remove(session);
+            if (batch != null) {
+                session.dispatchTunnelBatch(batch);
+            }
+            session.onRemoteClose();
+            return;
+        }
+        if (batches == null) {
+            batches = new LinkedHashMap<MuxSession, TunnelBatch>();
+            remoteChannel.attr(MUX_BATCHES).set(batches);
+        }
+        TunnelBatch batch = batches.get(session);
+        if (batch == null) {
+            batch = new TunnelBatch(msg.getPortMapId() + ":" + msg.getConnTs(), remoteChannel);
+            batches.put(session, batch);
+        }
+        batch.msgs.add(msg);
+    }
+
+    /* Called at the end of every read from a relay channel. */
+    public void flushTunnelBatches(Channel remoteChannel) {
+        Map<MuxSession, TunnelBatch> muxBatches = remoteChannel.attr(MUX_BATCHES).get();
+        if (muxBatches != null && !muxBatches.isEmpty()) {
+            for (Map.Entry<MuxSession, TunnelBatch> entry : muxBatches.entrySet()) {
+                entry.getKey().dispatchTunnelBatch(entry.getValue());
+            }
+            muxBatches.clear();
+        }
+        Map<ConnectionInfo, TunnelBatch> batches = remoteChannel.attr(TUNNEL_BATCHES).get();
+        if (batches == null || batches.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<ConnectionInfo, TunnelBatch> entry : batches.entrySet()) {
+            dispatchTunnelBatch(entry.getKey(), entry.getValue());
+        }
+        batches.clear();
+    }
+
+    private void dispatchTunnelBatch(final ConnectionInfo info, final TunnelBatch batch) {
+        runOnOwner(info, new Runnable() {
+            @Override
+            public void run() {
+                processTunnelBatch(batch, info);
+            }
+        });
+    }
+
+    private ConnectionInfo openSvcConnection(final long portMapId, final long connTs, final String connId) {
+        SvcInfo svcInfo = agentSvcMap.get(portMapId);
+        if (svcInfo == null) {
+            Platform.shelloidLogger.error("Unexpected TUNNEL message arrived.");
+            return null;
+        }
+        LocalLink currentLocalink = new LocalLink(this);
+        BackendPool.Socket pooled = null;
+        if (LocalLink.hasTunnelOption(portMapId, "backendpool")) {
+            BackendPool pool = BackendPool.forPortMap(this, portMapId);
+            pooled = (pool == null) ? null : pool.take();
+        }
+        if (pooled != null) {
+            /* The connection belongs to the loop of the pooled socket. */
+            Channel ch = pooled.getChannel();
+            PseudoTcp ptcp = new ConfinedPseudoTcp(currentLocalink.new PTCPNotifier(), 0, LocalLink.owner(ch.eventLoop()));
+            ConnectionInfo connInfo = new ConnectionInfo(ptcp, 0, true, connTs, System.currentTimeMillis(), false, ch.eventLoop());
+            Platform.shelloidLogger.info("Taking a pooled connection (id: " + connId + "): " + ch);
+            connInfo.setChannel(ch);
+            connInfo.setPortMapInfo(new PortMapInfo(portMapId, ch));
+            ptcp.attach(connInfo);
+            applyTunnelOptions(connInfo, portMapId);
+            agentConnMap.put(connId, connInfo);
+            IdleReaper.watch(connId, connInfo);
+            pooled.claim(LocalLink.CONNECTION_MAPPING, connInfo);
+            return connInfo;
+        }
+        EventLoop loop = LocalLink.nextEventLoop();
+        final PseudoTcp ptcp = new ConfinedPseudoTcp(currentLocalink.new PTCPNotifier(), 0, LocalLink.owner(loop));
+        final ConnectionInfo connInfo = new ConnectionInfo(ptcp, 0, true, connTs, System.currentTimeMillis(), false, loop);
+        final SvcInfo.Backend backend = svcInfo.pick();
+        Bootstrap b = currentLocalink.getClientBootstrap(connInfo.getEventLoop());
+        b.attr(LocalLink.CONNECTION_MAPPING, connInfo);
+        b.attr(SvcInfo.BACKEND, backend);
+        backend.opened();
+        /* The connect completes asynchronously on the owner loop; PTCP data arriving meanwhile stays in the PTCP receive buffer. */
+        ChannelFuture cf = DnsResolver.shared().connect(b, backend.getHost(), backend.getPort());
+        Channel newChannel = cf.channel();
+        Platform.shelloidLogger.info("Establishing a new Connection (id: " + connId + "): " + newChannel);
+        connInfo.setChannel(newChannel);
+        connInfo.setPortMapInfo(new PortMapInfo(portMapId, newChannel));
+        ptcp.attach(connInfo);
+        applyTunnelOptions(connInfo, portMapId);
+        agentConnMap.put(connId, connInfo);
+        IdleReaper.watch(connId, connInfo);
+        cf.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (future.isSuccess()) {
+                    backend.succeeded();
                 } else {
-                    Platform.shelloidLogger.error("Unexpected TUNNEL message arrived.");
-                    return;
+                    Platform.shelloidLogger.error("Can't get channel from " + backend + ": " + future.cause().getMessage());
+                    backend.closed();
+                    backend.failed();
+                    doRemoteClose(getTunnelChannel(portMapId, connTs), null, connId, portMapId, true, connTs, ptcp, connInfo);
                 }
-            } catch (Exception ex) {
-                Platform.shelloidLogger.error("Can't get channel: " + ex.getMessage());
-                doRemoteClose(remoteChannel, null, connId, portMapId, true, connTs, ptcp, connInfo);
-                return;
             }
+        });
+        return connInfo;
+    }
+
+    /* Sets the PTCP options of a new service-side connection on its owner loop, ahead of the data dispatched there after them. */
+    private static void applyTunnelOptions(final ConnectionInfo info, final long portMapId) {
+        runOnOwner(info, new Runnable() {
+            @Override
+            public void run() {
+                LocalLink.applyTunnelOptions(info.getPtcp(), portMapId);
+            }
+        });
+    }
+
+    /* Runs on the owner event loop of the connection: handles REMOTE_CLOSE. */
+    private void processTunnelMessage(ShelloidMessage msg, Channel remoteChannel, String connId, ConnectionInfo connInfo) {
+        connInfo.hasReceivedRemoteClose = true;
+        //System.out.println("RCV-BUF-len: " + connInfo.getPtcp().getRcvBufLen());
+        if (connInfo.getPtcp().getRcvBufLen() > 0) {
+            connInfo.setPendingClose(true);
         } else {
-            if (connInfo.getChannel() == null) {
-                Platform.shelloidLogger.debug("Can't get channel from connection info. So sending Remote Close");
-                Platform.shelloidLogger.info("Sending Remote Close (Reason: 3)");
-                doRemoteClose(remoteChannel, null, connId, portMapId, !remoteIsSvcSide, connTs, null, null);
-                return;
-            } else {
-                ptcp = connInfo.getPtcp();
+            if (connInfo.getChannel() != null) {
+                connInfo.getChannel().close();
             }
+            connInfo.getPtcp().close(true);
+            Platform.shelloidLogger.info("Closing from handleTunnelMessage.REMOTE_CLOSE. So removing from agentConnMap: " + connId);
+            removeConnection(connId);
         }
-        if (connInfo != null) {
-            connInfo.noRouteMsgCount = 0;
+    }
+
+    /* Runs on the owner event loop of the connection: feeds the TUNNEL data frames of one relay read to PTCP together. */
+    private void processTunnelBatch(TunnelBatch batch, ConnectionInfo connInfo) {
+        ShelloidMessage msg = batch.msgs.get(0);
+        Channel remoteChannel = batch.remoteChannel;
+        String connId = batch.connId;
+        long connTs = msg.getConnTs();
+        long portMapId = msg.getPortMapId();
+        boolean remoteIsSvcSide = msg.getIsSvcSide();
+        if (connInfo.getChannel() == null) {
+            Platform.shelloidLogger.debug("Can't get channel from connection info. So sending Remote Close");
+            Platform.shelloidLogger.info("Sending Remote Close (Reason: 3)");
+            doRemoteClose(remoteChannel, null, connId, portMapId, !remoteIsSvcSide, connTs, null, null);
+            return;
         }
+        connInfo.noRouteMsgCount = 0;
+        connInfo.setLastRcvdTs(System.currentTimeMillis());
+        PseudoTcp ptcp = connInfo.getPtcp();
         if (ptcp != null) {
-            ByteString hex = msg.getData();
-            byte[] data = hex.toByteArray();//HelperFunctions.fromHexString(hex);
-            //System.out.println("CALLING ptcp.notifyPacket");
-            boolean notifyOk = ptcp.notifyPacket(data, data.length);
+            int count = batch.msgs.size();
+            byte[][] packets = new byte[count][];
+            int[] lens = new int[count];
+            for (int i = 0; i < count; i++) {
+                packets[i] = batch.msgs.get(i).getData().toByteArray();
+                lens[i] = packets[i].length;
+            }
+            boolean notifyOk = ptcp.notifyPackets(packets, lens, count);
             if (!notifyOk || (connInfo.getPendingClose() && ptcp.getSendBufLen() <= 0)) {
-                Platform.shelloidLogger.debug("ptcp.notifyPacket returned false. So sending Remote Close");
+                Platform.shelloidLogger.debug("ptcp.notifyPackets returned false. So sending Remote Close");
                 Platform.shelloidLogger.info("Sending Remote Close (Reason: 4), notify: " + notifyOk + ", pendigClose: " + connInfo.getPendingClose() + ", sendBufLen: " + ptcp.getSendBufLen());
-                doRemoteClose(remoteChannel, (connInfo == null ? null : connInfo.getChannel()), connId, portMapId, !remoteIsSvcSide, connTs, ptcp, connInfo);
+                doRemoteClose(remoteChannel, connInfo.getChannel(), connId, portMapId, !remoteIsSvcSide, connTs, ptcp, connInfo);
             }
-            HelperFunctions.adjustClock(executer, ptcp);
+            HelperFunctions.adjustClock(connInfo.getEventLoop(), ptcp);
         } else {
             throw new IllegalStateException("PTCP is NULL");
         }
     }
 }
 
-class SvcInfo{
-    private final String host;
-    private final int port;
-
-    public SvcInfo(String host, int port) {
-        this.host = host;
-        this.port = port;
-    }
+/* TUNNEL data frames for one connection from one relay read. */
+class TunnelBatch {
+    final String connId;
+    final Channel remoteChannel;
+    final List<ShelloidMessage> msgs = new ArrayList<ShelloidMessage>();
 
-    public String getHost() {
-        return host;
+    TunnelBatch(String connId, Channel remoteChannel) {
+        this.connId = connId;
+        this.remoteChannel = remoteChannel;
     }
-
-    public int getPort() {
-        return port;
-    }
-    
-}
\ No newline at end of file
+}
@@ -11,49 +11,59 @@ package org.shelloid.vpt.agent.common;
 
 import org.shelloid.ptcp.NetworkConstants;
 import org.shelloid.ptcp.PseudoTcp;
+import org.shelloid.vpt.agent.util.TunnelMemory;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
-import java.util.ArrayList;
+import io.netty.channel.EventLoop;
+import io.netty.util.Timeout;
 
 /* @author Harikrishnan */
 public class ConnectionInfo {
     private static final int MAX_RECV_BUFFER = (int) NetworkConstants.MAX_PACKET;
     public byte[] recvBuffer;
     public boolean hasReceivedRemoteClose;
-    public ArrayList<ByteBuf> pendingChannelWriteBufs;
     public int noRouteMsgCount;
     private PortMapInfo portMapInfo;
     private final PseudoTcp ptcp;
+    private final EventLoop eventLoop;
     private int agentPort;
     private final boolean svcSide;
     private boolean isConnected;
 
     private final long connTs;
-    private long lastRcvdTs;
+    /* Moved by traffic on any thread, read by IdleReaper. */
+    private volatile long lastRcvdTs;
+    private volatile Timeout idleTimeout;
     private Channel channel;
     private boolean pendingClose;
-    private byte[] pendingPtcpWriteBuf;
+    private ByteBuf pendingPtcpWriteBuf;
     public int totalReadFromPtcp;
     public int totalWrittenToPtcp;
+    /* Tunnel memory held for recvBuffer and for pendingPtcpWriteBuf. */
+    private long reservedMemory;
+    private long reservedPending;
 
-    public ConnectionInfo(PseudoTcp ptcp, int agentPort, boolean isSvcSide, long connTs, long lastRcvdTs, boolean isConnected) {
+    public ConnectionInfo(PseudoTcp ptcp, int agentPort, boolean isSvcSide, long connTs, long lastRcvdTs, boolean isConnected, EventLoop eventLoop) {
         this.ptcp = ptcp;
+        this.eventLoop = eventLoop;
         this.agentPort = agentPort;
         this.svcSide = isSvcSide;
         this.connTs = connTs;
         this.lastRcvdTs = lastRcvdTs;
         this.recvBuffer = new byte[MAX_RECV_BUFFER];
+        reservedMemory = MAX_RECV_BUFFER;
+        TunnelMemory.budget.reserve(reservedMemory);
         this.isConnected = isConnected; 
         pendingClose = false;
         hasReceivedRemoteClose = false;
-        pendingChannelWriteBufs = new ArrayList<ByteBuf>();
         totalReadFromPtcp = 0;
         totalWrittenToPtcp = 0;
         noRouteMsgCount = 0;
     }
     
     public ConnectionInfo(Channel ch, PortMapInfo info, PseudoTcp ptcp, int agentPort, boolean isSvcSide, long connTs, long lastRcvdTs, boolean isConnected) {
-        this(ptcp, agentPort, isSvcSide, connTs, lastRcvdTs, isConnected);
+        this(ptcp, agentPort, isSvcSide, connTs, lastRcvdTs, isConnected, ch.eventLoop());
         this.channel = ch;
         this.portMapInfo = info;
     }
@@ -98,6 +108,11 @@ public class ConnectionInfo {
         return ptcp;
     }
 
+    /* The event loop owning this connection: its local socket, PTCP calls and PTCP timers. */
+    public EventLoop getEventLoop() {
+        return eventLoop;
+    }
+
     public int getAgentPort() {
         return agentPort;
     }
@@ -118,6 +133,14 @@ public class ConnectionInfo {
         this.lastRcvdTs = lastRcvdTs;
     }
 
+    public Timeout getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(Timeout idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
     public boolean getPendingClose() {
         return pendingClose;
     }
@@ -126,30 +149,49 @@ public class ConnectionInfo {
         this.pendingClose = pendingClose;
     }
 
-    public byte[] getPendingPtcpWriteBuf() {
+    /* Local socket data PTCP has not accepted yet. The buffer is owned (retained) here until sent or cleared. */
+    public ByteBuf getPendingPtcpWriteBuf() {
         return pendingPtcpWriteBuf;
     }
 
     public void clearPendingPtcpWritebuf() {
-        pendingPtcpWriteBuf = null;
+        if (pendingPtcpWriteBuf != null) {
+            pendingPtcpWriteBuf.release();
+            pendingPtcpWriteBuf = null;
+        }
+        TunnelMemory.budget.release(reservedPending);
+        reservedPending = 0;
     }
 
-    public void setPendingPtcpWriteBuf(byte[] data, int offset, int size) {
-        //System.out.println("Size: " + size + " , offset: " + offset);
-        pendingPtcpWriteBuf = new byte[size - offset];
-        System.arraycopy(data, offset, pendingPtcpWriteBuf, 0, pendingPtcpWriteBuf.length);
-    }
-
-    public ArrayList<ByteBuf> getPendingChannelWriteBufs() {
-        return pendingChannelWriteBufs;
-    }
-
-    public void clearPendingChannelWriteBufs() {
-        pendingChannelWriteBufs.clear();
-        pendingChannelWriteBufs = null;
+    public void addPendingPtcpWriteBuf(ByteBuf buf) {
+        reservedPending += buf.readableBytes();
+        TunnelMemory.budget.reserve(buf.readableBytes());
+        if (pendingPtcpWriteBuf == null) {
+            pendingPtcpWriteBuf = buf;
+        } else {
+            pendingPtcpWriteBuf = Unpooled.wrappedBuffer(pendingPtcpWriteBuf, buf);
+        }
     }
 
     public boolean isPendingPtcpWriteBufEmpty() {
         return pendingPtcpWriteBuf == null;
     }
+
+    /* Returns everything this connection holds to the tunnel memory budget; called once it leaves agentConnMap. */
+    public void releaseMemory() {
+        TunnelMemory.budget.release(reservedMemory + reservedPending);
+        reservedMemory = 0;
+        reservedPending = 0;
+        /* PTCP buffers may be off-heap and pooled, so they are given back on the owner loop only. */
+        if (eventLoop.inEventLoop()) {
+            ptcp.cleanup();
+        } else {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ptcp.cleanup();
+                }
+            });
+        }
+    }
 }
@@ -17,11 +17,52 @@ import java.util.*;
 public class Configurations {
 
     public static final String WEBSOCKET_PATH = "/websocket";
+    public static final String DATA_CONNECTION_HEADER = "X-Shelloid-Data-Connection";
+    public static final int DATA_CONNECTION_RETRY_INTERVAL = 5;
     public static final int MAX_NO_ROUTE_MSG = 5;
+    /* Outbound buffer watermarks: local sockets gate PTCP reads, relay connections gate PTCP sends. */
+    public static final int LOCAL_WRITE_BUFFER_HIGH_WATER_MARK = 256 * 1024;
+    public static final int LOCAL_WRITE_BUFFER_LOW_WATER_MARK = 64 * 1024;
+    public static final int RELAY_WRITE_BUFFER_HIGH_WATER_MARK = 1024 * 1024;
+    public static final int RELAY_WRITE_BUFFER_LOW_WATER_MARK = 512 * 1024;
+    /* Pending connections the app-side listeners let the kernel queue; a burst of connects beyond it is refused or retried. */
+    public static final int LOCAL_ACCEPT_BACKLOG = 1024;
+    /* Admission control: how often and for how long a new connection waits for tunnel memory, and how many may wait. */
+    public static final int ADMISSION_RETRY_INTERVAL = 250;
+    public static final int ADMISSION_MAX_WAIT = 10 * 1000;
+    public static final int ADMISSION_MAX_QUEUED = 256;
+    /* Session pools: at most this many warm sessions per port mapping, sized from the arrival rate over about this long. */
+    public static final int SESSION_POOL_MAX = 16;
+    public static final long SESSION_POOL_RATE_WINDOW = 10 * 1000;
+    /* Backend pools: at most this many pre-connected service sockets per port mapping, each idle for at most
+     * BACKEND_POOL_MAX_IDLE and holding at most BACKEND_POOL_MAX_HELD bytes the service sends on it meanwhile;
+     * no new connects for BACKEND_POOL_RETRY_INTERVAL after one failed. */
+    public static final int BACKEND_POOL_MAX = 8;
+    public static final long BACKEND_POOL_MAX_IDLE = 60 * 1000;
+    public static final int BACKEND_POOL_MAX_HELD = 64 * 1024;
+    public static final long BACKEND_POOL_RETRY_INTERVAL = 15 * 1000;
+    /* Outlier ejection of the backends of a service: after this many failures in a row, for this long, doubling
+     * up to BACKEND_EJECT_MAX_TIME for repeat offenders, with at most this share of the backends out at once. */
+    public static final int BACKEND_EJECT_FAILURES = 3;
+    public static final long BACKEND_EJECT_TIME = 30 * 1000;
+    public static final long BACKEND_EJECT_MAX_TIME = 5 * 60 * 1000;
+    public static final int BACKEND_MAX_EJECTED_PERCENT = 50;
+    /* Host name resolution: how long to wait for a DNS server; the bounds of the TTLs of addresses and of names
+     * that do not exist, the latter when their zone does not say; how long addresses from the system resolver,
+     * which has no TTLs to give, are kept. */
+    public static final long DNS_TIMEOUT = 2 * 1000;
+    public static final long DNS_MIN_TTL = 1000;
+    public static final long DNS_MAX_TTL = 60 * 60 * 1000;
+    public static final long DNS_NEGATIVE_TTL = 10 * 1000;
+    public static final long DNS_MAX_NEGATIVE_TTL = 5 * 60 * 1000;
+    public static final long DNS_SYSTEM_TTL = 30 * 1000;
     public static int PING_SEND_INTERVAL = 30;
     private static final Properties props;
     private static final Properties defaultProps = new Properties();
     public static final int CONN_IDLE_THRESHOLD = 5 * 60 * 1000;
+    /* Idle deadlines: the timer wheel moves a slot this often, over this many slots. */
+    public static final long IDLE_WHEEL_TICK = 1000;
+    public static final int IDLE_WHEEL_SIZE = 512;
     public static int maxConcurrentMessages;
     public static String serverCn;
     
@@ -33,6 +74,9 @@ public class Configurations {
         defaultProps.put(ConfigParams.STARTING_PORT_NUMBER.toString() , "5000");
         defaultProps.put(ConfigParams.LOGBACK_FILE_PATH.toString() , "logback.xml");
         defaultProps.put(ConfigParams.LOG_FILE_PATH.toString() , ".");
+        defaultProps.put(ConfigParams.DATA_CONNECTIONS.toString() , "0");
+        defaultProps.put(ConfigParams.TUNNEL_OPTIONS.toString() , "interactive");
+        defaultProps.put(ConfigParams.TUNNEL_MEMORY.toString() , "0");
         props = new Properties(defaultProps);
     }
 
@@ -41,6 +85,7 @@ public class Configurations {
         props.load(input);
         maxConcurrentMessages = Integer.parseInt(get(ConfigParams.MAX_CONCURRENT_MESSAGES));
         serverCn = get(ConfigParams.SERVER_CN);
+        TunnelMemory.configure(Long.parseLong(get(ConfigParams.TUNNEL_MEMORY)));
     }
 
     public static String get(ConfigParams key) {
@@ -49,6 +94,14 @@ public class Configurations {
         }
     }
 
+    /* Per port-mapping setting: "<key>.<portMapId>" if present, else the agent-wide value. */
+    public static String get(ConfigParams key, long portMapId) {
+        synchronized (props) {
+            String value = props.getProperty(key + "." + portMapId);
+            return value != null ? value : props.getProperty(key + "");
+        }
+    }
+
     public static void put(ConfigParams key, String value) {
         synchronized (props) {
             props.put(key.toString(), value);
@@ -83,7 +136,12 @@ public class Configurations {
         PROXY_PASSWORD("client.proxy.password"),
         LOG_FILE_PATH("client.logFilePath"),
         SERVER_CN("server.cn"),
-        ADDON_DIR("client.addonDir");
+        ADDON_DIR("client.addonDir"),
+        DATA_CONNECTIONS("client.dataConnections"),
+        TUNNEL_OPTIONS("client.tunnelOptions"),
+        TUNNEL_MEMORY("client.tunnelMemoryMB"),
+        BACKENDS("client.backends"),
+        DNS_SERVERS("client.dnsServers");
         private final String text;
 
         private ConfigParams(final String text) {
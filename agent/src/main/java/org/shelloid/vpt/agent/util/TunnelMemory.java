@@ -0,0 +1,88 @@
+/*
+ Copyright (c) Shelloid Systems LLP. All rights reserved.
+ The use and distribution terms for this software are covered by the
+ GNU General Public License 3.0 (http://www.gnu.org/copyleft/gpl.html)
+ which can be found in the file LICENSE at the root of this distribution.
+ By using this software in any fashion, you are agreeing to be bound by
+ the terms of this license.
+ You must not remove this notice, or any other, from this software.
+ */
+
+package org.shelloid.vpt.agent.util;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.shelloid.ptcp.MemoryBudget;
+import org.shelloid.ptcp.NetworkConstants;
+
+/*
+ * Agent-wide accounting of tunnel buffer memory. PTCP send and receive buffers reserve from
+ * MemoryBudget.DEFAULT on their own; ConnectionInfo adds its scratch buffer, local socket data
+ * waiting for PTCP and data queued on the local socket. PTCP windows shrink back while the
+ * budget is under pressure, and new app-side connections are only admitted below that mark.
+ */
+public class TunnelMemory {
+
+    public static final MemoryBudget budget = MemoryBudget.DEFAULT;
+    /* What a new connection reserves up front: initial PTCP buffers and the ConnectionInfo scratch buffer. */
+    public static final long CONNECTION_MINIMUM = NetworkConstants.INITIAL_RCV_BUF + NetworkConstants.INITIAL_SND_BUF + NetworkConstants.MAX_PACKET;
+    private static final AtomicLong admitted = new AtomicLong();
+    private static final AtomicLong queued = new AtomicLong();
+    private static final AtomicLong refused = new AtomicLong();
+    private static final AtomicInteger waiting = new AtomicInteger();
+
+    /* limitMB of 0 takes half the maximum heap. */
+    public static void configure(long limitMB) {
+        budget.setLimit(limitMB > 0 ? limitMB * 1024 * 1024 : Runtime.getRuntime().maxMemory() / 2);
+    }
+
+    public static boolean canAdmit() {
+        return budget.canAdmit(CONNECTION_MINIMUM);
+    }
+
+    public static void admitted() {
+        admitted.incrementAndGet();
+    }
+
+    /* App-side connections admitted since start. */
+    public static long admittedCount() {
+        return admitted.get();
+    }
+
+    /* Returns false if too many connections are already waiting for memory. */
+    public static boolean startWaiting() {
+        if (waiting.incrementAndGet() > Configurations.ADMISSION_MAX_QUEUED) {
+            waiting.decrementAndGet();
+            return false;
+        }
+        queued.incrementAndGet();
+        return true;
+    }
+
+    public static void stopWaiting() {
+        waiting.decrementAndGet();
+    }
+
+    public static void refused() {
+        refused.incrementAndGet();
+    }
+
+    /* Reserves bytes written to a local socket until Netty has written them out. */
+    public static void reserveOutbound(ChannelFuture write, final long bytes) {
+        budget.reserve(bytes);
+        write.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                budget.release(bytes);
+            }
+        });
+    }
+
+    public static String stats() {
+        return "Tunnel memory: " + (budget.used() >> 20) + " of " + (budget.limit() >> 20) + " MB used (peak " + (budget.peak() >> 20)
+                + " MB), " + budget.reservations() + " reservations, " + budget.denials() + " denied; connections: "
+                + admitted.get() + " admitted, " + queued.get() + " queued, " + refused.get() + " refused, " + waiting.get() + " waiting";
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ Copyright (c) Shelloid Systems LLP. All rights reserved.
+ The use and distribution terms for this software are covered by the
+ GNU General Public License 3.0 (http://www.gnu.org/copyleft/gpl.html)
+ which can be found in the file LICENSE at the root of this distribution.
+ By using this software in any fashion, you are agreeing to be bound by
+ the terms of this license.
+ You must not remove this notice, or any other, from this software.
+ */
+package org.shelloid.vpt.agent;
+
+import ch.qos.logback.classic.Level;
+import io.netty.channel.Channel;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.shelloid.vpt.agent.common.PortMapInfo;
+import org.shelloid.vpt.agent.util.TunnelMemory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Connection churn through the app side of a port mapping: client threads connect to a local
+ * listener and close at once, with an RST, as fast as they can. Each accept goes the whole way
+ * of a real one - admission, a connTs, a ConnectionInfo in agentConnMap with its idle deadline,
+ * tunnel options and the PTCP connect - then is torn down by the close. There is no relay, so
+ * what goes out is dropped. Prints accepts per second after a warm-up, then how fast threads
+ * racing on generateConnectionTs get IDs, and checks those are unique. It lives with the tests,
+ * out of the agent jar; run it on the test classpath:
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.shelloid.vpt.agent.ChurnBenchmark -Dexec.args="[seconds] [clients]"
+ */
+public class ChurnBenchmark {
+
+    private static final long PORT_MAP_ID = 1;
+    private static final long WARMUP_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 10;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.ERROR);
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger("org.shelloid.vpt")).setLevel(Level.ERROR);
+
+        VPTClient client = new VPTClient(null, null, null, null);
+        Channel server = new LocalLink(client).bind(0);
+        int port = ((InetSocketAddress) server.localAddress()).getPort();
+        VPTClient.agentPortMap.put(port, new PortMapInfo(PORT_MAP_ID, server));
+        System.out.println("port mapping " + PORT_MAP_ID + " on " + port + ", " + clients + " clients, " + seconds + " s");
+
+        accepts(new InetSocketAddress("127.0.0.1", port), clients, seconds * 1000);
+        connectionIds(clients, seconds * 1000 / 2);
+        server.close().sync();
+        System.exit(0);
+    }
+
+    private static void accepts(final InetSocketAddress address, int clients, long millis) throws InterruptedException {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong failed = new AtomicLong();
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            threads[i] = new Thread("churn-" + i) {
+                @Override
+                public void run() {
+                    while (!stop.get()) {
+                        Socket s = new Socket();
+                        try {
+                            s.setSoLinger(true, 0);
+                            s.connect(address, 1000);
+                        } catch (Exception ex) {
+                            failed.incrementAndGet();
+                        } finally {
+                            try {
+                                s.close();
+                            } catch (Exception ex) {
+                            }
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        Thread.sleep(WARMUP_MILLIS);
+        long start = System.nanoTime();
+        long admittedBefore = TunnelMemory.admittedCount();
+        Thread.sleep(millis);
+        long admitted = TunnelMemory.admittedCount() - admittedBefore;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        stop.set(true);
+        for (Thread t : threads) {
+            t.join();
+        }
+        Thread.sleep(1000);
+        System.out.println(String.format("accepts/s %.0f (%d in %.1f s), %d failed connects, %d left in agentConnMap",
+                admitted / elapsed, admitted, elapsed, failed.get(), VPTClient.agentConnMap.size()));
+        System.out.println(TunnelMemory.stats());
+    }
+
+    private static void connectionIds(int threadCount, final long millis) throws InterruptedException {
+        final long[][] ids = new long[threadCount][];
+        final int[] counts = new int[threadCount];
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int n = i;
+            threads[i] = new Thread("connts-" + i) {
+                @Override
+                public void run() {
+                    long[] mine = new long[1 << 18];
+                    int count = 0;
+                    long end = System.currentTimeMillis() + millis;
+                    while (System.currentTimeMillis() < end) {
+                        long connTs = LocalLink.generateConnectionTs();
+                        if (count < mine.length) {
+                            mine[count] = connTs;
+                        }
+                        count++;
+                    }
+                    ids[n] = mine;
+                    counts[n] = count;
+                }
+            };
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long total = 0;
+        int checked = 0;
+        for (int i = 0; i < threadCount; i++) {
+            total += counts[i];
+            checked += Math.min(counts[i], ids[i].length);
+        }
+        long[] all = new long[checked];
+        int k = 0;
+        for (int i = 0; i < threadCount; i++) {
+            int n = Math.min(counts[i], ids[i].length);
+            System.arraycopy(ids[i], 0, all, k, n);
+            k += n;
+        }
+        Arrays.sort(all);
+        int duplicates = 0;
+        for (int i = 1; i < all.length; i++) {
+            if (all[i] == all[i - 1]) {
+                duplicates++;
+            }
+        }
+        long ahead = LocalLink.generateConnectionTs() - System.currentTimeMillis();
+        System.out.println(String.format("connTs/s %.0f over %d threads, %d duplicates in %d checked, %d ms ahead of the clock",
+                total * 1000.0 / millis, threadCount, duplicates, checked, ahead));
+    }
+}
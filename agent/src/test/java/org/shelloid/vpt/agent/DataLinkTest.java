@@ -0,0 +1,286 @@
+/*
+ Copyright (c) Shelloid Systems LLP. All rights reserved.
+ The use and distribution terms for this software are covered by the
+ GNU General Public License 3.0 (http://www.gnu.org/copyleft/gpl.html)
+ which can be found in the file LICENSE at the root of this distribution.
+ By using this software in any fashion, you are agreeing to be bound by
+ the terms of this license.
+ You must not remove this notice, or any other, from this software.
+ */
+package org.shelloid.vpt.agent;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.shelloid.common.messages.MessageValues;
+import org.shelloid.common.messages.ShelloidMessageModel.MessageTypes;
+import org.shelloid.common.messages.ShelloidMessageModel.ShelloidMessage;
+import org.shelloid.vpt.agent.util.AgentReliableMessenger;
+import org.shelloid.vpt.agent.util.Configurations;
+import static org.junit.Assert.*;
+
+/*
+ * A VPTClient with one data connection against a relay stand-in on the loopback: a plain
+ * WebSocket server that tells data connections by their header and keeps every message it
+ * reads. The App below opens data connections the way App.connectDataLink does, minus TLS.
+ */
+public class DataLinkTest {
+
+    private static final long PORT_MAP_ID = 7;
+    private static final long CONN_TS = 1;
+    private static final byte[] DATA = {1, 2, 3};
+
+    private EventLoopGroup relayGroup;
+    private EventLoopGroup agentGroup;
+    private Relay relay;
+    private Channel relayChannel;
+    private URI uri;
+    private Channel control;
+
+    @Before
+    public void setUp() throws Exception {
+        Configurations.put(Configurations.ConfigParams.DATA_CONNECTIONS, "1");
+        relayGroup = new NioEventLoopGroup(1);
+        agentGroup = new NioEventLoopGroup(1);
+        relay = new Relay();
+        relayChannel = new ServerBootstrap()
+                .group(relayGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec(), new HttpObjectAggregator(65536), new RelayConnection(relay));
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+        uri = new URI("ws://127.0.0.1:" + ((InetSocketAddress) relayChannel.localAddress()).getPort() + Configurations.WEBSOCKET_PATH);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (control != null) {
+            control.close().awaitUninterruptibly(5000);
+        }
+        relayChannel.close().awaitUninterruptibly(5000);
+        agentGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly(5000);
+        relayGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly(5000);
+        Configurations.put(Configurations.ConfigParams.DATA_CONNECTIONS, "0");
+    }
+
+    @Test
+    public void tunnelFramesTakeTheDataLink() throws Exception {
+        VPTClient client = connect();
+        assertNotNull(relay.dataLinks.poll(5, TimeUnit.SECONDS));
+        assertTrue(awaitDataLink(client, true));
+        sendTunnel(client);
+        Received received = relay.nextTunnel();
+        assertTrue(received.onDataLink);
+        assertEquals(PORT_MAP_ID, received.msg.getPortMapId());
+        assertEquals(CONN_TS, received.msg.getConnTs());
+    }
+
+    @Test
+    public void tunnelFramesFromTheRelayAreReadOffTheDataLink() throws Exception {
+        VPTClient client = connect();
+        Channel dataLink = relay.dataLinks.poll(5, TimeUnit.SECONDS);
+        assertNotNull(dataLink);
+        assertTrue(awaitDataLink(client, true));
+        /* Data for an app-side connection the agent does not know: it answers REMOTE_CLOSE on the link the data came in on. */
+        ShelloidMessage.Builder msg = ShelloidMessage.newBuilder();
+        msg.setType(MessageTypes.URGENT);
+        msg.setSubType(MessageTypes.TUNNEL);
+        msg.setPortMapId(PORT_MAP_ID);
+        msg.setIsSvcSide(true);
+        msg.setConnTs(CONN_TS);
+        dataLink.writeAndFlush(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(msg.build().toByteArray())));
+        Received received = relay.nextTunnel();
+        assertTrue(received.onDataLink);
+        assertEquals(MessageValues.REMOTE_CLOSE, received.msg.getCtrlMsg());
+        assertFalse(received.msg.getIsSvcSide());
+    }
+
+    @Test
+    public void tunnelFramesFallBackToTheControlLinkUntilTheDataLinkIsBack() throws Exception {
+        VPTClient client = connect();
+        Channel dataLink = relay.dataLinks.poll(5, TimeUnit.SECONDS);
+        assertNotNull(dataLink);
+        assertTrue(awaitDataLink(client, true));
+
+        dataLink.close();
+        assertTrue(awaitDataLink(client, false));
+        sendTunnel(client);
+        assertFalse(relay.nextTunnel().onDataLink);
+
+        /* Opened anew after DATA_CONNECTION_RETRY_INTERVAL. */
+        assertNotNull(relay.dataLinks.poll(Configurations.DATA_CONNECTION_RETRY_INTERVAL + 5, TimeUnit.SECONDS));
+        assertTrue(awaitDataLink(client, true));
+        sendTunnel(client);
+        assertTrue(relay.nextTunnel().onDataLink);
+    }
+
+    /* Opens the control connection; the client asks the App for its data connection once the handshake is done. */
+    private VPTClient connect() throws Exception {
+        VPTClient client = new VPTClient(WebSocketClientHandshakerFactory.newHandshaker(uri, WebSocketVersion.V13, null, false, new DefaultHttpHeaders()),
+                null, new Messenger(), new RelayApp());
+        control = bootstrap(client).connect(uri.getHost(), uri.getPort()).sync().channel();
+        assertTrue(client.handshakeFuture().await(5, TimeUnit.SECONDS));
+        assertTrue(client.handshakeFuture().isSuccess());
+        return client;
+    }
+
+    private Bootstrap bootstrap(final ChannelHandler handler) {
+        return new Bootstrap()
+                .group(agentGroup)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpClientCodec(), new HttpObjectAggregator(65536), handler);
+                    }
+                });
+    }
+
+    private static void sendTunnel(VPTClient client) {
+        client.sendTunnelMessage(client.getTunnelChannel(PORT_MAP_ID, CONN_TS), PORT_MAP_ID, false, CONN_TS, DATA, DATA.length, null);
+    }
+
+    /* Waits for the connection's TUNNEL frames to take the data link, or the control link if onDataLink is false. */
+    private static boolean awaitDataLink(VPTClient client, boolean onDataLink) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            Channel ch = client.getTunnelChannel(PORT_MAP_ID, CONN_TS);
+            if (ch != null && (ch != client.getChannel()) == onDataLink) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    /* App.connectDataLink against the relay stand-in. */
+    private class RelayApp extends App {
+
+        RelayApp() throws Exception {
+            super();
+        }
+
+        @Override
+        public void connectDataLink(final VPTClient owner, final int stripe, final int stripes) {
+            HttpHeaders headers = new DefaultHttpHeaders();
+            headers.add(Configurations.DATA_CONNECTION_HEADER, stripe + "/" + stripes);
+            DataLink link = new DataLink(WebSocketClientHandshakerFactory.newHandshaker(uri, WebSocketVersion.V13, null, false, headers), owner, stripe);
+            bootstrap(link).connect(uri.getHost(), uri.getPort()).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    if (!future.isSuccess()) {
+                        owner.onDataLinkClosed(stripe, null, future.cause());
+                    }
+                }
+            });
+        }
+    }
+
+    /* Reliable messaging without the message store on disk. */
+    private static class Messenger extends AgentReliableMessenger {
+
+        @Override
+        public long getLastSendAckNum() {
+            return 0;
+        }
+    }
+
+    private static class Received {
+
+        final ShelloidMessage msg;
+        final boolean onDataLink;
+
+        Received(ShelloidMessage msg, boolean onDataLink) {
+            this.msg = msg;
+            this.onDataLink = onDataLink;
+        }
+    }
+
+    private static class Relay {
+
+        /* Every message read, on either kind of connection. */
+        final BlockingQueue<Received> received = new LinkedBlockingQueue<Received>();
+        /* Data connections, as their handshakes are done. */
+        final BlockingQueue<Channel> dataLinks = new LinkedBlockingQueue<Channel>();
+
+        /* The next TUNNEL message, skipping the control traffic (ACKs) before it. */
+        Received nextTunnel() throws InterruptedException {
+            while (true) {
+                Received r = received.poll(5, TimeUnit.SECONDS);
+                assertNotNull("no TUNNEL message", r);
+                if (r.msg.getSubType() == MessageTypes.TUNNEL) {
+                    return r;
+                }
+            }
+        }
+    }
+
+    private static class RelayConnection extends SimpleChannelInboundHandler<Object> {
+
+        private final Relay relay;
+        private WebSocketServerHandshaker handshaker;
+        private boolean dataLink;
+
+        RelayConnection(Relay relay) {
+            this.relay = relay;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof FullHttpRequest) {
+                FullHttpRequest request = (FullHttpRequest) msg;
+                String location = "ws://" + request.headers().get(HttpHeaders.Names.HOST) + Configurations.WEBSOCKET_PATH;
+                handshaker = new WebSocketServerHandshakerFactory(location, null, false).newHandshaker(request);
+                dataLink = request.headers().contains(Configurations.DATA_CONNECTION_HEADER);
+                handshaker.handshake(ctx.channel(), request);
+                if (dataLink) {
+                    relay.dataLinks.add(ctx.channel());
+                }
+            } else if (msg instanceof BinaryWebSocketFrame) {
+                ByteBuf b = ((BinaryWebSocketFrame) msg).content();
+                byte[] bytes = new byte[b.readableBytes()];
+                b.getBytes(b.readerIndex(), bytes);
+                relay.received.add(new Received(ShelloidMessage.parseFrom(bytes), dataLink));
+            } else if (msg instanceof CloseWebSocketFrame) {
+                ctx.close();
+            }
+        }
+    }
+}
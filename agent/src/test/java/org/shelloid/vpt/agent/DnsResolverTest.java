@@ -0,0 +1,434 @@
+/*
+ Copyright (c) Shelloid Systems LLP. All rights reserved.
+ The use and distribution terms for this software are covered by the
+ GNU General Public License 3.0 (http://www.gnu.org/copyleft/gpl.html)
+ which can be found in the file LICENSE at the root of this distribution.
+ By using this software in any fashion, you are agreeing to be bound by
+ the terms of this license.
+ You must not remove this notice, or any other, from this software.
+ */
+package org.shelloid.vpt.agent;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.Future;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/*
+ * A DnsResolver pointed at stub servers on the loopback, which answer from a small zone the way a
+ * real server would, names compressed and all, and count what they are asked. The codec tests
+ * send queries from DnsResolver.query to a stub and take the answers through DnsResolver.parse.
+ */
+public class DnsResolverTest {
+
+    private EventLoopGroup group;
+    private final List<StubServer> stubs = new ArrayList<StubServer>();
+    private StubServer stub;
+    private int nextId = 0x1234;
+
+    @Before
+    public void setUp() throws IOException {
+        group = new NioEventLoopGroup(1);
+        stub = stub(true);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        for (StubServer s : stubs) {
+            s.close();
+        }
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly(5000);
+    }
+
+    @Test
+    public void cachesAddressesForTheirTtl() throws InterruptedException {
+        DnsResolver resolver = resolver(stub);
+        assertEquals(address(192, 0, 2, 10), await(resolver.resolve("www.example.com")));
+        Future<InetAddress> again = resolver.resolve("WWW.example.com.");
+        assertTrue(again.isDone());
+        assertEquals(address(192, 0, 2, 10), again.getNow());
+        assertEquals(1, stub.asked("www.example.com"));
+    }
+
+    @Test
+    public void lookupsInFlightShareOneQuery() throws InterruptedException {
+        DnsResolver resolver = resolver(stub);
+        List<Future<InetAddress>> resolved = new ArrayList<Future<InetAddress>>();
+        for (int i = 0; i < 5; i++) {
+            resolved.add(resolver.resolve("slow.example.com"));
+        }
+        for (Future<InetAddress> f : resolved) {
+            assertEquals(address(192, 0, 2, 30), await(f));
+        }
+        assertEquals(1, stub.asked("slow.example.com"));
+    }
+
+    @Test
+    public void cachesNamesThatDoNotExist() throws InterruptedException {
+        DnsResolver resolver = resolver(stub);
+        Future<InetAddress> resolved = resolver.resolve("missing.example.com");
+        assertNull(await(resolved));
+        assertTrue(resolved.cause() instanceof UnknownHostException);
+        Future<InetAddress> again = resolver.resolve("missing.example.com");
+        assertTrue(again.isDone());
+        assertTrue(again.cause() instanceof UnknownHostException);
+        assertEquals(1, stub.asked("missing.example.com"));
+    }
+
+    @Test
+    public void refreshesInTheBackgroundNearTheEndOfTheTtl() throws InterruptedException {
+        DnsResolver resolver = resolver(stub);
+        /* A TTL of 4 s: looked up anew after 3 s, gone after 4. */
+        assertEquals(address(192, 0, 2, 20), await(resolver.resolve("short.example.com")));
+        Thread.sleep(3200);
+        Future<InetAddress> cached = resolver.resolve("short.example.com");
+        assertTrue(cached.isDone());
+        assertEquals(address(192, 0, 2, 20), cached.getNow());
+        assertTrue(stub.awaitAsked("short.example.com", 2));
+    }
+
+    @Test
+    public void servesTheLastAddressesWhenLookupsFail() throws InterruptedException {
+        DnsResolver resolver = resolver(stub);
+        assertEquals(address(192, 0, 2, 50), await(resolver.resolve("flaky.example.com")));
+        stub.failing = true;
+        /* Past its TTL of 1 s. */
+        Thread.sleep(1200);
+        assertEquals(address(192, 0, 2, 50), await(resolver.resolve("flaky.example.com")));
+        assertEquals(2, stub.asked("flaky.example.com"));
+    }
+
+    @Test
+    public void failsOverToTheNextServer() throws IOException, InterruptedException {
+        StubServer silent = stub(false);
+        DnsResolver resolver = resolver(silent, stub);
+        assertEquals(address(192, 0, 2, 10), await(resolver.resolve("www.example.com")));
+        assertEquals(1, silent.asked("www.example.com"));
+        assertEquals(1, stub.asked("www.example.com"));
+    }
+
+    @Test
+    public void truncatedAnswerGoesToTheNextServer() throws IOException, InterruptedException {
+        StubServer second = stub(true);
+        DnsResolver resolver = resolver(stub, second);
+        Future<InetAddress> resolved = resolver.resolve("big.example.com");
+        assertNull(await(resolved));
+        assertTrue(resolved.cause() instanceof UnknownHostException);
+        assertEquals(1, stub.asked("big.example.com"));
+        assertEquals(1, second.asked("big.example.com"));
+    }
+
+    @Test
+    public void everyQueryComesFromAPortOfItsOwn() throws InterruptedException {
+        DnsResolver resolver = resolver(stub);
+        String[] names = {"www.example.com", "short.example.com", "flaky.example.com", "slow.example.com"};
+        for (String name : names) {
+            await(resolver.resolve(name));
+        }
+        assertEquals(names.length, stub.asked.size());
+        assertEquals(names.length, new java.util.HashSet<Integer>(stub.ports).size());
+    }
+
+    @Test
+    public void badNameFailsAtOnce() {
+        DnsResolver resolver = resolver(stub);
+        Future<InetAddress> resolved = resolver.resolve("a..example.com");
+        assertTrue(resolved.isDone());
+        assertTrue(resolved.cause() instanceof UnknownHostException);
+        assertTrue(stub.asked.isEmpty());
+    }
+
+    @Test
+    public void followsACompressedCname() throws IOException {
+        DnsResolver.Answer answer = ask("www.example.com", DnsResolver.TYPE_A);
+        assertNotNull(answer);
+        assertEquals(0, answer.rcode);
+        assertFalse(answer.truncated);
+        assertEquals(1, answer.addresses.size());
+        assertEquals(address(192, 0, 2, 10), answer.addresses.get(0));
+        assertEquals("www.example.com", answer.addresses.get(0).getHostName());
+        /* The lesser of the CNAME and the A record. */
+        assertEquals(60, answer.ttl);
+        assertEquals(-1, answer.negativeTtl);
+    }
+
+    @Test
+    public void nxdomainTakesItsTtlFromTheSoa() throws IOException {
+        DnsResolver.Answer answer = ask("missing.example.com", DnsResolver.TYPE_A);
+        assertNotNull(answer);
+        assertEquals(DnsResolver.RCODE_NXDOMAIN, answer.rcode);
+        assertTrue(answer.addresses.isEmpty());
+        /* The SOA minimum, it being below the TTL of the record. */
+        assertEquals(120, answer.negativeTtl);
+    }
+
+    @Test
+    public void truncatedAnswerIsFlagged() throws IOException {
+        DnsResolver.Answer answer = ask("big.example.com", DnsResolver.TYPE_A);
+        assertNotNull(answer);
+        assertTrue(answer.truncated);
+        assertTrue(answer.addresses.isEmpty());
+    }
+
+    @Test
+    public void nameOfManyLabelsIsRead() throws IOException {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            name.append("a.");
+        }
+        name.append("deep.example.com");
+        DnsResolver.Answer answer = ask(name.toString(), DnsResolver.TYPE_A);
+        assertNotNull(answer);
+        assertEquals(1, answer.addresses.size());
+        assertEquals(address(192, 0, 2, 40), answer.addresses.get(0));
+    }
+
+    @Test
+    public void answerToAnotherQueryIsIgnored() throws IOException {
+        byte[] response = exchange(DnsResolver.query(7, "www.example.com", DnsResolver.TYPE_A));
+        assertNull(DnsResolver.parse(response, response.length, 8, "www.example.com", DnsResolver.TYPE_A));
+        assertNull(DnsResolver.parse(response, response.length, 7, "web.example.com", DnsResolver.TYPE_A));
+        assertNull(DnsResolver.parse(response, response.length - 3, 7, "www.example.com", DnsResolver.TYPE_A));
+    }
+
+    @Test
+    public void badNamesAreNotQueried() {
+        StringBuilder label = new StringBuilder();
+        for (int i = 0; i < 64; i++) {
+            label.append('a');
+        }
+        String[] bad = {"", ".", "a..b", ".a", label + ".example.com", "bücher.example.com"};
+        for (String name : bad) {
+            assertFalse(name, DnsResolver.validName(name));
+            try {
+                DnsResolver.query(1, name, DnsResolver.TYPE_A);
+                fail(name);
+            } catch (IllegalArgumentException ex) {
+                /* Expected. */
+            }
+        }
+        assertTrue(DnsResolver.validName(label.substring(1) + ".example.com"));
+    }
+
+    private StubServer stub(boolean answers) throws IOException {
+        StubServer s = new StubServer(answers);
+        stubs.add(s);
+        return s;
+    }
+
+    private DnsResolver resolver(StubServer... servers) {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (StubServer s : servers) {
+            addresses.add(s.address());
+        }
+        return new DnsResolver(group.next(), addresses, false);
+    }
+
+    /* The address resolved, or null if the lookup failed. */
+    private static InetAddress await(Future<InetAddress> resolved) throws InterruptedException {
+        assertTrue("lookup timed out", resolved.await(10, TimeUnit.SECONDS));
+        return resolved.getNow();
+    }
+
+    private static InetAddress address(int a, int b, int c, int d) {
+        try {
+            return InetAddress.getByAddress(new byte[] {(byte) a, (byte) b, (byte) c, (byte) d});
+        } catch (UnknownHostException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    private DnsResolver.Answer ask(String name, int type) throws IOException {
+        int id = nextId++;
+        byte[] response = exchange(DnsResolver.query(id, name, type));
+        return DnsResolver.parse(response, response.length, id, name, type);
+    }
+
+    private byte[] exchange(byte[] query) throws IOException {
+        DatagramSocket client = new DatagramSocket();
+        try {
+            client.setSoTimeout(2000);
+            client.send(new DatagramPacket(query, query.length, stub.address()));
+            byte[] buf = new byte[512];
+            DatagramPacket response = new DatagramPacket(buf, buf.length);
+            client.receive(response);
+            byte[] message = new byte[response.getLength()];
+            System.arraycopy(buf, 0, message, 0, message.length);
+            return message;
+        } finally {
+            client.close();
+        }
+    }
+
+    /* A DNS server on the loopback that answers from the zone of respond, or not at all, and keeps the names it is asked and the ports they come from. */
+    private static class StubServer extends Thread {
+        final DatagramSocket socket;
+        final boolean answers;
+        /* Answers everything with SERVFAIL. */
+        volatile boolean failing;
+        final List<String> asked = Collections.synchronizedList(new ArrayList<String>());
+        final List<Integer> ports = Collections.synchronizedList(new ArrayList<Integer>());
+
+        StubServer(boolean answers) throws IOException {
+            super("dns-stub");
+            this.socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+            this.answers = answers;
+            setDaemon(true);
+            start();
+        }
+
+        InetSocketAddress address() {
+            return (InetSocketAddress) socket.getLocalSocketAddress();
+        }
+
+        int asked(String name) {
+            return Collections.frequency(asked, name);
+        }
+
+        boolean awaitAsked(String name, int times) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (asked(name) < times && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            return asked(name) == times;
+        }
+
+        @Override
+        public void run() {
+            byte[] buf = new byte[512];
+            try {
+                while (true) {
+                    DatagramPacket request = new DatagramPacket(buf, buf.length);
+                    socket.receive(request);
+                    String name = questionName(buf);
+                    asked.add(name);
+                    ports.add(request.getPort());
+                    if (!answers) {
+                        continue;
+                    }
+                    if (name.startsWith("slow.")) {
+                        Thread.sleep(300);
+                    }
+                    byte[] response = respond(buf, name, failing);
+                    socket.send(new DatagramPacket(response, response.length, request.getSocketAddress()));
+                }
+            } catch (IOException ex) {
+                /* Closed. */
+            } catch (InterruptedException ex) {
+                /* Stopped. */
+            }
+        }
+
+        void close() throws InterruptedException {
+            socket.close();
+            join(1000);
+        }
+    }
+
+    private static String questionName(byte[] query) throws IOException {
+        StringBuilder name = new StringBuilder();
+        for (int pos = 12, n = query[pos]; n != 0; pos += n + 1, n = query[pos]) {
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            name.append(new String(query, pos + 1, n, "US-ASCII"));
+        }
+        return name.toString();
+    }
+
+    /* The zone: www is a CNAME of web, missing does not exist, the answer for big does not fit,
+     * short, flaky and slow have addresses of short TTLs and anything under deep has one too. */
+    private static byte[] respond(byte[] query, String name, boolean failing) throws IOException {
+        int questionEnd = 12 + name.length() + 2 + 4;
+        /* The example label in the question, for pointers to example.com. */
+        int example = 12 + name.indexOf("example");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(query, 0, 2);
+        if (failing) {
+            header(out, 0x8182, 0, 0);
+            out.write(query, 12, questionEnd - 12);
+        } else if (name.equals("www.example.com")) {
+            header(out, 0x8180, 2, 0);
+            out.write(query, 12, questionEnd - 12);
+            int cname = bytes.size() + 12;
+            record(out, 0xc00c, DnsResolver.TYPE_CNAME, 300);
+            out.writeShort(6);
+            out.writeByte(3);
+            out.writeBytes("web");
+            out.writeShort(0xc000 | example);
+            record(out, 0xc000 | cname, DnsResolver.TYPE_A, 60);
+            out.writeShort(4);
+            out.write(new byte[] {(byte) 192, 0, 2, 10});
+        } else if (name.equals("missing.example.com")) {
+            header(out, 0x8180 | DnsResolver.RCODE_NXDOMAIN, 0, 1);
+            out.write(query, 12, questionEnd - 12);
+            record(out, 0xc000 | example, DnsResolver.TYPE_SOA, 900);
+            out.writeShort(5 + 13 + 20);
+            out.writeByte(2);
+            out.writeBytes("ns");
+            out.writeShort(0xc000 | example);
+            out.writeByte(10);
+            out.writeBytes("hostmaster");
+            out.writeShort(0xc000 | example);
+            out.writeInt(2014010101);
+            out.writeInt(3600);
+            out.writeInt(600);
+            out.writeInt(86400);
+            out.writeInt(120);
+        } else if (name.equals("short.example.com")) {
+            address(out, query, questionEnd, 4, 20);
+        } else if (name.equals("slow.example.com")) {
+            address(out, query, questionEnd, 60, 30);
+        } else if (name.endsWith(".deep.example.com")) {
+            address(out, query, questionEnd, 60, 40);
+        } else if (name.equals("flaky.example.com")) {
+            address(out, query, questionEnd, 1, 50);
+        } else {
+            header(out, 0x8380, 0, 0);
+            out.write(query, 12, questionEnd - 12);
+        }
+        return bytes.toByteArray();
+    }
+
+    /* An answer of address 192.0.2.last for the name of the question. */
+    private static void address(DataOutputStream out, byte[] query, int questionEnd, int ttl, int last) throws IOException {
+        header(out, 0x8180, 1, 0);
+        out.write(query, 12, questionEnd - 12);
+        record(out, 0xc00c, DnsResolver.TYPE_A, ttl);
+        out.writeShort(4);
+        out.write(new byte[] {(byte) 192, 0, 2, (byte) last});
+    }
+
+    private static void header(DataOutputStream out, int flags, int answers, int authorities) throws IOException {
+        out.writeShort(flags);
+        out.writeShort(1);
+        out.writeShort(answers);
+        out.writeShort(authorities);
+        out.writeShort(0);
+    }
+
+    /* A record up to its RDLENGTH, owned by the name the pointer points to. */
+    private static void record(DataOutputStream out, int pointer, int type, int ttl) throws IOException {
+        out.writeShort(pointer);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeInt(ttl);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ACK processing against a deep send queue: ACKs are held back until the
+ * receiver has all the data in flight, so the sender works through depth
+ * segments' worth of cumulative ACKs against a long SList.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AckProcessingBenchmark {
+
+    @Param({"16", "128", "512"})
+    int depth;
+
+    LoopbackPair pair;
+    byte[] payload;
+
+    @Setup
+    public void setup()
+    {
+        pair = new LoopbackPair(1500);
+        pair.transfer(new byte[4 * 1024 * 1024], 4 * 1024 * 1024);
+        pair.holdAcks = true;
+        payload = new byte[(int) (depth * pair.a.m_mss)];
+    }
+
+    @Benchmark
+    public long ackDeepQueue()
+    {
+        pair.transfer(payload, payload.length);
+        return pair.received();
+    }
+}
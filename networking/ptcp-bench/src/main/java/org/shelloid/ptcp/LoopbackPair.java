@@ -0,0 +1,218 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Two PseudoTcp endpoints wired back to back in memory. Nothing moves on
+ * its own: packets are queued per direction until the benchmark delivers
+ * them, so it decides what is dropped, held back or reordered. Time is
+ * virtual too; advance() moves both clocks and fires their timers.
+ */
+public class LoopbackPair {
+
+    public final PseudoTcp a;
+    public final PseudoTcp b;
+
+    final ArrayDeque<byte[]> toA = new ArrayDeque<>();
+    final ArrayDeque<byte[]> toB = new ArrayDeque<>();
+    final byte[] rbuf = new byte[64 * 1024];
+    long received;
+    long clockOffset;
+
+    final IClock clock = new IClock() {
+        @Override
+        public long now() {
+            return IClock.SYSTEM.now() + clockOffset;
+        }
+
+        @Override
+        public long nowMicros() {
+            return IClock.SYSTEM.nowMicros() + clockOffset * 1000;
+        }
+    };
+
+    // Delivery policy for transfer()
+    boolean holdAcks;
+    boolean reorder;
+
+    public LoopbackPair(int mtu)
+    {
+        a = new Endpoint(toB);
+        b = new Endpoint(toA);
+        a.notifyMTU(mtu);
+        b.notifyMTU(mtu);
+        a.connect();
+        pump();
+        // the final ACK of the handshake is a delayed one
+        advance(NetworkConstants.ACK_DELAY);
+        pump();
+        if (a.state() != PseudoTcp.TcpState.TCP_ESTABLISHED
+                || b.state() != PseudoTcp.TcpState.TCP_ESTABLISHED) {
+            throw new IllegalStateException("loopback pair did not connect");
+        }
+    }
+
+    // Sends len bytes from a to b and moves packets until b has read them
+    // all, firing timers whenever the pair stalls.
+    public void transfer(byte[] data, int len)
+    {
+        long target = received + len;
+        int sent = 0;
+        while (received < target) {
+            if (sent < len) {
+                int n = a.send(data, sent, len - sent);
+                if (n > 0) {
+                    sent += n;
+                }
+            }
+            if (!step()) {
+                kick();
+            }
+        }
+    }
+
+    // Delivers everything queued in both directions until the pair is quiet.
+    public void pump()
+    {
+        while (!toA.isEmpty() || !toB.isEmpty()) {
+            deliver(toB, b, false);
+            drainB();
+            deliver(toA, a, false);
+        }
+    }
+
+    public void dropToB()
+    {
+        toB.clear();
+    }
+
+    public void dropToA()
+    {
+        toA.clear();
+    }
+
+    public byte[] pollToB()
+    {
+        return toB.poll();
+    }
+
+    public byte[] pollToA()
+    {
+        return toA.poll();
+    }
+
+    public long received()
+    {
+        return received;
+    }
+
+    public void advance(long ms)
+    {
+        clockOffset += ms;
+        a.notifyClock(a.now());
+        b.notifyClock(b.now());
+    }
+
+    long drainB()
+    {
+        long total = 0;
+        int len;
+        while ((len = b.recv(rbuf)) > 0) {
+            total += len;
+        }
+        received += total;
+        return total;
+    }
+
+    boolean step()
+    {
+        boolean moved = !toB.isEmpty();
+        deliver(toB, b, reorder);
+        drainB();
+        if (!holdAcks || toB.isEmpty()) {
+            moved |= !toA.isEmpty();
+            deliver(toA, a, false);
+        }
+        return moved;
+    }
+
+    // Nothing in flight: let the delayed ACK fire, then the retransmit timer.
+    void kick()
+    {
+        advance(NetworkConstants.ACK_DELAY);
+        if (toA.isEmpty() && toB.isEmpty()) {
+            advance(a.m_rx_rto);
+        }
+    }
+
+    static void deliver(ArrayDeque<byte[]> queue, PseudoTcp to, boolean reverse)
+    {
+        if (reverse && queue.size() > 1) {
+            ArrayList<byte[]> batch = new ArrayList<>(queue);
+            queue.clear();
+            Collections.reverse(batch);
+            for (byte[] p : batch) {
+                to.notifyPacket(p, p.length);
+            }
+            return;
+        }
+        byte[] p;
+        while ((p = queue.poll()) != null) {
+            to.notifyPacket(p, p.length);
+        }
+    }
+
+    class Endpoint extends PseudoTcp {
+
+        Endpoint(ArrayDeque<byte[]> out)
+        {
+            super(new Wire(out), 0, clock);
+        }
+    }
+
+    static class Wire implements IPseudoTcpNotify {
+
+        final ArrayDeque<byte[]> out;
+
+        Wire(ArrayDeque<byte[]> out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void onTcpOpen(PseudoTcp tcp) {
+        }
+
+        @Override
+        public void onTcpReadable(PseudoTcp tcp) {
+        }
+
+        @Override
+        public void onTcpWriteable(PseudoTcp tcp) {
+        }
+
+        @Override
+        public void onTcpClosed(PseudoTcp tcp, long error) {
+        }
+
+        @Override
+        public WriteResult tcpWritePacket(PseudoTcp tcp, byte[] buffer, int len) {
+            byte[] p = new byte[len];
+            System.arraycopy(buffer, 0, p, 0, len);
+            out.add(p);
+            return WriteResult.WR_SUCCESS;
+        }
+
+        @Override
+        public void log(PseudoTcp tcp, LogType type, String msg) {
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar. Takes the usual JMH command line and
+ * always adds the GC profiler, so every result comes with its allocation
+ * rate (gc.alloc.rate.norm is bytes per operation).
+ */
+public class PtcpBenchmarks {
+
+    public static void main(String[] args) throws Exception
+    {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        Options opts = new OptionsBuilder()
+                .parent(cmd)
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opts).run();
+    }
+}
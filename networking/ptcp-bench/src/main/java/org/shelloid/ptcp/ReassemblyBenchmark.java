@@ -0,0 +1,57 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Out-of-order reassembly: every flight of data segments is delivered in
+ * reverse, so the receiver parks all but the first in its RList and must
+ * stitch them together once the hole is filled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReassemblyBenchmark {
+
+    @Param({"4", "32", "128"})
+    int segments;
+
+    LoopbackPair pair;
+    byte[] payload;
+
+    @Setup
+    public void setup()
+    {
+        pair = new LoopbackPair(1500);
+        pair.transfer(new byte[4 * 1024 * 1024], 4 * 1024 * 1024);
+        pair.reorder = true;
+        pair.holdAcks = true;
+        payload = new byte[(int) (segments * pair.a.m_mss)];
+    }
+
+    @Benchmark
+    public long reverseOrder()
+    {
+        pair.transfer(payload, payload.length);
+        return pair.received();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-segment cost of building a header (an outgoing ACK) and of parsing
+ * and processing incoming ones on an established connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentBenchmark {
+
+    LoopbackPair pair;
+    byte[] ack;
+    byte[] data;
+
+    @Setup
+    public void setup()
+    {
+        pair = new LoopbackPair(1500);
+        byte[] payload = new byte[(int) pair.a.m_mss];
+        pair.a.send(payload, payload.length);
+        data = pair.pollToB();
+        pair.b.notifyPacket(data, data.length);
+        pair.drainB();
+        pair.advance(NetworkConstants.ACK_DELAY);
+        ack = pair.pollToA();
+        pair.a.notifyPacket(ack, ack.length);
+        pair.pump();
+    }
+
+    @Benchmark
+    public IPseudoTcpNotify.WriteResult encodeAck()
+    {
+        IPseudoTcpNotify.WriteResult res = pair.a.packet(pair.a.m_snd_nxt, 0, null, 0, 0);
+        pair.dropToB();
+        return res;
+    }
+
+    @Benchmark
+    public boolean decodeAck()
+    {
+        return pair.a.notifyPacket(ack, ack.length);
+    }
+
+    // A duplicate data segment: parsed, trimmed to nothing and answered
+    // with an immediate ACK.
+    @Benchmark
+    public boolean decodeData()
+    {
+        boolean res = pair.b.notifyPacket(data, data.length);
+        pair.dropToA();
+        return res;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The segment queues on their own: the array rings PseudoTcp uses against
+ * the LinkedList queues it used before, driven the way the socket drives
+ * them. A flight is one write split into depth segments as they are sent,
+ * then ACKed a segment at a time; reassembly parks depth segments that
+ * arrive in reverse and drains them once the hole is filled; holes has
+ * every other segment of a window arrive first, then the rest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentQueueBenchmark {
+
+    static final long MSS = 1400;
+
+    @Param({"16", "128", "512"})
+    int depth;
+
+    final SList slist = new SList();
+    final RList rlist = new RList();
+    final LinkedList<Segment> linkedSend = new LinkedList<>();
+    final LinkedList<Segment> linkedRecv = new LinkedList<>();
+    long now;
+
+    // The element of the LinkedList queues
+    static class Segment {
+        long seq, len, tstamp;
+        int xmit;
+        boolean bCtrl;
+
+        Segment(long seq, long len, boolean bCtrl)
+        {
+            this.seq = seq;
+            this.len = len;
+            this.bCtrl = bCtrl;
+        }
+    }
+
+    @Benchmark
+    public int ringFlight()
+    {
+        slist.addLast(0, depth * MSS, false);
+        for (int i = 0; i < depth; i++) {
+            int seg = slist.firstUnsent();
+            if (slist.len(seg) > MSS) {
+                slist.insert(seg + 1, slist.seq(seg) + MSS, slist.len(seg) - MSS, slist.isCtrl(seg), 0);
+                slist.setLen(seg, MSS);
+            }
+            slist.transmitted(seg, ++now);
+        }
+        int acked = 0;
+        while (!slist.isEmpty()) {
+            slist.removeFirst();
+            acked++;
+        }
+        return acked;
+    }
+
+    @Benchmark
+    public int linkedFlight()
+    {
+        linkedSend.addLast(new Segment(0, depth * MSS, false));
+        for (int i = 0; i < depth; i++) {
+            ListIterator<Segment> it = linkedSend.listIterator();
+            Segment seg = it.next();
+            while (seg.xmit > 0) {
+                seg = it.next();
+            }
+            if (seg.len > MSS) {
+                it.add(new Segment(seg.seq + MSS, seg.len - MSS, seg.bCtrl));
+                seg.len = MSS;
+            }
+            seg.xmit += 1;
+            seg.tstamp = ++now;
+        }
+        int acked = 0;
+        while (!linkedSend.isEmpty()) {
+            linkedSend.removeFirst();
+            acked++;
+        }
+        return acked;
+    }
+
+    @Benchmark
+    public long ringReassembly()
+    {
+        for (int i = depth; i > 0; i--) {
+            rlist.insert(i * MSS, MSS);
+        }
+        long rcvNxt = MSS;
+        while (!rlist.isEmpty() && (rlist.start(0) <= rcvNxt)) {
+            rcvNxt = Math.max(rcvNxt, rlist.end(0));
+            rlist.removeFirst();
+        }
+        return rcvNxt;
+    }
+
+    @Benchmark
+    public long linkedReassembly()
+    {
+        for (int i = depth; i > 0; i--) {
+            linkedInsert(new Segment(i * MSS, MSS, false));
+        }
+        return linkedDrain(MSS);
+    }
+
+    @Benchmark
+    public long ringHoles()
+    {
+        for (int i = 2; i <= depth; i += 2) {
+            rlist.insert(i * MSS, MSS);
+        }
+        for (int i = 1; i <= depth; i += 2) {
+            rlist.insert(i * MSS, MSS);
+        }
+        long rcvNxt = MSS;
+        while (!rlist.isEmpty() && (rlist.start(0) <= rcvNxt)) {
+            rcvNxt = Math.max(rcvNxt, rlist.end(0));
+            rlist.removeFirst();
+        }
+        return rcvNxt;
+    }
+
+    @Benchmark
+    public long linkedHoles()
+    {
+        for (int i = 2; i <= depth; i += 2) {
+            linkedInsert(new Segment(i * MSS, MSS, false));
+        }
+        for (int i = 1; i <= depth; i += 2) {
+            linkedInsert(new Segment(i * MSS, MSS, false));
+        }
+        return linkedDrain(MSS);
+    }
+
+    void linkedInsert(Segment rseg)
+    {
+        ListIterator<Segment> it = linkedRecv.listIterator();
+        while (it.hasNext()) {
+            if (!(it.next().seq < rseg.seq)) {
+                it.previous();
+                break;
+            }
+        }
+        it.add(rseg);
+    }
+
+    long linkedDrain(long rcvNxt)
+    {
+        ListIterator<Segment> it = linkedRecv.listIterator();
+        while (it.hasNext()) {
+            Segment item = it.next();
+            if (item.seq > rcvNxt) {
+                break;
+            }
+            rcvNxt = Math.max(rcvNxt, item.seq + item.len);
+            it.remove();
+        }
+        return rcvNxt;
+    }
+}
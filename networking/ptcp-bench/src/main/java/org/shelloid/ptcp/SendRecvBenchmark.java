@@ -0,0 +1,57 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * send() on one endpoint through to recv() on the other, including the
+ * ACKs coming back, for a range of write sizes and both MTU levels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendRecvBenchmark {
+
+    @Param({"64", "1400", "16384", "262144"})
+    int size;
+
+    @Param({"1500", "65535"})
+    int mtu;
+
+    LoopbackPair pair;
+    byte[] payload;
+
+    @Setup
+    public void setup()
+    {
+        pair = new LoopbackPair(mtu);
+        pair.transfer(new byte[4 * 1024 * 1024], 4 * 1024 * 1024);
+        payload = new byte[size];
+    }
+
+    @Benchmark
+    public long sendRecv()
+    {
+        pair.transfer(payload, size);
+        return pair.received();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct (off-heap) buffers for the windows of PseudoTcp connections with
+ * OPT_OFFHEAP set, so that large windows are outside the garbage
+ * collector's heap. Sizes are rounded up to size classes a quarter of a
+ * power of two apart. Closing a connection gives its buffers back to the
+ * free list of their class, where the next connection picks them up, as
+ * long as the pool keeps less than maxRetained bytes free; beyond that they
+ * are dropped and the collector frees them. Safe for use from any thread.
+ */
+public class BufferPool {
+
+    public static final BufferPool DEFAULT = new BufferPool(NetworkConstants.DEFAULT_POOL_RETAINED);
+
+    static final int MIN_CLASS = 64 * 1024;
+
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> free = new ConcurrentHashMap<>();
+    private final AtomicLong inUse = new AtomicLong();
+    private final AtomicLong retained = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+    private volatile long maxRetained;
+
+    public BufferPool(long maxRetained)
+    {
+        this.maxRetained = maxRetained;
+    }
+
+    // Smallest size class holding size bytes: at most a quarter more.
+    static int sizeClass(int size)
+    {
+        if (size <= MIN_CLASS) {
+            return MIN_CLASS;
+        }
+        int step = Integer.highestOneBit(size - 1) >> 2;
+        return (size + step - 1) / step * step;
+    }
+
+    // The buffer's capacity is the size class; its limit is size.
+    public ByteBuffer allocate(int size)
+    {
+        int cls = sizeClass(size);
+        ByteBuffer buf = null;
+        ConcurrentLinkedQueue<ByteBuffer> list = free.get(cls);
+        if (list != null) {
+            buf = list.poll();
+        }
+        if (buf != null) {
+            retained.addAndGet(-cls);
+            reuses.incrementAndGet();
+        } else {
+            buf = ByteBuffer.allocateDirect(cls);
+            allocations.incrementAndGet();
+        }
+        inUse.addAndGet(cls);
+        buf.clear();
+        buf.limit(size);
+        return buf;
+    }
+
+    public void release(ByteBuffer buf)
+    {
+        int cls = buf.capacity();
+        inUse.addAndGet(-cls);
+        if (retained.addAndGet(cls) > maxRetained) {
+            retained.addAndGet(-cls);
+            return;
+        }
+        ConcurrentLinkedQueue<ByteBuffer> list = free.get(cls);
+        if (list == null) {
+            ConcurrentLinkedQueue<ByteBuffer> fresh = new ConcurrentLinkedQueue<>();
+            list = free.putIfAbsent(cls, fresh);
+            if (list == null) {
+                list = fresh;
+            }
+        }
+        list.offer(buf);
+    }
+
+    // Bytes of buffers handed out and not yet released
+    public long inUse()
+    {
+        return inUse.get();
+    }
+
+    // Bytes of free buffers kept for reuse
+    public long retained()
+    {
+        return retained.get();
+    }
+
+    // Buffers newly allocated from the system
+    public long allocations()
+    {
+        return allocations.get();
+    }
+
+    // Buffers served from a free list
+    public long reuses()
+    {
+        return reuses.get();
+    }
+
+    public long maxRetained()
+    {
+        return maxRetained;
+    }
+
+    public void setMaxRetained(long maxRetained)
+    {
+        this.maxRetained = maxRetained;
+    }
+}
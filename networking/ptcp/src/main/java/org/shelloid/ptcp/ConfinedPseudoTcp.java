@@ -0,0 +1,143 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+/**
+ * PseudoTcp for the single-owner model: every call is made from one thread
+ * (typically the event loop that owns the underlying socket), so the state
+ * machine runs without taking the monitor on each packet, clock tick and
+ * send. The owner is given up front; running with -ea catches any call from
+ * another thread, the first one included. Callers that are not on the owner
+ * thread go through PseudoTcpFacade instead.
+ */
+public class ConfinedPseudoTcp extends PseudoTcp {
+
+    private final IOwner owner;
+
+    public ConfinedPseudoTcp(IPseudoTcpNotify notify, long conv, IOwner owner)
+    {
+        super(notify, conv);
+        this.owner = owner;
+    }
+
+    public ConfinedPseudoTcp(IPseudoTcpNotify notify, long conv, IClock clock, IOwner owner)
+    {
+        super(notify, conv, clock);
+        this.owner = owner;
+    }
+
+    public boolean isOwnerThread()
+    {
+        return owner.isCurrentThread();
+    }
+
+    @Override
+    public int connect()
+    {
+        assert isOwnerThread() : "connect() called off the owner thread";
+        return doConnect();
+    }
+
+    @Override
+    public int recv(byte []buffer)
+    {
+        assert isOwnerThread() : "recv() called off the owner thread";
+        return doRecv(buffer);
+    }
+
+    @Override
+    public int send(byte []buffer, int len)
+    {
+        assert isOwnerThread() : "send() called off the owner thread";
+        return doSend(buffer, 0, len);
+    }
+
+    @Override
+    public int send(byte []buffer, int offset, int len)
+    {
+        assert isOwnerThread() : "send() called off the owner thread";
+        return doSend(buffer, offset, len);
+    }
+
+    @Override
+    public void notifyMTU(int mtu)
+    {
+        assert isOwnerThread() : "notifyMTU() called off the owner thread";
+        doNotifyMTU(mtu);
+    }
+
+    @Override
+    public void notifyClock(long now)
+    {
+        assert isOwnerThread() : "notifyClock() called off the owner thread";
+        doNotifyClock(now);
+    }
+
+    @Override
+    public boolean notifyPacket(byte[] buffer, int len)
+    {
+        assert isOwnerThread() : "notifyPacket() called off the owner thread";
+        return doNotifyPacket(buffer, len);
+    }
+
+    @Override
+    public boolean notifyPackets(byte[][] buffers, int[] lens, int count)
+    {
+        assert isOwnerThread() : "notifyPackets() called off the owner thread";
+        return doNotifyPackets(buffers, lens, count);
+    }
+
+    @Override
+    public void notifyLinkWritable(boolean writable)
+    {
+        assert isOwnerThread() : "notifyLinkWritable() called off the owner thread";
+        doNotifyLinkWritable(writable);
+    }
+
+    @Override
+    public void setOption(Option opt, int value)
+    {
+        assert isOwnerThread() : "setOption() called off the owner thread";
+        doSetOption(opt, value);
+    }
+
+    @Override
+    public void setMemoryBudget(MemoryBudget budget)
+    {
+        assert isOwnerThread() : "setMemoryBudget() called off the owner thread";
+        moveReservation(budget);
+    }
+
+    @Override
+    public void setBufferPool(BufferPool pool)
+    {
+        assert isOwnerThread() : "setBufferPool() called off the owner thread";
+        moveWindows(pool);
+    }
+
+    @Override
+    public void close(boolean force)
+    {
+        assert isOwnerThread() : "close() called off the owner thread";
+        doClose(force);
+    }
+
+    @Override
+    public void cleanup()
+    {
+        assert isOwnerThread() : "cleanup() called off the owner thread";
+        releaseBuffers();
+        freeWindows();
+    }
+
+    @Override
+    public boolean getNextClock(long now, MutableLong timeout)
+    {
+        assert isOwnerThread() : "getNextClock() called off the owner thread";
+        return clock_check(now, timeout);
+    }
+}
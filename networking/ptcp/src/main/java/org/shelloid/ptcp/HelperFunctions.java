@@ -5,8 +5,8 @@
  */
 package org.shelloid.ptcp;
 
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 
@@ -74,20 +74,40 @@ public class HelperFunctions {
         return later - earlier;
     }
     
+    public static IScheduler scheduler(final ScheduledExecutorService executor) {
+        return new IScheduler() {
+            @Override
+            public Future<?> schedule(Runnable task, long delayMillis) {
+                return executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+    public static IOwner owner(final Thread thread) {
+        return new IOwner() {
+            @Override
+            public boolean isCurrentThread() {
+                return Thread.currentThread() == thread;
+            }
+        };
+    }
+
     public static void adjustClock(final ScheduledExecutorService executor, final PseudoTcp tcp) {
+        adjustClock(scheduler(executor), tcp);
+    }
+
+    public static void adjustClock(final IScheduler scheduler, final PseudoTcp tcp) {
         if (tcp.runningTimer() != null) {
             tcp.runningTimer().cancel(false);
             tcp.setRunningTimer(null);
         }
-        if(tcp.isClosed()){
+        // A graceful close keeps the clock until the data sent before it is
+        // through (retransmissions included); getNextClock says when it is.
+        PseudoTcp.MutableLong timeout = new PseudoTcp.MutableLong();
+        if ((tcp.state() == PseudoTcp.TcpState.TCP_CLOSED) || !tcp.getNextClock(tcp.now(), timeout)) {
             //System.out.println("adjustClock: tcp is closed: " + tcp);
             return;
-        }else
-        {
-            //System.out.println("adjustClock: tcp is still open:  " + tcp);
         }
-        PseudoTcp.MutableLong timeout = new PseudoTcp.MutableLong();
-        tcp.getNextClock(tcp.now(), timeout);
 
         if (timeout.value >= 0) {
             Runnable task = new Runnable() {
@@ -97,11 +117,11 @@ public class HelperFunctions {
                     //if(!tcp.isClosed()){
                         tcp.notifyClock(tcp.now());
                         tcp.setRunningTimer(null);                        
-                        adjustClock(executor, tcp);
+                        adjustClock(scheduler, tcp);
                     //}
                 }
             };
-            ScheduledFuture future = executor.schedule(task, timeout.value, TimeUnit.MILLISECONDS);
+            Future<?> future = scheduler.schedule(task, timeout.value);
             tcp.setRunningTimer(future);            
         }else
         {
@@ -0,0 +1,37 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+/**
+ * Time source of a PseudoTcp. now() drives the retransmit, delayed-ACK and
+ * keep-alive timers in milliseconds; nowMicros() stamps outgoing packets
+ * for RTT measurement and must run on the same timeline. Neither may step
+ * backwards or return zero, which PseudoTcp treats as "not set".
+ *
+ * SYSTEM is monotonic (System.nanoTime), so NTP adjustments to the wall
+ * clock do not move it; simulations pass a virtual clock instead.
+ */
+public interface IClock {
+    public long now();
+
+    public long nowMicros();
+
+    public static final IClock SYSTEM = new IClock() {
+        // one second before the first reading, so the clock never reads zero
+        private final long origin = System.nanoTime() - 1000000000L;
+
+        @Override
+        public long now() {
+            return (System.nanoTime() - origin) / 1000000;
+        }
+
+        @Override
+        public long nowMicros() {
+            return (System.nanoTime() - origin) / 1000;
+        }
+    };
+}
@@ -0,0 +1,16 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+/**
+ * The one thread a ConfinedPseudoTcp may be called from. An event loop
+ * answers with its inEventLoop(); HelperFunctions.owner wraps a plain
+ * thread.
+ */
+public interface IOwner {
+    public boolean isCurrentThread();
+}
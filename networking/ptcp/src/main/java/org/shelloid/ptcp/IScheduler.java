@@ -0,0 +1,18 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+import java.util.concurrent.Future;
+
+/**
+ * Runs PseudoTcp timers (see HelperFunctions.adjustClock). The delay is in
+ * the milliseconds of the PseudoTcp's clock, so a virtual-time scheduler
+ * must go together with the matching virtual IClock.
+ */
+public interface IScheduler {
+    public Future<?> schedule(Runnable task, long delayMillis);
+}
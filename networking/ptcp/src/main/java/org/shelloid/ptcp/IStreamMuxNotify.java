@@ -0,0 +1,29 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+/**
+ * Stream events of a StreamMux, called on the thread that drives it.
+ */
+public interface IStreamMuxNotify {
+  // The peer opened a stream
+  public void onStreamOpen(MuxStream stream);
+
+  // Stream data from the peer; buffer is only valid during the call. The
+  // peer gets the window back as the application calls stream.consumed().
+  public void onStreamData(MuxStream stream, byte[] buffer, int offset, int len);
+
+  // The peer has closed its side; all its data has been delivered
+  public void onStreamEnd(MuxStream stream);
+
+  // write() has room again after taking less than it was offered
+  public void onStreamWriteable(MuxStream stream);
+
+  // The stream is gone: both sides closed it, the peer reset it, or the
+  // session went down (reset). Not called for the application's own reset().
+  public void onStreamClosed(MuxStream stream, boolean reset);
+};
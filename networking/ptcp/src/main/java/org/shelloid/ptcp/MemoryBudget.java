@@ -0,0 +1,120 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffer memory shared by a set of PseudoTcp connections. Each connection
+ * reserves its initial send and receive buffers unconditionally and grows
+ * them only with tryReserve, so auto-tuned windows of bulk transfers stop
+ * growing once the budget is spent; closing a connection releases what it
+ * held. Past seven eighths of the limit the budget is under pressure, and
+ * connections trim their buffers back. Safe for use from any thread.
+ */
+public class MemoryBudget {
+
+    public static final MemoryBudget DEFAULT = new MemoryBudget(NetworkConstants.DEFAULT_MEMORY_BUDGET);
+
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong peak = new AtomicLong();
+    private final AtomicLong reservations = new AtomicLong();
+    private final AtomicLong denials = new AtomicLong();
+    private volatile long limit;
+
+    public MemoryBudget(long limit)
+    {
+        this.limit = limit;
+    }
+
+    public boolean tryReserve(long bytes)
+    {
+        while (true) {
+            long cur = used.get();
+            if (cur + bytes > limit) {
+                denials.incrementAndGet();
+                return false;
+            }
+            if (used.compareAndSet(cur, cur + bytes)) {
+                reserved(cur + bytes);
+                return true;
+            }
+        }
+    }
+
+    // For the minimum a connection needs to work at all; may overshoot the limit.
+    public void reserve(long bytes)
+    {
+        reserved(used.addAndGet(bytes));
+    }
+
+    private void reserved(long now)
+    {
+        reservations.incrementAndGet();
+        long p;
+        while (now > (p = peak.get()) && !peak.compareAndSet(p, now)) {
+        }
+    }
+
+    // Whether bytes more would still leave the budget out of pressure.
+    public boolean canAdmit(long bytes)
+    {
+        return used.get() + bytes <= pressureMark();
+    }
+
+    public boolean underPressure()
+    {
+        return used.get() > pressureMark();
+    }
+
+    private long pressureMark()
+    {
+        return limit - limit / 8;
+    }
+
+    public void release(long bytes)
+    {
+        used.addAndGet(-bytes);
+    }
+
+    public long used()
+    {
+        return used.get();
+    }
+
+    public long peak()
+    {
+        return peak.get();
+    }
+
+    // Successful reserve and tryReserve calls
+    public long reservations()
+    {
+        return reservations.get();
+    }
+
+    // tryReserve calls turned down
+    public long denials()
+    {
+        return denials.get();
+    }
+
+    public long available()
+    {
+        return Math.max(0, limit - used.get());
+    }
+
+    public long limit()
+    {
+        return limit;
+    }
+
+    public void setLimit(long limit)
+    {
+        this.limit = limit;
+    }
+}
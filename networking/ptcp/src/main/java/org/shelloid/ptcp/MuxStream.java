@@ -0,0 +1,113 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+/**
+ * One bidirectional stream of a StreamMux. Same threading as the mux: only
+ * the thread driving it may call these.
+ */
+public class MuxStream {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    final StreamMux mux;
+    final int id;
+    private Object attachment;
+
+    // Sending: data written but not framed yet, and how much of it the
+    // peer's window still admits
+    byte[] sbuf = EMPTY;
+    int slen;
+    long credit;
+    boolean bScheduled, bWriteBlocked;
+    boolean bFinQueued, bFinSent;
+
+    // Receiving: bytes delivered but not consumed yet, consumed bytes not
+    // yet given back to the peer as credit, and how much more the peer may
+    // send on the credit it has been given
+    long unconsumed, toCredit;
+    long window = NetworkConstants.MUX_STREAM_WINDOW;
+    boolean bFinRcvd;
+
+    boolean bClosed;
+
+    MuxStream(StreamMux mux, int id, long credit)
+    {
+        this.mux = mux;
+        this.id = id;
+        this.credit = credit;
+    }
+
+    public int id()
+    {
+        return id;
+    }
+
+    public void attach(Object o)
+    {
+        attachment = o;
+    }
+
+    public Object attachment()
+    {
+        return attachment;
+    }
+
+    // Queues up to len bytes and returns how many it took; 0 when the send
+    // buffer is full (onStreamWriteable follows), SOCKET_ERROR once the
+    // stream is closed for writing.
+    public int write(byte[] buffer, int offset, int len)
+    {
+        return mux.write(this, buffer, offset, len);
+    }
+
+    // Closes our side once the queued data is out. The peer can still send.
+    public void close()
+    {
+        mux.finish(this);
+    }
+
+    // Drops the stream at once, on both sides.
+    public void reset()
+    {
+        mux.reset(this);
+    }
+
+    // The application is done with len bytes of delivered data.
+    public void consumed(int len)
+    {
+        mux.consumed(this, len);
+    }
+
+    // Bytes written and not yet taken by PseudoTcp
+    public int sendQueued()
+    {
+        return slen;
+    }
+
+    public boolean isClosed()
+    {
+        return bClosed;
+    }
+
+    boolean canSend()
+    {
+        return ((slen > 0) && (credit > 0)) || (bFinQueued && !bFinSent && (slen == 0));
+    }
+
+    void take(int len)
+    {
+        slen -= len;
+        System.arraycopy(sbuf, len, sbuf, 0, slen);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "stream " + id;
+    }
+}
@@ -73,11 +73,16 @@ static final long JINGLE_HEADER_SIZE = 64; // when relay framing is in use
 // 24 |                             data                              |
 //    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 //
+// Timestamp sending is the sender's monotonic clock in microseconds,
+// modulo 2^32; Timestamp receiving echoes the peer's last one unchanged.
+// Each side only ever interprets its own timestamps, so the unit is not
+// negotiated and peers still sending milliseconds interoperate.
+//
 //////////////////////////////////////////////////////////////////////
 
 static final long MAX_SEQ = 0xFFFFFFFF;
 //JAYARAJ: 32-bit wnd
-static final long HEADER_SIZE = 26;
+public static final long HEADER_SIZE = 26;
 //static final long HEADER_SIZE = 24;
 static final long PACKET_OVERHEAD = HEADER_SIZE + UDP_HEADER_SIZE + IP_HEADER_SIZE + JINGLE_HEADER_SIZE;
 
@@ -85,9 +90,39 @@ static final long MIN_RTO   =   250; // 250 ms (RFC1122, Sec 4.2.3.1 "fractions
 static final long DEF_RTO   =  3000; // 3 seconds (RFC1122, Sec 4.2.3.1)
 static final long MAX_RTO   = 60000; // 60 seconds
 static final long ACK_DELAY =   100; // 100 milliseconds
+static final long TLP_MIN_PTO =  10; // floor of the tail loss probe timeout
+static final long INTERACTIVE_SIZE = 4096; // largest average write/segment OPT_INTERACTIVE treats as interactive
+
+// Send and receive buffers start small and are auto-tuned up to the maximum
+// (within the connection's MemoryBudget); they go back to the initial size
+// after BUF_IDLE_SHRINK without data
+public static final int INITIAL_RCV_BUF = 256 * 1024; // four of the largest segments
+public static final int INITIAL_SND_BUF = 256 * 1024;
+// What a connecting socket with OPT_ZERO_RTT may send before the peer has
+// told its window; any peer has at least this much receive buffer unless
+// OPT_RCVBUF made it smaller.
+static final long ZERO_RTT_WINDOW = 64 * 1024;
+static final int MAX_RCV_BUF = 16 * 1024 * 1024;
+static final int MAX_SND_BUF = 16 * 1024 * 1024;
+static final long BUF_IDLE_SHRINK = 30 * 1000; // 30 seconds
+static final long BUF_PRESSURE_TRIM = 1000; // how often to halve buffers while the budget is under pressure
+static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+static final long DEFAULT_POOL_RETAINED = 64L * 1024 * 1024; // free off-heap windows BufferPool.DEFAULT keeps for reuse
+
+// Stream multiplexing (StreamMux): frame header, the most one stream sends
+// per scheduling turn, the receive window each stream grants its peer, and
+// how much write() takes ahead of the peer's credit
+public static final int MUX_HEADER_SIZE = 9;
+static final int MUX_QUANTUM = 16 * 1024;
+public static final int MUX_STREAM_WINDOW = 256 * 1024;
+static final int MUX_STREAM_SNDBUF = 64 * 1024;
 
 static final int FLAG_CTL = 0x02;
 static final int FLAG_RST = 0x04;
+// On a pure ACK: it answers a segment that was entirely below rcv_nxt, i.e.
+// a redundant retransmission (a cheap DSACK). On a control segment: the
+// sender marks its ACKs that way. Older peers ignore it.
+static final int FLAG_DUP = 0x08;
 
 static final int CTL_CONNECT = 0;
 //const uint8 CTL_REDIRECT = 1;
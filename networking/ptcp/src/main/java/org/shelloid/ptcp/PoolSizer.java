@@ -0,0 +1,88 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+/**
+ * How many sessions to keep connected ahead of demand. A session taken
+ * from the pool is replaced in about one handshake time, so the pool has to
+ * cover the connections that arrive meanwhile: arrival rate times handshake
+ * time, doubled for bursts. The rate is a count of arrivals decaying with
+ * time constant window, scaled up while the sizer is younger than that so
+ * that a burst right after start is not underestimated; the handshake time
+ * is an average of the measured ones.
+ * One session is kept from creation, or the last arrival, until idle
+ * milliseconds pass without any; none after that. Not thread-safe.
+ */
+public class PoolSizer {
+
+    // Handshake time assumed before one has been measured
+    static final long INITIAL_HANDSHAKE = 200;
+
+    private final int max;
+    private final long window;
+    private final long idle;
+    private final long created;
+    private double count;
+    private long last;
+    private double handshake = INITIAL_HANDSHAKE;
+    private boolean measured;
+
+    public PoolSizer(int max, long window, long idle, long now)
+    {
+        this.max = max;
+        this.window = window;
+        this.idle = idle;
+        this.created = now;
+        this.last = now;
+    }
+
+    public void arrival(long now)
+    {
+        count = decayed(now) + 1;
+        last = Math.max(last, now);
+    }
+
+    public void handshake(long millis)
+    {
+        handshake = measured ? (7 * handshake + millis) / 8 : millis;
+        measured = true;
+    }
+
+    // Average handshake time, in milliseconds
+    public long handshake()
+    {
+        return (long) handshake;
+    }
+
+    // Arrivals per second
+    public double rate(long now)
+    {
+        return decayed(now) * 1000 / span(now);
+    }
+
+    public int target(long now)
+    {
+        if (now - last >= idle) {
+            return 0;
+        }
+        double want = Math.ceil(2 * decayed(now) * handshake / span(now));
+        return (int) Math.min(max, Math.max(1, want));
+    }
+
+    // The time the decayed count stands for: window once the sizer is well
+    // past it, less before, but never under a second
+    private double span(long now)
+    {
+        double age = 1 - Math.exp(-(now - created) / (double) window);
+        return Math.max(Math.min(1000, window), window * age);
+    }
+
+    private double decayed(long now)
+    {
+        return count * Math.exp(-Math.max(0, now - last) / (double) window);
+    }
+}
@@ -14,10 +14,8 @@ import static org.shelloid.ptcp.NetworkConstants.*;
 import static org.shelloid.ptcp.PseudoTcp.SendFlags.*;
 import static org.shelloid.ptcp.PseudoTcp.Shutdown.*;
 import static org.shelloid.ptcp.PseudoTcp.TcpState.*;
-import java.util.LinkedList;
-import java.util.ListIterator;
 import java.util.TimerTask;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -27,23 +25,37 @@ public class PseudoTcp {
   
     public long now()
     {
-        return System.currentTimeMillis()&0xFFFFFFFFL;
+        return m_clock.now();
+    }
+
+    // Timestamp carried in tsval: microseconds, modulo 2^32 on the wire.
+    // Only this side interprets it; the peer echoes it back unchanged.
+    long timestamp()
+    {
+        return m_clock.nowMicros() & 0xFFFFFFFFL;
     }
 
     public PseudoTcp(IPseudoTcpNotify notify, long conv)
     {
+        this(notify, conv, IClock.SYSTEM);
+    }
+
+    public PseudoTcp(IPseudoTcpNotify notify, long conv, IClock clock)
+    {
+        m_clock = clock;
         m_notify = notify;
         m_shutdown = SD_NONE;
         m_error = 0;
 
-        // Sanity check on buffer sizes (needed for OnTcpWriteable notification logic)
-        assert(m_rbuf.length + MIN_PACKET < m_sbuf.length);
+        m_budget = MemoryBudget.DEFAULT;
+        m_reserved = m_rbuf.length() + m_sbuf.length();
+        m_budget.reserve(m_reserved);
 
         long now = now();
 
         m_state = TCP_LISTEN;
         m_conv = conv & 0xFFFFFFFFL;
-        m_rcv_wnd = m_rbuf.length;
+        m_rcv_wnd = m_rbuf.length();
         m_snd_nxt = m_slen = 0;
         m_snd_wnd = 1;
         m_snd_una = m_rcv_nxt = m_rlen = 0;
@@ -60,7 +72,7 @@ public class PseudoTcp {
         m_rto_base = 0;
 
         m_cwnd = 2 * m_mss;
-        m_ssthresh = m_rbuf.length;
+        m_ssthresh = MAX_RCV_BUF;
         m_lastrecv = m_lastsend = m_lasttraffic = now;
         m_bOutgoing = false;
 
@@ -70,7 +82,14 @@ public class PseudoTcp {
         m_ts_recent = m_ts_lastack = 0;
 
         m_rx_rto = DEF_RTO;
-        m_rx_srtt = m_rx_rttvar = 0;
+        m_rx_srtt = m_rx_rttvar = m_rx_minrtt = 0;
+
+        m_t_rack = 0;
+        m_tlp_high_seq = 0;
+        m_rto_recover = 0;
+
+        m_rcvq_space = INITIAL_RCV_BUF / 4;
+        m_rcv_rtt = 0;
     }
     
     public void attach(Object o)
@@ -83,9 +102,82 @@ public class PseudoTcp {
         return attachment;
     }
     
-    public void cleanup()
+    // Releases the buffers for good: call once the socket is done with.
+    public synchronized void cleanup()
     {
-        
+        releaseBuffers();
+        freeWindows();
+    }
+
+    // Moves this connection's buffer reservation to another budget; call
+    // before connecting.
+    public synchronized void setMemoryBudget(MemoryBudget budget)
+    {
+        moveReservation(budget);
+    }
+
+    void moveReservation(MemoryBudget budget)
+    {
+        m_budget.release(m_reserved);
+        budget.reserve(m_reserved);
+        m_budget = budget;
+    }
+
+    public MemoryBudget memoryBudget()
+    {
+        return m_budget;
+    }
+
+    // Moves the buffers into direct buffers from pool, or back to the heap
+    // if pool is null. OPT_OFFHEAP does this with BufferPool.DEFAULT.
+    public synchronized void setBufferPool(BufferPool pool)
+    {
+        moveWindows(pool);
+    }
+
+    void moveWindows(BufferPool pool)
+    {
+        if ((pool == m_pool) || m_bWindowsFreed) {
+          return;
+        }
+        m_pool = pool;
+        WindowBuffer rbuf = WindowBuffer.allocate(m_rbuf.length(), pool);
+        m_rbuf.copyTo(rbuf, (int)(m_rlen + rcvExtent()));
+        m_rbuf.free();
+        m_rbuf = rbuf;
+        WindowBuffer sbuf = WindowBuffer.allocate(m_sbuf.length(), pool);
+        m_sbuf.copyTo(sbuf, (int)m_slen);
+        m_sbuf.free();
+        m_sbuf = sbuf;
+    }
+
+    // Gives the buffers back (to their BufferPool if off-heap) once nothing
+    // can be sent or received any more; whatever they still hold is dropped.
+    void freeWindows()
+    {
+        if (m_bWindowsFreed) {
+          return;
+        }
+        m_bWindowsFreed = true;
+        m_rbuf.free();
+        m_sbuf.free();
+        m_rbuf = m_sbuf = WindowBuffer.EMPTY;
+        m_rlen = m_slen = 0;
+        m_rcv_wnd = 0;
+        m_rlist.clear();
+        m_slist.clear();
+    }
+
+    // Returns the buffer reservation to the budget. The buffers themselves
+    // stay until the socket is garbage collected, but no longer grow. Like
+    // reserveDelta, called under the monitor here and from the owner thread
+    // in ConfinedPseudoTcp.
+    void releaseBuffers()
+    {
+        long reserved = m_reserved;
+        m_reserved = 0;
+        m_bBuffersReleased = true;
+        m_budget.release(reserved);
     }
     
     public boolean isClosed()
@@ -94,6 +186,13 @@ public class PseudoTcp {
     }
 
     public synchronized int connect()
+    {
+        return doConnect();
+    }
+
+    // The synchronized public entry points delegate to these; ConfinedPseudoTcp
+    // calls them directly from its single owner thread.
+    int doConnect()
     {
         if (m_state != TCP_LISTEN) {
           m_error = EINVAL;
@@ -107,14 +206,27 @@ public class PseudoTcp {
         byte[] buffer = new byte[1];
         
         buffer[0] = CTL_CONNECT;
-        queue(buffer, 1, true);
+        queue(buffer, 0, 1, true);
+        if (m_bZeroRtt) {
+          // the peer's window is not known yet: assume ZERO_RTT_WINDOW, and
+          // segments of the size the connection will use once it is up
+          m_snd_wnd = ZERO_RTT_WINDOW;
+          adjustMTU();
+        }
         attemptSend();
         return 0;
     }
     
     public synchronized int recv(byte []buffer)
     {
-        if (m_state != TCP_ESTABLISHED) 
+        return doRecv(buffer);
+    }
+
+    int doRecv(byte []buffer)
+    {
+        // data sent along with the connect can be read before the handshake
+        // completes
+        if ((m_state != TCP_ESTABLISHED) && (m_state != TCP_SYN_RECEIVED)) 
         {
            m_error = ENOTCONN;
            return SOCKET_ERROR;
@@ -129,18 +241,22 @@ public class PseudoTcp {
 
         long read = min(buffer.length, m_rlen);
         //memcpy(buffer, m_rbuf, read);
-        System.arraycopy(m_rbuf, 0, buffer, 0, (int)read);
+        m_rbuf.get(0, buffer, 0, (int)read);
          m_rlen -= read;
+         m_rcv_copied += read;
 
          // !?! until we create a circular buffer, we need to move all of the rest of the buffer up!
+         // (only as far as queued and out-of-order data go, not the whole buffer)
          //memmove(m_rbuf, m_rbuf + read, sizeof(m_rbuf) - read/*m_rlen*/);
-        System.arraycopy(m_rbuf, (int)read, m_rbuf, 0, (int)(m_rbuf.length - read));
+        m_rbuf.shift((int)read, (int)(rcvExtent() + m_rlen));
 
-        if ((m_rbuf.length - m_rlen - m_rcv_wnd) >= min(m_rbuf.length / 2, m_mss)) 
+        tuneReceiveBuffer();
+
+        if ((m_rbuf.length() - m_rlen - m_rcv_wnd) >= min(m_rbuf.length() / 2, m_mss)) 
         {
             boolean bWasClosed = (m_rcv_wnd == 0); // !?! Not sure about this was closed business
 
-            m_rcv_wnd = m_rbuf.length - m_rlen;
+            m_rcv_wnd = m_rbuf.length() - m_rlen;
 
             if (bWasClosed) 
             {
@@ -152,21 +268,32 @@ public class PseudoTcp {
     
     public synchronized int send(byte []buffer, int len)
     {
-        assert(len <= buffer.length);
-        if (m_state != TCP_ESTABLISHED) 
+        return doSend(buffer, 0, len);
+    }
+
+    public synchronized int send(byte []buffer, int offset, int len)
+    {
+        return doSend(buffer, offset, len);
+    }
+
+    int doSend(byte []buffer, int offset, int len)
+    {
+        assert(offset + len <= buffer.length);
+        if ((m_state != TCP_ESTABLISHED) && !canSendEarly()) 
         {
             m_error = ENOTCONN;
             return SOCKET_ERROR;
         }
 
-        if (m_slen == m_sbuf.length) 
+        if (m_slen == m_sbuf.length()) 
         {
             m_bWriteEnable = true;
             m_error = EWOULDBLOCK;
             return SOCKET_ERROR;
         }
 
-        long written = queue(buffer, len, false);
+        m_avg_write = (3 * m_avg_write + len) / 4;
+        long written = queue(buffer, offset, len, false);
         if(written < len){
             m_bWriteEnable = true;
         }
@@ -174,6 +301,14 @@ public class PseudoTcp {
         return (int) written;
     }
     
+    // Before the handshake completes data can go out with the connect when
+    // OPT_ZERO_RTT is set, and with the answer to a connect that brought
+    // data of its own.
+    boolean canSendEarly()
+    {
+        return ((m_state == TCP_SYN_SENT) && m_bZeroRtt) || ((m_state == TCP_SYN_RECEIVED) && m_bEarlyData);
+    }
+
     public long getSendBufLen()
     {
         return this.m_slen;
@@ -184,9 +319,15 @@ public class PseudoTcp {
         return this.m_rlen;
     }
     
-    public void close(boolean force)
+    public synchronized void close(boolean force)
+    {
+        doClose(force);
+    }
+
+    void doClose(boolean force)
     {
         m_shutdown = force ? SD_FORCEFUL : SD_GRACEFUL;        
+        releaseBuffers();
     }
     
     public int getError()
@@ -218,6 +359,11 @@ public class PseudoTcp {
 
     // Call this when the PMTU changes.
     public synchronized void notifyMTU(int mtu)
+    {
+        doNotifyMTU(mtu);
+    }
+
+    void doNotifyMTU(int mtu)
     {
         m_mtu_advise = mtu;
         if (m_state == TCP_ESTABLISHED) {
@@ -228,10 +374,37 @@ public class PseudoTcp {
     // Call this based on timeout value returned from GetNextClock.
     // It's ok to call this too frequently.
     public synchronized void notifyClock(long now)
+    {
+        doNotifyClock(now);
+    }
+
+    void doNotifyClock(long now)
     {
         if (m_state == TCP_CLOSED)
           return;
 
+        // Check if the head has been out too long since the last duplicate ack
+        if (m_t_rack != 0 && (timeDiff(m_t_rack, now) <= 0))
+        {
+            m_t_rack = 0;
+            if ((m_dup_acks > 0) && (m_dup_acks < 3) && rackHeadLost(now))
+            {
+                if (!fastRetransmit(now))
+                    return;
+            }
+        }
+
+        // Check if it's time for a tail loss probe
+        long pto = probeTimeout();
+        if (pto != 0 && (timeDiff(m_rto_base + pto, now) <= 0))
+        {
+            if (!sendProbe(now))
+            {
+                closedown(ECONNABORTED);
+                return;
+            }
+        }
+
           // Check if it's time to retransmit a segment
         if (m_rto_base != 0 && (timeDiff(m_rto_base + m_rx_rto, now) <= 0)) 
         {
@@ -240,9 +413,21 @@ public class PseudoTcp {
               assert(false);
             } else 
             {
+                // Remember the window from before the first timeout of this
+                // episode, and the timestamp of the retransmission, so that
+                // a spurious timeout can be undone (see process)
+                if (m_rto_recover == 0) {
+                    // in fast recovery the window to go back to is ssthresh,
+                    // not the inflated cwnd
+                    m_prior_cwnd = (m_dup_acks >= 3) ? m_ssthresh : m_cwnd;
+                    m_prior_ssthresh = m_ssthresh;
+                }
+                m_rto_recover = m_snd_nxt;
+                m_rto_ts = timestamp();
+
                 // Note: (m_slist.front().xmit == 0)) {
                 // retransmit segments
-                if (!transmit(m_slist.listIterator(), now)) 
+                if (!transmit(0, now)) 
                 {
                     closedown(ECONNABORTED);
                     return;
@@ -251,6 +436,9 @@ public class PseudoTcp {
                 long nInFlight = m_snd_nxt - m_snd_una;
                 m_ssthresh = max(nInFlight / 2, 2 * m_mss);
                 m_cwnd = m_mss;
+                m_dup_acks = 0;
+                m_t_rack = 0;
+                m_tlp_high_seq = 0;
 
                 // Back off retransmit timer.  Note: the limit is lower when connecting.
                 long rto_limit = m_state.beforeEstablished ? DEF_RTO : MAX_RTO;
@@ -282,6 +470,11 @@ public class PseudoTcp {
             packet(m_snd_nxt, 0, null, 0, 0);
         }
 
+        if (m_state == TCP_ESTABLISHED)
+        {
+          shrinkBuffers(now);
+        }
+
         if(PSEUDO_KEEPALIVE)
         {
           // Check for idle timeout
@@ -302,6 +495,54 @@ public class PseudoTcp {
     // Call this whenever a packet arrives.
     // Returns true if the packet was processed successfully.
     public synchronized boolean notifyPacket(byte[] buffer, int len)
+    {
+        return doNotifyPacket(buffer, len);
+    }
+
+    // Feeds a run of packets that arrived together, such as one read from
+    // the link, as notifyPacket would one by one, except that sending (ACKs
+    // included) and onTcpReadable wait for the end of the run: the run gets
+    // one cumulative ACK and at most one readable notification, and the
+    // clock needs re-arming only once. Stops at the first packet
+    // notifyPacket would return false for, and returns false then.
+    public synchronized boolean notifyPackets(byte[][] buffers, int[] lens, int count)
+    {
+        return doNotifyPackets(buffers, lens, count);
+    }
+
+    boolean doNotifyPackets(byte[][] buffers, int[] lens, int count)
+    {
+        boolean bOk = true;
+        m_bBatching = true;
+        m_batch_flags = sfNone;
+        m_batch_data = 0;
+        m_bBatchReadable = false;
+        try {
+          for (int i = 0; bOk && (i < count); i++) {
+            bOk = doNotifyPacket(buffers[i], lens[i]);
+          }
+        } finally {
+          m_bBatching = false;
+        }
+        if (m_state == TCP_CLOSED) {
+          return bOk;
+        }
+        SendFlags sflags = m_batch_flags;
+        if ((sflags == sfDelayedAck) && (m_batch_data >= 2)) {
+          // ACK every second segment, as the packets one by one would have
+          sflags = sfImmediateAck;
+        }
+        attemptSend(sflags);
+        if (m_bBatchReadable) {
+          m_bReadEnable = false;
+          if (m_notify != null) {
+            m_notify.onTcpReadable(this);
+          }
+        }
+        return bOk;
+    }
+
+    boolean doNotifyPacket(byte[] buffer, int len)
     {
         assert(len <= buffer.length);
         if (len > MAX_PACKET) 
@@ -309,7 +550,30 @@ public class PseudoTcp {
             m_notify.log(this, LOG_ERROR, "packet too large");
             return false;
         }
-        return parse(buffer, len);
+        boolean bParsed = parse(buffer, len);
+        if (bParsed && (m_state == TCP_ESTABLISHED) && m_budget.underPressure()) {
+          // a busy connection can go a long time between clock callbacks
+          shrinkBuffers(now());
+        }
+        return bParsed;
+    }
+
+    // Tells the socket whether the link under tcpWritePacket can take more
+    // data. While it cannot, no new data segments are sent (ACKs and
+    // retransmissions still are); sending resumes once it is writable again.
+    public synchronized void notifyLinkWritable(boolean writable)
+    {
+        doNotifyLinkWritable(writable);
+    }
+
+    void doNotifyLinkWritable(boolean writable)
+    {
+        boolean bWasBlocked = m_bLinkBlocked;
+        m_bLinkBlocked = !writable;
+        if (bWasBlocked && writable && (m_state != TCP_CLOSED))
+        {
+            attemptSend();
+        }
     }
 
     // Call this to determine the next time NotifyClock should be called.
@@ -321,15 +585,273 @@ public class PseudoTcp {
 
     public enum SendFlags { sfNone, sfDelayedAck, sfImmediateAck };
 
-    // Note: can't go as high as 1024 * 64, because of uint16 precision
-    //JAYARAJ: 32-bit wnd
-    static final int kRcvBufSize = 1024 * 1024;
-    //static final int kRcvBufSize = 1024 * 60;
-    // Note: send buffer should be larger to make sure we can always fill the
-    // receiver window
-    //JAYARAJ: 32-bit wnd
-    static final int kSndBufSize = 1024 * 1600;
-    //static final int kSndBufSize = 1024 * 90;
+    // Per-connection controls, after the socket options of the same names.
+    // OPT_INTERACTIVE applies NODELAY and QUICKACK only while the traffic
+    // looks interactive: application writes (for NODELAY) or received
+    // segments (for QUICKACK) averaging under half an MSS and INTERACTIVE_SIZE.
+    // Setting a buffer size fixes it; 0 goes back to auto-tuning.
+    public enum Option {
+      OPT_NODELAY,    // 1: send partial segments without waiting for ACKs
+      OPT_CORK,       // 1: send only full segments until set back to 0
+      OPT_QUICKACK,   // 1: ACK every data segment immediately
+      OPT_INTERACTIVE,// 1: NODELAY and QUICKACK while traffic is interactive
+      OPT_RCVBUF,     // receive buffer (and so window) size in bytes
+      OPT_SNDBUF,     // send buffer size in bytes
+      OPT_OFFHEAP,    // 1: keep the buffers in direct memory from BufferPool.DEFAULT
+      OPT_ZERO_RTT    // 1: data sent before the connection is up goes with the connect
+    };
+
+    public synchronized void setOption(Option opt, int value)
+    {
+        doSetOption(opt, value);
+    }
+
+    void doSetOption(Option opt, int value)
+    {
+        boolean on = value != 0;
+        switch (opt) {
+          case OPT_NODELAY:
+            m_bNoDelay = on;
+            break;
+          case OPT_CORK:
+            m_bCork = on;
+            break;
+          case OPT_QUICKACK:
+            m_bQuickAck = on;
+            break;
+          case OPT_INTERACTIVE:
+            m_bInteractive = on;
+            break;
+          case OPT_RCVBUF:
+            m_bRcvBufLocked = on;
+            if (on && resizeReceiveBuffer(bound(MIN_PACKET, value, MAX_RCV_BUF))) {
+              m_rcv_wnd = m_rbuf.length() - m_rlen;
+            }
+            break;
+          case OPT_SNDBUF:
+            m_bSndBufLocked = on;
+            if (on) {
+              resizeSendBuffer(bound(MIN_PACKET, value, MAX_SND_BUF));
+            }
+            break;
+          case OPT_OFFHEAP:
+            moveWindows(on ? BufferPool.DEFAULT : null);
+            break;
+          case OPT_ZERO_RTT:
+            m_bZeroRtt = on;
+            break;
+        }
+        // releasing Nagle or the cork may let a held segment go
+        if (m_state == TCP_ESTABLISHED) {
+          attemptSend();
+        }
+    }
+
+    public int getOption(Option opt)
+    {
+        switch (opt) {
+          case OPT_NODELAY:
+            return m_bNoDelay ? 1 : 0;
+          case OPT_CORK:
+            return m_bCork ? 1 : 0;
+          case OPT_QUICKACK:
+            return m_bQuickAck ? 1 : 0;
+          case OPT_RCVBUF:
+            return m_rbuf.length();
+          case OPT_SNDBUF:
+            return m_sbuf.length();
+          case OPT_OFFHEAP:
+            return m_sbuf.isDirect() ? 1 : 0;
+          case OPT_ZERO_RTT:
+            return m_bZeroRtt ? 1 : 0;
+          default:
+            return m_bInteractive ? 1 : 0;
+        }
+    }
+
+    long interactiveSize()
+    {
+        return min(m_mss / 2, INTERACTIVE_SIZE);
+    }
+
+    boolean noDelay()
+    {
+        return m_bNoDelay || (m_bInteractive && (m_avg_write < interactiveSize()));
+    }
+
+    boolean quickAck()
+    {
+        return m_bQuickAck || (m_bInteractive && (m_avg_recv < interactiveSize()));
+    }
+
+    // Bytes of m_rbuf in use past the queued data: out-of-order segments
+    // sit at their offset from m_rcv_nxt
+    long rcvExtent()
+    {
+        return m_rlist.isEmpty() ? 0 : max(0, m_rlist.last() - m_rcv_nxt);
+    }
+
+    // Dynamic right-sizing, after Linux tcp_rcv_space_adjust: about once
+    // per RTT, work out how much the application drains in one (minimum)
+    // RTT. If that went up the sender is ramping up or window limited, so
+    // make room for twice that: enough to let slow start double, while
+    // keeping the data in flight within about twice the path's BDP.
+    void tuneReceiveBuffer()
+    {
+        if (m_bRcvBufLocked || m_bBuffersReleased || (m_shutdown != SD_NONE)) {
+          return;
+        }
+        long rtt = minRtt();
+        long nowUs = m_clock.nowMicros();
+        long elapsed = nowUs - m_rcvq_time;
+        if ((rtt == 0) || (elapsed < rtt)) {
+          return;
+        }
+        long drained = (m_rcv_copied - m_rcvq_seq) * rtt / elapsed;
+        if (drained > m_rcvq_space) {
+          long rcvwin = min(2 * drained + 4 * m_mss, MAX_RCV_BUF);
+          if ((rcvwin > m_rbuf.length()) && !m_budget.underPressure()) {
+            // take what the budget has left if it can't cover it all
+            resizeReceiveBuffer(min(rcvwin, m_rbuf.length() + m_budget.available()));
+          }
+          m_rcvq_space = drained;
+        }
+        m_rcvq_seq = m_rcv_copied;
+        m_rcvq_time = nowUs;
+    }
+
+    // Path RTT for sizing the receive window, in microseconds: the smaller
+    // of our timestamp minimum (at least the handshake got timed, before any
+    // queue built up) and the receiver-side estimate; 0 if neither exists.
+    long minRtt()
+    {
+        if ((m_rx_minrtt == 0) || ((m_rcv_rtt != 0) && (m_rcv_rtt < m_rx_minrtt))) {
+          return m_rcv_rtt;
+        }
+        return m_rx_minrtt;
+    }
+
+    // Receiver-side RTT without timestamps of our own (a pure receiver sends
+    // no data to time): the time it takes for a window's worth of data to
+    // arrive, minimum over the connection (Linux tcp_rcv_rtt_measure).
+    void measureRcvRtt()
+    {
+        long nowUs = m_clock.nowMicros();
+        if (m_rcv_rtt_time != 0) {
+          if (m_rcv_nxt < m_rcv_rtt_seq) {
+            return;
+          }
+          long sample = nowUs - m_rcv_rtt_time;
+          if ((m_rcv_rtt == 0) || (sample < m_rcv_rtt)) {
+            m_rcv_rtt = max(1, sample);
+          }
+        }
+        m_rcv_rtt_seq = m_rcv_nxt + m_rcv_wnd;
+        m_rcv_rtt_time = nowUs;
+    }
+
+    // As Linux tcp_sndbuf_expand: while the application is held back by a
+    // full send buffer, keep room for twice what the window lets us send.
+    void tuneSendBuffer()
+    {
+        if (m_bSndBufLocked || m_bBuffersReleased || !m_bWriteEnable || (m_shutdown != SD_NONE)) {
+          return;
+        }
+        long want = min(2 * min(m_cwnd, m_snd_wnd), MAX_SND_BUF);
+        if ((want > m_sbuf.length()) && !m_budget.underPressure()) {
+          // grow by at least half, so a ramping window doesn't copy every ACK
+          want = min(max(want, m_sbuf.length() * 3L / 2), MAX_SND_BUF);
+          resizeSendBuffer(min(want, m_sbuf.length() + m_budget.available()));
+        }
+    }
+
+    // Returns the buffers of a connection that has carried no data for
+    // BUF_IDLE_SHRINK to the initial size, if they're empty. While the budget
+    // is under pressure, also halves buffers above the initial size every
+    // BUF_PRESSURE_TRIM, busy or not: the receive window closes to fit at
+    // once, so the peer may have to resend segments already in flight.
+    void shrinkBuffers(long now)
+    {
+        boolean bTrim = m_budget.underPressure() && (timeDiff(now, m_t_trim) >= BUF_PRESSURE_TRIM);
+        if (bTrim) {
+          m_t_trim = now;
+        }
+        if (!m_bRcvBufLocked && (m_rbuf.length() > INITIAL_RCV_BUF)) {
+          long size = 0;
+          if ((m_rlen == 0) && m_rlist.isEmpty() && (timeDiff(now, m_lastdata) >= BUF_IDLE_SHRINK)) {
+            size = INITIAL_RCV_BUF;
+            m_rcvq_space = INITIAL_RCV_BUF / 4;
+          } else if (bTrim) {
+            size = max(INITIAL_RCV_BUF, m_rbuf.length() / 2);
+          }
+          long before = m_rbuf.length();
+          if ((size != 0) && resizeReceiveBuffer(size) && (m_rbuf.length() < before)) {
+            // let the peer know before it sends into the old window
+            attemptSend(sfImmediateAck);
+          }
+        }
+        if (!m_bSndBufLocked && (m_sbuf.length() > INITIAL_SND_BUF)) {
+          if ((m_slen == 0) && (timeDiff(now, m_lastsend) >= BUF_IDLE_SHRINK)) {
+            resizeSendBuffer(INITIAL_SND_BUF);
+          } else if (bTrim) {
+            resizeSendBuffer(max(INITIAL_SND_BUF, m_sbuf.length() / 2));
+          }
+        }
+    }
+
+    // Reallocates the receive buffer, keeping queued and out-of-order data.
+    // A smaller buffer closes the window to fit at once; a larger one opens
+    // it with the next read (see doRecv). Returns false if the budget can't
+    // cover the growth.
+    boolean resizeReceiveBuffer(long size)
+    {
+        size = max(size, m_rlen + rcvExtent());
+        long delta = size - m_rbuf.length();
+        if (delta == 0) {
+          return true;
+        }
+        if (!reserveDelta(delta)) {
+          return false;
+        }
+        WindowBuffer rbuf = WindowBuffer.allocate((int)size, m_pool);
+        m_rbuf.copyTo(rbuf, (int)(m_rlen + rcvExtent()));
+        m_rbuf.free();
+        m_rbuf = rbuf;
+        m_rcv_wnd = min(m_rcv_wnd, m_rbuf.length() - m_rlen);
+        return true;
+    }
+
+    boolean resizeSendBuffer(long size)
+    {
+        size = max(size, m_slen);
+        long delta = size - m_sbuf.length();
+        if (delta == 0) {
+          return true;
+        }
+        if (!reserveDelta(delta)) {
+          return false;
+        }
+        WindowBuffer sbuf = WindowBuffer.allocate((int)size, m_pool);
+        m_sbuf.copyTo(sbuf, (int)m_slen);
+        m_sbuf.free();
+        m_sbuf = sbuf;
+        return true;
+    }
+
+    boolean reserveDelta(long delta)
+    {
+        if (m_bBuffersReleased) {
+          // nothing to account against once closed
+        } else if (delta < 0) {
+          m_budget.release(-delta);
+          m_reserved += delta;
+        } else if (m_budget.tryReserve(delta)) {
+          m_reserved += delta;
+        } else {
+          return false;
+        }
+        return true;
+    }
 
     static class Segment {
       long conv, seq, ack;
@@ -343,59 +865,33 @@ public class PseudoTcp {
       long tsval, tsecr;
     };
 
-    class SSegment {
-      SSegment(long s, long l, boolean c){
-          seq = s;
-          len = l;
-          xmit =0;
-          bCtrl = c;
-      }
-      long seq, len;
-      //uint32 tstamp;
-      int xmit;
-      boolean bCtrl;
-    };
-      
-    static class SList extends LinkedList<SSegment>
-    {
-    };
-
-    static class RSegment {
-      long seq, len;
-    };
-
-    long queue(byte[] data, int len, boolean bCtrl)
+    long queue(byte[] data, int offset, int len, boolean bCtrl)
     {
-        assert(len <= data.length);
-        if (len > m_sbuf.length - m_slen) {
+        assert(offset + len <= data.length);
+        if (len > m_sbuf.length() - m_slen) {
           assert(!bCtrl);
-          len = (int) (m_sbuf.length - m_slen);
+          len = (int) (m_sbuf.length() - m_slen);
         }
 
         // We can concatenate data if the last segment is the same type
         // (control v. regular data), and has not been transmitted yet
-        SSegment back = null;
-        if(!m_slist.isEmpty()){
-            back = m_slist.getLast();
-        }
-        
-        if (back != null && (back.bCtrl == bCtrl) && (back.xmit == 0)) 
+        int back = m_slist.size() - 1;
+        if ((back >= 0) && (m_slist.isCtrl(back) == bCtrl) && (m_slist.xmit(back) == 0)) 
         {
-            back.len += len;
+            m_slist.setLen(back, m_slist.len(back) + len);
         }else 
         {
-            SSegment sseg = new SSegment(m_snd_una + m_slen, len, bCtrl);
-             m_slist.addLast(sseg);
+            m_slist.addLast(m_snd_una + m_slen, len, bCtrl);
         }
 
         //memcpy(m_sbuf + m_slen, data, len);
-        System.arraycopy(data, 0, m_sbuf, (int)m_slen, (int)len);
+        m_sbuf.put((int)m_slen, data, offset, (int)len);
         m_slen += len;
         //LOG(LS_INFO) << "PseudoTcp::queue - m_slen = " << m_slen;
         return len;
     }
 
-    IPseudoTcpNotify.WriteResult packet(long seq, int flags, byte[] data, int offset, int len)
+    IPseudoTcpNotify.WriteResult packet(long seq, int flags, WindowBuffer data, int offset, int len)
     {
         assert(HEADER_SIZE + len <= MAX_PACKET);
 
@@ -405,13 +901,16 @@ public class PseudoTcp {
         long_to_bytes(m_conv, buffer, 0);
         long_to_bytes(seq, buffer, 4);
         long_to_bytes(m_rcv_nxt, buffer, 8);
+        if (m_bDupRcvd && (len == 0)) {
+          flags |= FLAG_DUP;
+        }
         buffer[12] = 0;
         buffer[13] = (byte) (flags&0xff);
         short_to_bytes((int)m_rcv_wnd, buffer, 14);
 
         // Timestamp computations
         //JAYARAJ: 32-bit wnd
-        long_to_bytes(now, buffer, 18);
+        long_to_bytes(timestamp(), buffer, 18);
         long_to_bytes(m_ts_recent, buffer, 22);
         /*long_to_bytes(now, buffer, 16);
         long_to_bytes(m_ts_recent, buffer, 20);
@@ -420,7 +919,7 @@ public class PseudoTcp {
 
         //memcpy(buffer + HEADER_SIZE, data, len);
         if(len > 0 && data != null){
-            System.arraycopy(data, offset, buffer, (int)HEADER_SIZE, len);
+            data.get(offset, buffer, (int)HEADER_SIZE, len);
         }
 
         IPseudoTcpNotify.WriteResult wres = 
@@ -434,6 +933,7 @@ public class PseudoTcp {
         }
 
         m_t_ack = 0;
+        m_bDupRcvd = false;
         if (len > 0) {
           m_lastsend = now;
         }
@@ -501,6 +1001,16 @@ public class PseudoTcp {
               nAvailable = nUseable;
             }
           }
+          if (m_bLinkBlocked) {
+            nAvailable = 0;
+          }
+          // Nagle algorithm, or cork: hold back a partial segment (but
+          // still send any ACK that is due)
+          if ((nAvailable > 0) && (nAvailable < m_mss)) {
+            if (m_bCork || ((m_snd_nxt > m_snd_una) && !noDelay() && !m_state.beforeEstablished)) {
+              nAvailable = 0;
+            }
+          }
           if (nAvailable == 0) {
             if (sflags == sfNone)
               return;
@@ -514,42 +1024,17 @@ public class PseudoTcp {
             return;
           }
 
-          // Nagle algorithm
-          if ((m_snd_nxt > m_snd_una) && (nAvailable < m_mss))  {
-            return;
-          }
-
           // Find the next segment to transmit
-          ListIterator<SSegment> it = m_slist.listIterator();
-          //while (it->xmit > 0) {
-          while(it.hasNext()){
-            //++it;
-            SSegment item = it.next();
-            if(!(item.xmit > 0)){
-                it.previous();
-                break;
-            }
-            //ASSERT(it != m_slist.end());
-          }
-          assert(it.hasNext());
-          //SList::iterator seg = it;
-          SSegment seg = it.next();          
+          int seg = m_slist.firstUnsent();
+          assert(seg < m_slist.size());
 
           // If the segment is too large, break it into two
-          if (seg.len > nAvailable) {
-            SSegment subseg = 
-                    new SSegment(seg.seq + nAvailable, seg.len - nAvailable, seg.bCtrl);
-            seg.len = nAvailable;
-            //m_slist.insert(++it, subseg);
-            it.add(subseg);
-            it.previous();//reset the iterator, so what it points to seg when calling transmit
+          if (m_slist.len(seg) > nAvailable) {
+            m_slist.insert(seg + 1, m_slist.seq(seg) + nAvailable, m_slist.len(seg) - nAvailable, m_slist.isCtrl(seg), 0, 0);
+            m_slist.setLen(seg, nAvailable);
           }
 
-          //if (!transmit(seg, now)) {
-          //we need to make it point to seg, so:
-          assert(it.hasPrevious());
-          it.previous();
-          if(!transmit(it, now)){
+          if(!transmit(seg, now)){
             m_notify.log(this, LOG_VERBOSE,  "transmit failed");
             // TODO: consider closing socket
             return;
@@ -567,6 +1052,8 @@ public class PseudoTcp {
     void closedown(long err)
     {
         m_slen = 0;
+        releaseBuffers();
+        freeWindows();
 
         m_notify.log(this, LOG_INFO, "State: TCP_CLOSED");
         m_state = TCP_CLOSED;
@@ -581,8 +1068,10 @@ public class PseudoTcp {
         if (m_shutdown == SD_FORCEFUL){
           return false;
         }
+        // a graceful close before the handshake completes waits for it if
+        // data went out early
         if ((m_shutdown == SD_GRACEFUL) && 
-            ((m_state != TCP_ESTABLISHED) || ((m_slen == 0) && (m_t_ack == 0)))) 
+            (((m_state != TCP_ESTABLISHED) && !canSendEarly()) || ((m_slen == 0) && (m_t_ack == 0)))) 
         {
           return false;
         }
@@ -602,6 +1091,15 @@ public class PseudoTcp {
         {
             nTimeout.value = min(nTimeout.value, timeDiff(m_rto_base + m_rx_rto, now));
         }
+        if (m_t_rack != 0)
+        {
+            nTimeout.value = min(nTimeout.value, timeDiff(m_t_rack, now));
+        }
+        long pto = probeTimeout();
+        if (pto != 0)
+        {
+            nTimeout.value = min(nTimeout.value, timeDiff(m_rto_base + pto, now));
+        }
         if (m_snd_wnd == 0) 
         {
           nTimeout.value = min(nTimeout.value, timeDiff(m_lastsend + m_rx_rto, now));
@@ -651,13 +1149,14 @@ public class PseudoTcp {
                 return false;
             } else if (seg.data[0] == CTL_CONNECT) {
                 bConnect = true;
+                m_bPeerMarksDup = (seg.flags & FLAG_DUP) != 0;
                 if (m_state == TCP_LISTEN) {
                     m_state = TCP_SYN_RECEIVED;
                     m_notify.log(this, LOG_INFO, "State: TCP_SYN_RECEIVED");
                     //m_notify->associate(addr);
                     byte buffer[] = new byte[1];
                     buffer[0] = CTL_CONNECT;
-                    queue(buffer, 1, true);
+                    queue(buffer, 0, 1, true);
                 } else if (m_state == TCP_SYN_SENT) {
                     m_state = TCP_ESTABLISHED;
                     m_notify.log(this, LOG_INFO, "State: TCP_ESTABLISHED");
@@ -674,9 +1173,37 @@ public class PseudoTcp {
         }else
         if(m_state == TCP_LISTEN)//JAYARAJ: we're receiving a data packet in listen mode
         {
+            if (seg.seq > m_rcv_nxt) {
+                // data sent with a connect that has not arrived (yet); the
+                // peer sends both again
+                m_notify.log(this, LOG_VERBOSE, "data before connect, dropped");
+                return true;
+            }
             m_notify.log(this, LOG_ERROR, "Receiving data packet in listen mode");
             return false;
         }
+        else if ((m_state == TCP_SYN_SENT) && (seg.ack > 0) && (m_rcv_nxt == 0))
+        {
+            // the peer took our connect and sent data with its answer, which
+            // is lost or late: the data stands for it, and its connect,
+            // should it come after all, for an old segment. The FLAG_DUP its
+            // connect carried is lost with it, but a peer that sends early
+            // data marks its duplicate ACKs too.
+            m_rcv_nxt = 1;
+            m_bPeerMarksDup = true;
+            m_state = TCP_ESTABLISHED;
+            m_notify.log(this, LOG_INFO, "State: TCP_ESTABLISHED");
+            adjustMTU();
+            if (m_notify != null) {
+                m_notify.onTcpOpen(this);
+            }
+        }
+        else if ((m_state == TCP_SYN_RECEIVED) && (seg.len > 0) && !m_bEarlyData)
+        {
+            // the peer sends early, so it takes early data back
+            m_bEarlyData = true;
+            adjustMTU();
+        }
         
         
          // Update timestamp
@@ -688,8 +1215,12 @@ public class PseudoTcp {
          if ((seg.ack > m_snd_una) && (seg.ack <= m_snd_nxt)) {
            // Calculate round-trip time
            if (seg.tsecr != 0) {
-             long rtt = timeDiff(now, seg.tsecr);
-             if (rtt >= 0) {
+             // tsecr is our own microsecond timestamp echoed back
+             long rtt = (timestamp() - seg.tsecr) & 0xFFFFFFFFL;
+             if (rtt <= MAX_RTO * 1000) {
+               if ((m_rx_minrtt == 0) || (rtt < m_rx_minrtt)) {
+                 m_rx_minrtt = rtt;
+               }
                if (m_rx_srtt == 0) {
                  m_rx_srtt = rtt;
                  m_rx_rttvar = rtt / 2;
@@ -697,9 +1228,9 @@ public class PseudoTcp {
                  m_rx_rttvar = (3 * m_rx_rttvar + Math.abs((long)(rtt - m_rx_srtt))) / 4;
                  m_rx_srtt = (7 * m_rx_srtt + rtt) / 8;
                }
-               m_rx_rto = bound(MIN_RTO, m_rx_srtt + max(1, 4 * m_rx_rttvar), MAX_RTO);
-             } else {
-               assert(false);
+               // timers tick in milliseconds, so that is the granularity G
+               long rto_us = m_rx_srtt + max(1000, 4 * m_rx_rttvar);
+               m_rx_rto = bound(MIN_RTO, (rto_us + 999) / 1000, MAX_RTO);
              }
            }
            m_snd_wnd = seg.wnd;
@@ -708,23 +1239,44 @@ public class PseudoTcp {
            m_snd_una = seg.ack;
 
            m_rto_base = (m_snd_una == m_snd_nxt) ? 0 : now;
+           m_t_rack = 0;
+
+           // The timestamp echoed by the first ACK past a probe or timeout
+           // tells which transmission got through: the receiver only takes
+           // tsval from the segment that fills its next expected byte.
+           if ((m_tlp_high_seq != 0) && (m_snd_una >= m_tlp_high_seq)) {
+             if ((m_dup_acks < 3) && (seg.tsecr != 0) && !tsBefore(seg.tsecr, m_tlp_ts)) {
+               // the probe repaired a tail loss
+               m_ssthresh = max((m_tlp_high_seq - m_snd_una + nAcked) / 2, 2 * m_mss);
+               m_cwnd = m_ssthresh;
+             }
+             m_tlp_high_seq = 0;
+           }
+           if ((m_rto_recover != 0) && (seg.tsecr != 0) && tsBefore(seg.tsecr, m_rto_ts)) {
+             // Eifel (RFC 3522): the original transmission arrived, so the
+             // timeout was spurious; restore the window it took away
+             m_notify.log(this, LOG_VERBOSE, "spurious retransmit timeout");
+             m_cwnd = max(m_cwnd, m_prior_cwnd);
+             m_ssthresh = max(m_ssthresh, m_prior_ssthresh);
+             m_rto_recover = 0;
+           }
 
            m_slen -= nAcked;
            //memmove(m_sbuf, m_sbuf + nAcked, m_slen);
-           System.arraycopy(m_sbuf, (int)nAcked, m_sbuf, 0, (int)m_slen);
+           m_sbuf.shift((int)nAcked, (int)m_slen);
            //LOG(LS_INFO) << "PseudoTcp::process - m_slen = " << m_slen;
 
            for (long nFree = nAcked; nFree > 0; ) {
              assert(!m_slist.isEmpty());
-             SSegment front = m_slist.getFirst();
-             if (nFree < front.len) {
-               front.len -= nFree;
+             long front = m_slist.len(0);
+             if (nFree < front) {
+               m_slist.setLen(0, front - nFree);
                nFree = 0;
              } else {
-               if (front.len > m_largest) {
-                 m_largest = front.len;
+               if (front > m_largest) {
+                 m_largest = front;
                }
-               nFree -= front.len;
+               nFree -= front;
                m_slist.removeFirst();
              }
            }
@@ -735,19 +1287,38 @@ public class PseudoTcp {
                m_cwnd = min(m_ssthresh, nInFlight + m_mss); // (Fast Retransmit)
                m_dup_acks = 0;
              } else {
-               if (!transmit(m_slist.listIterator(), now)) {
+               if (!transmit(0, now)) {
                  closedown(ECONNABORTED);
                  return false;
                }
                m_cwnd += m_mss - min(nAcked, m_cwnd);
              }
            } else {
+             // Slow start, congestion avoidance. A stretch ACK, as a peer
+             // taking packets in runs sends, counts as the delayed ACKs
+             // (one per two segments) it stands for; one filling a hole
+             // after duplicates or a timeout does not.
+             long nAcks = 1;
+             if ((m_dup_acks == 0) && (m_rto_recover == 0)) {
+               nAcks = max(1, nAcked / (2 * m_mss));
+             }
              m_dup_acks = 0;
-             // Slow start, congestion avoidance
              if (m_cwnd < m_ssthresh) {
-               m_cwnd += m_mss;
+               m_cwnd += nAcks * m_mss;
+             } else {
+               m_cwnd += nAcks * max(1, m_mss * m_mss / m_cwnd);
+             }
+           }
+           if (m_rto_recover != 0) {
+             if (m_snd_una < m_rto_recover) {
+               // Everything sent before the timeout is presumed lost:
+               // resend the next hole now rather than on another timeout
+               if (!transmit(0, now)) {
+                 closedown(ECONNABORTED);
+                 return false;
+               }
              } else {
-               m_cwnd += max(1, m_mss * m_mss / m_cwnd);
+               m_rto_recover = 0;
              }
            }
            // !?! A bit hacky
@@ -761,10 +1332,13 @@ public class PseudoTcp {
              //notify(evOpen);
            }
 
+           tuneSendBuffer();
+
            // If we make room in the send queue, notify the user
            // The goal it to make sure we always have at least enough data to fill the
            // window.  We'd like to notify the app when we are halfway to that point.
-           final long kIdealRefillSize = (m_sbuf.length + m_rbuf.length) / 2;
+           // (tuneSendBuffer keeps the buffer at about twice the window)
+           final long kIdealRefillSize = m_sbuf.length() / 2;
            if (m_bWriteEnable && (m_slen < kIdealRefillSize)) {
              m_bWriteEnable = false;
              if (m_notify != null) {
@@ -779,20 +1353,19 @@ public class PseudoTcp {
            // Check duplicate acks
            if (seg.len > 0) {
              // it's a dup ack, but with a data payload, so don't modify m_dup_acks
+           } else if ((seg.flags & FLAG_DUP) != 0) {
+             // an echo of a retransmission that was not needed (e.g. a tail
+             // loss probe), not a sign that anything is missing; only a peer
+             // that marks its duplicate ACKs sends one
+             m_bPeerMarksDup = true;
            } else if (m_snd_una != m_snd_nxt) {
              m_dup_acks += 1;
-             if (m_dup_acks == 3) { // (Fast Retransmit)
-               if (!transmit(m_slist.listIterator(), now)) {
-                 closedown(ECONNABORTED);
+             if (m_dup_acks > 3) {
+               m_cwnd += m_mss;
+             } else if ((m_dup_acks == 3) || rackHeadLost(now)) { // (Fast Retransmit)
+               if (!fastRetransmit(now)) {
                  return false;
                }
-               m_recover = m_snd_nxt;
-               long nInFlight = m_snd_nxt - m_snd_una;
-               m_ssthresh = max(nInFlight / 2, 2 * m_mss);
-               //LOG(LS_INFO) << "m_ssthresh: " << m_ssthresh << "  nInFlight: " << nInFlight << "  m_mss: " << m_mss;
-               m_cwnd = m_ssthresh + 3 * m_mss;
-             } else if (m_dup_acks > 3) {
-               m_cwnd += m_mss;
              }
            } else {
              m_dup_acks = 0;
@@ -809,8 +1382,12 @@ public class PseudoTcp {
          SendFlags sflags = sfNone;
          if (seg.seq != m_rcv_nxt) {
            sflags = sfImmediateAck; // (Fast Recovery)
+           if ((seg.len > 0) && (seg.seq + seg.len <= m_rcv_nxt)) {
+             m_bDupRcvd = true; // tell the sender it resent something we had
+           }
          } else if (seg.len != 0) {
-           sflags = sfDelayedAck;
+           m_avg_recv = (3 * m_avg_recv + seg.len) / 4;
+           sflags = quickAck() ? sfImmediateAck : sfDelayedAck;
          }
          // Adjust the incoming segment to fit our receive buffer
          if (seg.seq < m_rcv_nxt) {
@@ -824,8 +1401,8 @@ public class PseudoTcp {
              seg.len = 0;
            }
          }
-         if ((seg.seq + seg.len - m_rcv_nxt) > (m_rbuf.length - m_rlen)) {
-           long nAdjust = seg.seq + seg.len - m_rcv_nxt - (m_rbuf.length - m_rlen);
+         if ((seg.seq + seg.len - m_rcv_nxt) > (m_rbuf.length() - m_rlen)) {
+           long nAdjust = seg.seq + seg.len - m_rcv_nxt - (m_rbuf.length() - m_rlen);
            if (nAdjust < seg.len) {
              seg.len -= nAdjust;
            } else {
@@ -844,47 +1421,48 @@ public class PseudoTcp {
            } else {
              long nOffset = seg.seq - m_rcv_nxt;
              //memcpy(m_rbuf + m_rlen + nOffset, seg.data, seg.len);
-             System.arraycopy(seg.data, 0, m_rbuf, (int)(m_rlen + nOffset), (int)seg.len);
+             m_rbuf.put((int)(m_rlen + nOffset), seg.data, 0, (int)seg.len);
              if (seg.seq == m_rcv_nxt) {
                m_rlen += seg.len;
                m_rcv_nxt += seg.len;
                m_rcv_wnd -= seg.len;
                bNewData = true;
+               m_lastdata = now;
 
-               ListIterator<RSegment> it = m_rlist.listIterator();
-               //while ((it != m_rlist.end()) && (it->seq <= m_rcv_nxt)) {
-               while(it.hasNext()){                   
-                 RSegment item = it.next();
-                 if(item.seq <= m_rcv_nxt) break;
-                 
-                 if (item.seq + item.len > m_rcv_nxt) {
+               // the ranges are merged, so at most the first one joins up
+               while (!m_rlist.isEmpty() && (m_rlist.start(0) <= m_rcv_nxt)) {
+                 long end = m_rlist.end(0);
+                 if (end > m_rcv_nxt) {
                    sflags = sfImmediateAck; // (Fast Recovery)
-                   long nAdjust = (item.seq + item.len) - m_rcv_nxt;
+                   long nAdjust = end - m_rcv_nxt;
                    m_rlen += nAdjust;
                    m_rcv_nxt += nAdjust;
                    m_rcv_wnd -= nAdjust;
                  }
-                 //it = m_rlist.erase(it);
-                 it.remove();//removes item returned by last call to it.next()/it.previous()
+                 m_rlist.removeFirst();
                }
              } else {
-               RSegment rseg = new RSegment();
-               rseg.seq = seg.seq;
-               rseg.len = seg.len;
-               ListIterator<RSegment> it = m_rlist.listIterator();
-               //while (it.hasNext() && (it->seq < rseg.seq)) {
-               while(it.hasNext()){
-                 RSegment item = it.next();
-                 if (!(item.seq < rseg.seq)){
-                     it.previous();//go back to the item that satisified our loop condition
-                     break;                     
-                 }
-               }
-               it.add(rseg);  //m_rlist.insert(it, rseg);
+               m_rlist.insert(seg.seq, seg.len);
              }
            }
          }
          
+         if (bNewData) {
+           measureRcvRtt();
+         }
+
+         if (m_bBatching) {
+           // doNotifyPackets sends and notifies once for the whole run
+           if (sflags.ordinal() > m_batch_flags.ordinal()) {
+             m_batch_flags = sflags;
+           }
+           if (seg.len > 0) {
+             m_batch_data++;
+           }
+           m_bBatchReadable |= bNewData;
+           return true;
+         }
+
          attemptSend(sflags);
 
          // If we have new data, notify the user
@@ -900,23 +1478,117 @@ public class PseudoTcp {
          return true;
     }
 
-    boolean transmit(ListIterator<SSegment> iseg, long now)
+    boolean fastRetransmit(long now)
+    {
+        if (!transmit(0, now)) {
+          closedown(ECONNABORTED);
+          return false;
+        }
+        m_recover = m_snd_nxt;
+        long nInFlight = m_snd_nxt - m_snd_una;
+        m_ssthresh = max(nInFlight / 2, 2 * m_mss);
+        //LOG(LS_INFO) << "m_ssthresh: " << m_ssthresh << "  nInFlight: " << nInFlight << "  m_mss: " << m_mss;
+        m_cwnd = m_ssthresh + m_dup_acks * m_mss;
+        m_dup_acks = 3;
+        m_t_rack = 0;
+        // give the retransmission a full RTO before timing out on it
+        m_rto_base = now;
+        return true;
+    }
+
+    // RACK (RFC 8985) with cumulative ACKs only: a duplicate ACK means
+    // something sent after the head has arrived, so the head is lost once
+    // it has been out for an RTT plus a reordering window, even if fewer
+    // than three duplicates come back. Until then m_t_rack rechecks it.
+    // Only used when the peer marks ACKs of duplicate segments (FLAG_DUP);
+    // otherwise our own redundant retransmissions would trigger it.
+    boolean rackHeadLost(long now)
+    {
+        if (!m_bPeerMarksDup || (m_rx_srtt == 0) || m_slist.isEmpty()) {
+          return false;
+        }
+        long nowUs = m_clock.nowMicros();
+        long deadline = m_slist.tstamp(0) + m_rx_srtt + m_rx_minrtt / 4;
+        if (nowUs >= deadline) {
+          return true;
+        }
+        m_t_rack = now + (deadline - nowUs + 999) / 1000;
+        return false;
+    }
+
+    // Tail loss probe (RFC 8985): with data outstanding and no ACK for about
+    // two RTTs, send one more segment well before the RTO so that the
+    // receiver's ACK triggers fast recovery instead. The timeout is at least
+    // srtt + 4 * rttvar: a bulk sender's own queue stretches the RTT while
+    // its window grows. Returns the delay after m_rto_base in ms, or 0 when
+    // no probe is due.
+    long probeTimeout()
+    {
+        if ((m_rto_base == 0) || (m_rx_srtt == 0) || (m_state != TCP_ESTABLISHED)
+            || (m_tlp_high_seq != 0) || (m_rto_recover != 0) || (m_dup_acks != 0) || (m_snd_wnd == 0)) {
+          return 0;
+        }
+        long pto = (max(2 * m_rx_srtt, m_rx_srtt + 4 * m_rx_rttvar) + 999) / 1000;
+        if (m_snd_nxt - m_snd_una <= m_mss) {
+          pto += ACK_DELAY; // a lone segment may be waiting on a delayed ack
+        }
+        pto = max(pto, TLP_MIN_PTO);
+        return (pto < m_rx_rto) ? pto : 0;
+    }
+
+    // The probe is new data if there is any and the peer's window takes it,
+    // which costs nothing when the tail was not lost, else the last segment
+    // sent again.
+    boolean sendProbe(long now)
+    {
+        long nInFlight = m_snd_nxt - m_snd_una;
+        long nNew = min(m_slen - nInFlight, m_mss);
+        int seg;
+        if ((nNew > 0) && (nInFlight + nNew <= m_snd_wnd)) {
+          seg = m_slist.firstUnsent();
+          if (m_slist.len(seg) > nNew) {
+            m_slist.insert(seg + 1, m_slist.seq(seg) + nNew, m_slist.len(seg) - nNew, m_slist.isCtrl(seg), 0, 0);
+            m_slist.setLen(seg, nNew);
+          }
+        } else {
+          seg = m_slist.lastSent();
+          if (seg < 0) {
+            return true;
+          }
+        }
+        m_tlp_ts = timestamp();
+        if (!transmit(seg, now)) {
+          return false;
+        }
+        // m_snd_nxt is past every transmitted segment, so nonzero
+        m_tlp_high_seq = m_snd_nxt;
+        m_rto_base = now;
+        return true;
+    }
+
+    // Whether 32-bit timestamp a was taken before b
+    static boolean tsBefore(long a, long b)
     {
-        assert(iseg.hasNext());
-        SSegment seg = iseg.next();
-        if (seg.xmit >= ((m_state == TCP_ESTABLISHED) ? 15 : 30)) {
+        return (int) (a - b) < 0;
+    }
+
+    boolean transmit(int seg, long now)
+    {
+        assert(seg < m_slist.size());
+        if (m_slist.xmit(seg) >= ((m_state == TCP_ESTABLISHED) ? 15 : 30)) {
           m_notify.log(this, LOG_VERBOSE, "too many retransmits");
           return false;
         }
 
-        long nTransmit = min(seg.len, m_mss);       
+        long nTransmit = min(m_slist.len(seg), m_mss);       
 
         while (true) {
-          long seq = seg.seq;
-          int flags = (seg.bCtrl ? FLAG_CTL : 0);
+          long seq = m_slist.seq(seg);
+          // control segments advertise that our duplicate ACKs are marked
+          int flags = (m_slist.isCtrl(seg) ? FLAG_CTL | FLAG_DUP : 0);
           //char * buffer = m_sbuf + (seg->seq - m_snd_una);
-          byte[] buffer = m_sbuf;          
-          int buffer_offset  = (int)(seg.seq - m_snd_una);
+          WindowBuffer buffer = m_sbuf;
+          int buffer_offset  = (int)(seq - m_snd_una);
           WriteResult wres = packet(seq, flags, buffer, buffer_offset, (int)nTransmit);
           if (wres == WR_SUCCESS){
             break;
@@ -945,24 +1617,18 @@ public class PseudoTcp {
           }
         }
         
-        if (nTransmit < seg.len) {
+        long len = m_slist.len(seg);
+        if (nTransmit < len) {
           m_notify.log(this, LOG_VERBOSE, "mss reduced to " + m_mss);
 
-          SSegment subseg = 
-                    new SSegment(seg.seq + nTransmit, seg.len - nTransmit, seg.bCtrl);
-          //subseg.tstamp = seg->tstamp;
-          subseg.xmit = seg.xmit;
-          seg.len = nTransmit;
-
-          //SList::iterator next = seg;
-          //m_slist.insert(++next, subseg);
-          iseg.add(subseg);
+          // the tail was sent along with the head, so it keeps its time
+          m_slist.insert(seg + 1, m_slist.seq(seg) + nTransmit, len - nTransmit, m_slist.isCtrl(seg), m_slist.xmit(seg), m_slist.tstamp(seg));
+          m_slist.setLen(seg, nTransmit);
         }
-        if (seg.xmit == 0) {
-          m_snd_nxt += seg.len;
+        if (m_slist.xmit(seg) == 0) {
+          m_snd_nxt += m_slist.len(seg);
         }
-        seg.xmit += 1;
-        //seg->tstamp = now;
+        m_slist.transmitted(seg, m_clock.nowMicros());
         if (m_rto_base == 0) {
           m_rto_base = now;
         }
@@ -993,18 +1659,30 @@ public class PseudoTcp {
     TcpState m_state;
     long m_conv;
     boolean m_bReadEnable, m_bWriteEnable, m_bOutgoing;
+    boolean m_bLinkBlocked;
+    boolean m_bPeerMarksDup, m_bDupRcvd;
+    // Options, and the running averages OPT_INTERACTIVE goes by
+    boolean m_bNoDelay, m_bCork, m_bQuickAck, m_bInteractive;
+    // OPT_ZERO_RTT, and whether the peer sent data with its connect
+    boolean m_bZeroRtt, m_bEarlyData;
+    long m_avg_write, m_avg_recv;
     long m_lasttraffic;
 
     // Incoming data
-    static class RList extends LinkedList<RSegment>{};
     RList m_rlist = new RList();
 
-    byte[] m_rbuf= new byte[kRcvBufSize];
-    long m_rcv_nxt, m_rcv_wnd, m_rlen, m_lastrecv;
+    WindowBuffer m_rbuf = new WindowBuffer.Heap(INITIAL_RCV_BUF);
+    long m_rcv_nxt, m_rcv_wnd, m_rlen, m_lastrecv, m_lastdata;
+    // Receive buffer auto-tuning: bytes the application has read, the count
+    // and time at the start of the current RTT and the most it read in one;
+    // receiver-side RTT estimate (us) and the window edge it times to
+    long m_rcv_copied, m_rcvq_seq, m_rcvq_time, m_rcvq_space;
+    long m_rcv_rtt, m_rcv_rtt_seq, m_rcv_rtt_time;
+    boolean m_bRcvBufLocked, m_bSndBufLocked;
 
     // Outgoing data
     SList m_slist = new SList();
-    byte[] m_sbuf = new byte[kSndBufSize];
+    WindowBuffer m_sbuf = new WindowBuffer.Heap(INITIAL_SND_BUF);
     long m_snd_nxt, m_snd_wnd, m_slen, m_lastsend, m_snd_una;
     // Maximum segment size, estimated protocol level, largest segment sent
     long m_mss, m_msslevel, m_largest, m_mtu_advise;
@@ -1014,8 +1692,15 @@ public class PseudoTcp {
     // Timestamp tracking
     long m_ts_recent, m_ts_lastack;
 
-    // Round-trip calculation
-    long m_rx_rttvar, m_rx_srtt, m_rx_rto;
+    // Round-trip calculation: srtt, rttvar and minrtt in microseconds, rto in ms
+    long m_rx_rttvar, m_rx_srtt, m_rx_minrtt, m_rx_rto;
+
+    // Loss detection: RACK recheck time, outstanding tail loss probe (high
+    // seq and timestamp), and the recovery point, timestamp and prior window
+    // of a retransmit timeout
+    long m_t_rack;
+    long m_tlp_high_seq, m_tlp_ts;
+    long m_rto_recover, m_rto_ts, m_prior_cwnd, m_prior_ssthresh;
 
     // Congestion avoidance, Fast retransmit/recovery, Delayed ACKs
     long m_ssthresh, m_cwnd;
@@ -1024,15 +1709,30 @@ public class PseudoTcp {
     long m_t_ack;
     
     Object attachment = null;
+
+    final IClock m_clock;
+
+    // Where the buffers are accounted, and how much of it they hold
+    MemoryBudget m_budget;
+    long m_reserved, m_t_trim;
+    boolean m_bBuffersReleased;
+    // Where the buffers live: null for the heap
+    BufferPool m_pool;
+    boolean m_bWindowsFreed;
+
+    // State of a notifyPackets run in progress
+    boolean m_bBatching, m_bBatchReadable;
+    SendFlags m_batch_flags = sfNone;
+    int m_batch_data;
     
-    ScheduledFuture timerTask = null;
+    Future<?> timerTask = null;
     
-    public void setRunningTimer(ScheduledFuture timer)
+    public void setRunningTimer(Future<?> timer)
     {
         this.timerTask = timer;
     }
     
-    public ScheduledFuture runningTimer()
+    public Future<?> runningTimer()
     {
         return timerTask;
     }
@@ -0,0 +1,176 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Thread-safe front for a ConfinedPseudoTcp. Every call is queued onto the
+ * owner executor and the clock is re-armed there afterwards, so threads
+ * other than the owner never touch the state machine directly. Buffers
+ * passed in are copied before the call returns; results come back as
+ * futures.
+ */
+public class PseudoTcpFacade {
+
+    private final PseudoTcp tcp;
+    private final ScheduledExecutorService owner;
+
+    public PseudoTcpFacade(PseudoTcp tcp, ScheduledExecutorService owner)
+    {
+        this.tcp = tcp;
+        this.owner = owner;
+    }
+
+    public PseudoTcp tcp()
+    {
+        return tcp;
+    }
+
+    public Future<Integer> connect()
+    {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return tcp.connect();
+            }
+        });
+    }
+
+    public Future<Integer> send(byte[] buffer, int len)
+    {
+        final byte[] data = copy(buffer, len);
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                tcp.resetError();
+                return tcp.send(data, data.length);
+            }
+        });
+    }
+
+    // The result is the number of bytes copied into buffer, or -1 with the
+    // error left on the PseudoTcp. buffer must not be touched until then.
+    public Future<Integer> recv(final byte[] buffer)
+    {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                tcp.resetError();
+                return tcp.recv(buffer);
+            }
+        });
+    }
+
+    public Future<Boolean> notifyPacket(byte[] buffer, int len)
+    {
+        final byte[] data = copy(buffer, len);
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return tcp.notifyPacket(data, data.length);
+            }
+        });
+    }
+
+    public Future<Boolean> notifyPackets(byte[][] buffers, int[] lens, final int count)
+    {
+        final byte[][] data = new byte[count][];
+        final int[] len = new int[count];
+        for (int i = 0; i < count; i++) {
+            data[i] = copy(buffers[i], lens[i]);
+            len[i] = lens[i];
+        }
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return tcp.notifyPackets(data, len, count);
+            }
+        });
+    }
+
+    public Future<Void> notifyMTU(final int mtu)
+    {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                tcp.notifyMTU(mtu);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> setOption(final PseudoTcp.Option opt, final int value)
+    {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                tcp.setOption(opt, value);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> notifyLinkWritable(final boolean writable)
+    {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                tcp.notifyLinkWritable(writable);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> close(final boolean force)
+    {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                tcp.close(force);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> cleanup()
+    {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                tcp.cleanup();
+                return null;
+            }
+        });
+    }
+
+    private <T> Future<T> submit(final Callable<T> call)
+    {
+        FutureTask<T> task = new FutureTask<>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                try {
+                    return call.call();
+                } finally {
+                    HelperFunctions.adjustClock(owner, tcp);
+                }
+            }
+        });
+        owner.execute(task);
+        return task;
+    }
+
+    private static byte[] copy(byte[] buffer, int len)
+    {
+        byte[] data = new byte[len];
+        System.arraycopy(buffer, 0, data, 0, len);
+        return data;
+    }
+}
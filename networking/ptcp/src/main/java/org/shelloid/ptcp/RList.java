@@ -0,0 +1,213 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+/**
+ * Sequence space a PseudoTcp has received past m_rcv_nxt, as a set of
+ * [start, end) ranges; the data itself sits in the receive window. Segments
+ * are merged into the ranges they overlap or touch as they arrive, so the
+ * ranges are sorted, disjoint and never adjacent, and there is one per hole
+ * rather than one per segment. A ring of parallel arrays indexed from the
+ * head, so parking and draining segments allocate nothing once the ring is
+ * big enough. Not thread-safe; the socket's own locking covers it.
+ */
+final class RList {
+
+    static final int INITIAL_CAPACITY = 16;
+
+    private long[] start;
+    private long[] end;
+    private int head, size, mask;
+    // The range holding the last segment added, for blocks()
+    private long recentStart, recentEnd;
+
+    RList()
+    {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity)
+    {
+        start = new long[capacity];
+        end = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    private int slot(int i)
+    {
+        assert (i >= 0) && (i < size);
+        return (head + i) & mask;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    int capacity()
+    {
+        return mask + 1;
+    }
+
+    void clear()
+    {
+        head = size = 0;
+    }
+
+    long start(int i)
+    {
+        return start[slot(i)];
+    }
+
+    long end(int i)
+    {
+        return end[slot(i)];
+    }
+
+    // End of the highest range; the set must not be empty
+    long last()
+    {
+        return end(size - 1);
+    }
+
+    // Adds the segment [s, s + l), merging it with every range it overlaps
+    // or touches. Finding them is a binary search; opening or closing a gap
+    // in the ring moves whichever side is shorter, so segments arriving in
+    // order past a hole and ones arriving in reverse are both cheap.
+    void insert(long s, long l)
+    {
+        long e = s + l;
+        // first range ending at or after s, and first starting after e
+        int lo = search(end, s, 0);
+        int hi = search(start, e + 1, lo);
+        if (lo == hi) {
+            open(lo);
+            start[slot(lo)] = s;
+            end[slot(lo)] = e;
+        } else {
+            int first = slot(lo);
+            start[first] = Math.min(s, start[first]);
+            end[first] = Math.max(e, end(hi - 1));
+            s = start[first];
+            e = end[first];
+            close(lo + 1, hi - lo - 1);
+        }
+        recentStart = s;
+        recentEnd = e;
+    }
+
+    // Drops the first range
+    void removeFirst()
+    {
+        assert size > 0;
+        head = (head + 1) & mask;
+        size--;
+    }
+
+    // Writes up to max ranges to dst as start, end pairs, SACK style (RFC
+    // 2018): the range holding the latest segment first, then the others
+    // from the highest down. Returns the number of ranges written.
+    int blocks(long[] dst, int max)
+    {
+        int n = 0;
+        int recent = -1;
+        int i = search(end, recentEnd, 0);
+        if ((i < size) && (start(i) <= recentStart) && (end(i) >= recentEnd)) {
+            recent = i;
+        }
+        if ((recent >= 0) && (n < max)) {
+            dst[2 * n] = start(recent);
+            dst[2 * n + 1] = end(recent);
+            n++;
+        }
+        for (i = size - 1; (i >= 0) && (n < max); i--) {
+            if (i != recent) {
+                dst[2 * n] = start(i);
+                dst[2 * n + 1] = end(i);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    // First index from i on whose value in a is at least v; a is sorted
+    private int search(long[] a, long v, int i)
+    {
+        int hi = size;
+        while (i < hi) {
+            int mid = (i + hi) >>> 1;
+            if (a[slot(mid)] < v) {
+                i = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return i;
+    }
+
+    // Makes room for a range at index i
+    private void open(int i)
+    {
+        if (size == capacity()) {
+            grow();
+        }
+        size++;
+        if (i < size / 2) {
+            head = (head - 1) & mask;
+            for (int j = 0; j < i; j++) {
+                move(j + 1, j);
+            }
+        } else {
+            for (int j = size - 1; j > i; j--) {
+                move(j - 1, j);
+            }
+        }
+    }
+
+    // Removes n ranges from index i on
+    private void close(int i, int n)
+    {
+        if (n == 0) {
+            return;
+        }
+        if (i < size - i - n) {
+            for (int j = i - 1; j >= 0; j--) {
+                move(j, j + n);
+            }
+            head = (head + n) & mask;
+        } else {
+            for (int j = i + n; j < size; j++) {
+                move(j, j - n);
+            }
+        }
+        size -= n;
+    }
+
+    private void move(int from, int to)
+    {
+        start[slot(to)] = start[slot(from)];
+        end[slot(to)] = end[slot(from)];
+    }
+
+    private void grow()
+    {
+        long[] ostart = start, oend = end;
+        int ohead = head, omask = mask;
+        allocate(2 * capacity());
+        head = 0;
+        for (int i = 0; i < size; i++) {
+            int from = (ohead + i) & omask;
+            start[i] = ostart[from];
+            end[i] = oend[from];
+        }
+    }
+}
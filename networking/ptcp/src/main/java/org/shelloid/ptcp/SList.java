@@ -0,0 +1,192 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+/**
+ * Send queue of a PseudoTcp: the segments of the send window from
+ * m_snd_una on, in sequence order. A ring of parallel arrays indexed from
+ * the head, so queuing, splitting and ACKing segments allocate nothing once
+ * the ring is big enough. Segments that have been transmitted at least once
+ * always form a prefix of the queue. Not thread-safe; the socket's own
+ * locking covers it.
+ */
+final class SList {
+
+    static final int INITIAL_CAPACITY = 16;
+
+    private long[] seq;
+    private long[] len;
+    private long[] tstamp; // last transmission, IClock.nowMicros()
+    private int[] xmit;
+    private long[] ctrl;   // bitset by slot: control segment
+    private int head, size, mask;
+    private int sent;      // segments with xmit > 0, all at the front
+
+    SList()
+    {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity)
+    {
+        seq = new long[capacity];
+        len = new long[capacity];
+        tstamp = new long[capacity];
+        xmit = new int[capacity];
+        ctrl = new long[(capacity + 63) >> 6];
+        mask = capacity - 1;
+    }
+
+    private int slot(int i)
+    {
+        assert (i >= 0) && (i < size);
+        return (head + i) & mask;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    int capacity()
+    {
+        return mask + 1;
+    }
+
+    void clear()
+    {
+        head = size = sent = 0;
+    }
+
+    long seq(int i)
+    {
+        return seq[slot(i)];
+    }
+
+    long len(int i)
+    {
+        return len[slot(i)];
+    }
+
+    void setLen(int i, long l)
+    {
+        len[slot(i)] = l;
+    }
+
+    long tstamp(int i)
+    {
+        return tstamp[slot(i)];
+    }
+
+    int xmit(int i)
+    {
+        return xmit[slot(i)];
+    }
+
+    boolean isCtrl(int i)
+    {
+        int s = slot(i);
+        return (ctrl[s >> 6] & (1L << s)) != 0;
+    }
+
+    // Index of the first segment not transmitted yet; size() if none
+    int firstUnsent()
+    {
+        return sent;
+    }
+
+    // Index of the last segment transmitted; -1 if none
+    int lastSent()
+    {
+        return sent - 1;
+    }
+
+    void addLast(long s, long l, boolean c)
+    {
+        if (size == capacity()) {
+            grow();
+        }
+        size++;
+        store(size - 1, s, l, 0, 0, c);
+    }
+
+    // Inserts a segment before index i, e.g. the tail of a segment at i - 1
+    // split in two. One already transmitted may only go within the prefix
+    // of transmitted segments, and takes the tstamp t of the transmission
+    // it was part of.
+    void insert(int i, long s, long l, boolean c, int x, long t)
+    {
+        assert (i >= 0) && (i <= size);
+        assert (x == 0) ? (i >= sent) : (i <= sent);
+        if (size == capacity()) {
+            grow();
+        }
+        size++;
+        for (int j = size - 1; j > i; j--) {
+            int from = slot(j - 1);
+            store(j, seq[from], len[from], tstamp[from], xmit[from], (ctrl[from >> 6] & (1L << from)) != 0);
+        }
+        store(i, s, l, (x > 0) ? t : 0, x, c);
+        if (x > 0) {
+            sent++;
+        }
+    }
+
+    void removeFirst()
+    {
+        assert size > 0;
+        if (sent > 0) {
+            sent--;
+        }
+        head = (head + 1) & mask;
+        size--;
+    }
+
+    // Records a (re)transmission of the segment at i at time now (us)
+    void transmitted(int i, long now)
+    {
+        int s = slot(i);
+        if (xmit[s] == 0) {
+            assert i == sent;
+            sent++;
+        }
+        xmit[s] += 1;
+        tstamp[s] = now;
+    }
+
+    private void store(int i, long s, long l, long t, int x, boolean c)
+    {
+        int to = slot(i);
+        seq[to] = s;
+        len[to] = l;
+        tstamp[to] = t;
+        xmit[to] = x;
+        if (c) {
+            ctrl[to >> 6] |= 1L << to;
+        } else {
+            ctrl[to >> 6] &= ~(1L << to);
+        }
+    }
+
+    private void grow()
+    {
+        long[] oseq = seq, olen = len, otstamp = tstamp, octrl = ctrl;
+        int[] oxmit = xmit;
+        int ohead = head, omask = mask;
+        allocate(2 * capacity());
+        head = 0;
+        for (int i = 0; i < size; i++) {
+            int from = (ohead + i) & omask;
+            store(i, oseq[from], olen[from], otstamp[from], oxmit[from], (octrl[from >> 6] & (1L << from)) != 0);
+        }
+    }
+}
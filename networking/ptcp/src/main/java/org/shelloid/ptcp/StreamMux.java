@@ -0,0 +1,456 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+import static org.shelloid.ptcp.HelperFunctions.*;
+import static org.shelloid.ptcp.NetworkConstants.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Many streams over one PseudoTcp session, so that short connections skip
+ * the handshake and slow start of a session of their own and share its
+ * congestion window. Streams open without a round trip: the OPEN frame and
+ * the first data go out together. Each stream has its own flow control
+ * window, so one that is not read does not hold up the others, and streams
+ * with data take turns of at most MUX_QUANTUM bytes.
+ *
+ * The byte stream of the session is a sequence of frames:
+ *
+ *    byte 0     1               5               9
+ *         +------+---------------+---------------+
+ *         | Type |   Stream ID   |     Value     |
+ *         +------+---------------+---------------+
+ *
+ * OPEN, FIN (no more data from the sender) and RST carry a Value of 0.
+ * DATA is followed by Value bytes of payload; CREDIT gives the sender Value
+ * more bytes of window. Every stream starts with MUX_STREAM_WINDOW, and
+ * DATA beyond the window a stream has given resets it. The side that
+ * connected the session opens odd stream IDs, the other even.
+ *
+ * The owner of the session forwards its IPseudoTcpNotify events to the
+ * on* methods. Not thread-safe: everything happens on the thread that
+ * owns the PseudoTcp, as with ConfinedPseudoTcp.
+ */
+public class StreamMux {
+
+    static final int OPEN = 1;
+    static final int DATA = 2;
+    static final int CREDIT = 3;
+    static final int FIN = 4;
+    static final int RST = 5;
+
+    private final PseudoTcp tcp;
+    private final IStreamMuxNotify notify;
+    private final IScheduler scheduler;
+    private final HashMap<Integer, MuxStream> streams = new HashMap<>();
+    // Streams with something to send, in turn order
+    private final ArrayDeque<MuxStream> ready = new ArrayDeque<>();
+    private int nextId;
+
+    // Frames built but not taken by PseudoTcp yet
+    private byte[] out = new byte[MUX_HEADER_SIZE + MUX_QUANTUM];
+    private int outOff, outLen;
+    private boolean bFlushing, bFlushPending;
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            bFlushPending = false;
+            flush();
+        }
+    };
+
+    // Receiving: the header read so far, and the rest of the DATA frame
+    // being read (to a stream that may be gone already)
+    private final byte[] rbuf = new byte[64 * 1024];
+    private final byte[] hdr = new byte[MUX_HEADER_SIZE];
+    private int hdrLen;
+    private MuxStream rstream;
+    private long rleft;
+
+    private boolean bClosed;
+    private long opened, accepted;
+
+    // scheduler re-arms the session's clock after sends and reads, as
+    // HelperFunctions.adjustClock does for any PseudoTcp call, and runs the
+    // flush that stream calls leave for the end of the current task, so
+    // that an open, a write and a close go out in one segment. With a null
+    // scheduler both are left to the caller and every call sends at once.
+    //
+    // Nagle is turned off on tcp: segments carry frames of unrelated
+    // streams, and one stream's small write must not wait for the ACK of
+    // another's.
+    public StreamMux(PseudoTcp tcp, boolean initiator, IStreamMuxNotify notify, IScheduler scheduler)
+    {
+        this.tcp = tcp;
+        this.notify = notify;
+        this.scheduler = scheduler;
+        this.nextId = initiator ? 1 : 2;
+        tcp.setOption(PseudoTcp.Option.OPT_NODELAY, 1);
+    }
+
+    public PseudoTcp tcp()
+    {
+        return tcp;
+    }
+
+    public int streamCount()
+    {
+        return streams.size();
+    }
+
+    public boolean isClosed()
+    {
+        return bClosed;
+    }
+
+    // Streams opened here and by the peer since the session started
+    public long opened()
+    {
+        return opened;
+    }
+
+    public long accepted()
+    {
+        return accepted;
+    }
+
+    // Opens a stream. It can be written to straight away; the data follows
+    // the OPEN frame as soon as the session is up. Returns null once the
+    // session is closed.
+    public MuxStream open()
+    {
+        if (bClosed) {
+            return null;
+        }
+        MuxStream s = new MuxStream(this, nextId, MUX_STREAM_WINDOW);
+        nextId += 2;
+        streams.put(s.id, s);
+        opened++;
+        frame(OPEN, s.id, 0, null, 0);
+        later();
+        return s;
+    }
+
+    // Resets every stream, without calling back for them. The PseudoTcp is
+    // left to the caller.
+    public void close()
+    {
+        if (bClosed) {
+            return;
+        }
+        for (MuxStream s : new ArrayList<>(streams.values())) {
+            reset(s);
+        }
+        flush();
+        bClosed = true;
+    }
+
+    public void onTcpOpen()
+    {
+        flush();
+    }
+
+    public void onTcpWriteable()
+    {
+        flush();
+    }
+
+    public void onTcpReadable()
+    {
+        int len;
+        while (!bClosed && ((len = tcp.recv(rbuf)) > 0)) {
+            parse(rbuf, len);
+        }
+        flush();
+        armClock();
+    }
+
+    // Also called when the peer sends something unreadable; the session is
+    // of no further use then, and isClosed() turns true.
+    public void onTcpClosed(long error)
+    {
+        if (bClosed) {
+            return;
+        }
+        bClosed = true;
+        ready.clear();
+        outLen = 0;
+        ArrayList<MuxStream> all = new ArrayList<>(streams.values());
+        streams.clear();
+        for (MuxStream s : all) {
+            s.bClosed = true;
+            notify.onStreamClosed(s, true);
+        }
+    }
+
+    int write(MuxStream s, byte[] buffer, int offset, int len)
+    {
+        if (s.bClosed || s.bFinQueued) {
+            return SOCKET_ERROR;
+        }
+        int n = (int) max(0, min(len, MUX_STREAM_SNDBUF - s.slen));
+        if (n < len) {
+            s.bWriteBlocked = true;
+        }
+        if (n == 0) {
+            return 0;
+        }
+        if (s.slen + n > s.sbuf.length) {
+            byte[] grown = new byte[(int) min(MUX_STREAM_SNDBUF, max(2 * s.sbuf.length, s.slen + n))];
+            System.arraycopy(s.sbuf, 0, grown, 0, s.slen);
+            s.sbuf = grown;
+        }
+        System.arraycopy(buffer, offset, s.sbuf, s.slen, n);
+        s.slen += n;
+        schedule(s);
+        later();
+        return n;
+    }
+
+    void finish(MuxStream s)
+    {
+        if (s.bClosed || s.bFinQueued) {
+            return;
+        }
+        s.bFinQueued = true;
+        schedule(s);
+        later();
+    }
+
+    void reset(MuxStream s)
+    {
+        if (s.bClosed) {
+            return;
+        }
+        frame(RST, s.id, 0, null, 0);
+        drop(s);
+        later();
+    }
+
+    void consumed(MuxStream s, int len)
+    {
+        s.unconsumed -= len;
+        if (s.bClosed || s.bFinRcvd) {
+            return;
+        }
+        s.toCredit += len;
+        if (s.toCredit >= MUX_STREAM_WINDOW / 4) {
+            frame(CREDIT, s.id, s.toCredit, null, 0);
+            s.window += s.toCredit;
+            s.toCredit = 0;
+            later();
+        }
+    }
+
+    // Flushes at the end of the current task
+    private void later()
+    {
+        if (scheduler == null) {
+            flush();
+        } else if (!bFlushPending && !bFlushing && !bClosed) {
+            bFlushPending = true;
+            scheduler.schedule(flushTask, 0);
+        }
+    }
+
+    private void schedule(MuxStream s)
+    {
+        if (!s.bScheduled && !s.bClosed && s.canSend()) {
+            s.bScheduled = true;
+            ready.add(s);
+        }
+    }
+
+    private void drop(MuxStream s)
+    {
+        s.bClosed = true;
+        s.slen = 0;
+        streams.remove(s.id);
+    }
+
+    // Removes the stream once both sides have closed it
+    private void maybeDone(MuxStream s)
+    {
+        if (s.bFinSent && s.bFinRcvd && !s.bClosed) {
+            drop(s);
+            notify.onStreamClosed(s, false);
+        }
+    }
+
+    // Appends a frame to the output; data frames only go on an empty one,
+    // so it holds at most one quantum besides control frames.
+    private void frame(int type, int id, long value, byte[] data, int offset)
+    {
+        int len = (type == DATA) ? (int) value : 0;
+        int need = MUX_HEADER_SIZE + len;
+        if (outOff + outLen + need > out.length) {
+            System.arraycopy(out, outOff, out, 0, outLen);
+            outOff = 0;
+            if (outLen + need > out.length) {
+                byte[] grown = new byte[(int) max(2 * out.length, outLen + need)];
+                System.arraycopy(out, 0, grown, 0, outLen);
+                out = grown;
+            }
+        }
+        int pos = outOff + outLen;
+        out[pos] = (byte) type;
+        long_to_bytes(id, out, pos + 1);
+        long_to_bytes(value, out, pos + 5);
+        if (len > 0) {
+            System.arraycopy(data, offset, out, pos + MUX_HEADER_SIZE, len);
+        }
+        outLen += need;
+    }
+
+    // Hands frames to PseudoTcp until it takes no more, giving each stream
+    // with data a turn of up to MUX_QUANTUM bytes.
+    private void flush()
+    {
+        if (bFlushing || bClosed) {
+            return;
+        }
+        bFlushing = true;
+        boolean sent = false;
+        try {
+            while (true) {
+                if (outLen > 0) {
+                    int n = tcp.send(out, outOff, outLen);
+                    if (n <= 0) {
+                        break;
+                    }
+                    sent = true;
+                    outOff += n;
+                    outLen -= n;
+                    if (outLen > 0) {
+                        break;
+                    }
+                    outOff = 0;
+                    continue;
+                }
+                MuxStream s = ready.poll();
+                if (s == null) {
+                    break;
+                }
+                s.bScheduled = false;
+                if (s.bClosed) {
+                    continue;
+                }
+                int n = (int) min(min(s.slen, s.credit), MUX_QUANTUM);
+                if (n > 0) {
+                    frame(DATA, s.id, n, s.sbuf, 0);
+                    s.credit -= n;
+                    s.take(n);
+                }
+                if (s.bFinQueued && !s.bFinSent && (s.slen == 0)) {
+                    frame(FIN, s.id, 0, null, 0);
+                    s.bFinSent = true;
+                    maybeDone(s);
+                }
+                if (s.bWriteBlocked && !s.bClosed && !s.bFinQueued && (s.slen < MUX_STREAM_SNDBUF)) {
+                    s.bWriteBlocked = false;
+                    notify.onStreamWriteable(s);
+                }
+                schedule(s);
+            }
+        } finally {
+            bFlushing = false;
+        }
+        if (sent) {
+            armClock();
+        }
+    }
+
+    private void parse(byte[] buf, int len)
+    {
+        int pos = 0;
+        while ((pos < len) && !bClosed) {
+            if (rleft > 0) {
+                int n = (int) min(rleft, len - pos);
+                rleft -= n;
+                if ((rstream != null) && !rstream.bClosed) {
+                    rstream.unconsumed += n;
+                    notify.onStreamData(rstream, buf, pos, n);
+                }
+                pos += n;
+                continue;
+            }
+            int n = (int) min(MUX_HEADER_SIZE - hdrLen, len - pos);
+            System.arraycopy(buf, pos, hdr, hdrLen, n);
+            hdrLen += n;
+            pos += n;
+            if (hdrLen == MUX_HEADER_SIZE) {
+                hdrLen = 0;
+                onFrame(hdr[0], (int) bytes_to_long(hdr, 1), bytes_to_long(hdr, 5));
+            }
+        }
+    }
+
+    private void onFrame(int type, int id, long value)
+    {
+        MuxStream s = streams.get(id);
+        switch (type) {
+            case OPEN:
+                if (s == null) {
+                    s = new MuxStream(this, id, MUX_STREAM_WINDOW);
+                    streams.put(id, s);
+                    accepted++;
+                    notify.onStreamOpen(s);
+                }
+                break;
+            case DATA:
+                rstream = ((s != null) && !s.bFinRcvd) ? s : null;
+                rleft = value;
+                if (rstream != null) {
+                    if (value > rstream.window) {
+                        // the peer ignores flow control: the stream is reset
+                        // and the frame skipped, the session carries on
+                        rstream = null;
+                        frame(RST, s.id, 0, null, 0);
+                        drop(s);
+                        notify.onStreamClosed(s, true);
+                        later();
+                    } else {
+                        rstream.window -= value;
+                    }
+                }
+                break;
+            case CREDIT:
+                if (s != null) {
+                    s.credit += value;
+                    schedule(s);
+                }
+                break;
+            case FIN:
+                if ((s != null) && !s.bFinRcvd) {
+                    s.bFinRcvd = true;
+                    notify.onStreamEnd(s);
+                    maybeDone(s);
+                }
+                break;
+            case RST:
+                if (s != null) {
+                    drop(s);
+                    notify.onStreamClosed(s, true);
+                }
+                break;
+            default:
+                // the frame boundaries are lost; nothing after this can be read
+                tcp.close(true);
+                onTcpClosed(ECONNABORTED);
+                break;
+        }
+    }
+
+    private void armClock()
+    {
+        if (scheduler != null) {
+            adjustClock(scheduler, tcp);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Storage behind a PseudoTcp send or receive window: a heap array, or a
+ * direct buffer from a BufferPool when the socket keeps its windows off the
+ * heap. Positions are offsets from the start of the window. Not thread-safe;
+ * the socket's own locking covers it.
+ */
+abstract class WindowBuffer {
+
+    static final WindowBuffer EMPTY = new Heap(0);
+
+    static WindowBuffer allocate(int size, BufferPool pool)
+    {
+        return (pool == null) ? new Heap(size) : new Direct(size, pool);
+    }
+
+    abstract int length();
+
+    abstract void get(int pos, byte[] dst, int offset, int len);
+
+    abstract void put(int pos, byte[] src, int offset, int len);
+
+    // Moves len bytes at from down to the start of the window.
+    abstract void shift(int from, int len);
+
+    // Copies the first len bytes into the start of dst.
+    abstract void copyTo(WindowBuffer dst, int len);
+
+    boolean isDirect()
+    {
+        return false;
+    }
+
+    // Gives the storage back; the window must not be used afterwards.
+    void free()
+    {
+    }
+
+    static class Heap extends WindowBuffer {
+        final byte[] data;
+
+        Heap(int size)
+        {
+            data = new byte[size];
+        }
+
+        @Override
+        int length()
+        {
+            return data.length;
+        }
+
+        @Override
+        void get(int pos, byte[] dst, int offset, int len)
+        {
+            System.arraycopy(data, pos, dst, offset, len);
+        }
+
+        @Override
+        void put(int pos, byte[] src, int offset, int len)
+        {
+            System.arraycopy(src, offset, data, pos, len);
+        }
+
+        @Override
+        void shift(int from, int len)
+        {
+            System.arraycopy(data, from, data, 0, len);
+        }
+
+        @Override
+        void copyTo(WindowBuffer dst, int len)
+        {
+            dst.put(0, data, 0, len);
+        }
+    }
+
+    static class Direct extends WindowBuffer {
+        final ByteBuffer data;
+        final BufferPool pool;
+        final int length;
+
+        Direct(int size, BufferPool pool)
+        {
+            this.data = pool.allocate(size);
+            this.pool = pool;
+            this.length = size;
+        }
+
+        @Override
+        int length()
+        {
+            return length;
+        }
+
+        @Override
+        void get(int pos, byte[] dst, int offset, int len)
+        {
+            data.position(pos);
+            data.get(dst, offset, len);
+        }
+
+        @Override
+        void put(int pos, byte[] src, int offset, int len)
+        {
+            data.position(pos);
+            data.put(src, offset, len);
+        }
+
+        @Override
+        void shift(int from, int len)
+        {
+            // a forward copy, so overlap with the destination is fine
+            ByteBuffer src = data.duplicate();
+            src.limit(from + len).position(from);
+            data.position(0);
+            data.put(src);
+        }
+
+        @Override
+        void copyTo(WindowBuffer dst, int len)
+        {
+            if (dst instanceof Direct) {
+                ByteBuffer src = data.duplicate();
+                src.limit(len).position(0);
+                ByteBuffer to = ((Direct)dst).data;
+                to.position(0);
+                to.put(src);
+            } else {
+                get(0, ((Heap)dst).data, 0, len);
+            }
+        }
+
+        @Override
+        boolean isDirect()
+        {
+            return true;
+        }
+
+        @Override
+        void free()
+        {
+            pool.release(data);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp.sim;
+
+import java.util.PriorityQueue;
+
+/**
+ * Virtual-time event queue. Time is in microseconds and only moves when
+ * an event runs; events due at the same instant run in the order they were
+ * scheduled, so a run is fully determined by its inputs.
+ */
+public class EventQueue {
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now;
+    private long seq;
+    private long executed;
+
+    public EventQueue(long startMicros)
+    {
+        now = startMicros;
+    }
+
+    public long now()
+    {
+        return now;
+    }
+
+    public long nowMillis()
+    {
+        return now / 1000;
+    }
+
+    public long executed()
+    {
+        return executed;
+    }
+
+    public int pending()
+    {
+        return events.size();
+    }
+
+    public void schedule(long atMicros, Runnable task)
+    {
+        events.add(new Event(Math.max(atMicros, now), seq++, task));
+    }
+
+    public void scheduleAfter(long delayMicros, Runnable task)
+    {
+        schedule(now + delayMicros, task);
+    }
+
+    // Runs every event due up to and including endMicros, then parks the
+    // clock there.
+    public void runUntil(long endMicros)
+    {
+        while (!events.isEmpty() && events.peek().at <= endMicros) {
+            Event e = events.poll();
+            now = e.at;
+            executed++;
+            e.task.run();
+        }
+        now = Math.max(now, endMicros);
+    }
+
+    static class Event implements Comparable<Event> {
+        final long at, seq;
+        final Runnable task;
+
+        Event(long at, long seq, Runnable task)
+        {
+            this.at = at;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Event o)
+        {
+            if (at != o.at) {
+                return at < o.at ? -1 : 1;
+            }
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+}
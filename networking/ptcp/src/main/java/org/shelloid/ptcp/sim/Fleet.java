@@ -0,0 +1,251 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp.sim;
+
+import java.util.Random;
+import org.shelloid.ptcp.BufferPool;
+import org.shelloid.ptcp.HelperFunctions;
+import org.shelloid.ptcp.PseudoTcp;
+
+/**
+ * Many PseudoTcp pairs sharing one emulated bottleneck in each direction,
+ * all driven by a single Simulator. Reports what matters at scale: heap per
+ * endpoint, timer load and how evenly the bottleneck is shared. Run with:
+ *
+ *   java -Xmx4g -cp ptcp-1.0.jar org.shelloid.ptcp.sim.Fleet [connections] [seconds] [seed] [offheap]
+ */
+public class Fleet {
+
+    final LinkProfile forward;
+    final LinkProfile reverse;
+    int connections = 100;
+    long durationMillis = 60000;
+    int messageSize = 1024;
+    long intervalMillis = 100;
+    BufferPool pool;
+
+    public Fleet(LinkProfile forward, LinkProfile reverse)
+    {
+        this.forward = forward;
+        this.reverse = reverse;
+    }
+
+    public Fleet connections(int n)
+    {
+        connections = n;
+        return this;
+    }
+
+    public Fleet duration(long ms)
+    {
+        durationMillis = ms;
+        return this;
+    }
+
+    // intervalMs == 0 makes every connection a bulk sender.
+    public Fleet messages(int size, long intervalMs)
+    {
+        messageSize = size;
+        intervalMillis = intervalMs;
+        return this;
+    }
+
+    // Keeps every endpoint's buffers off-heap in pool; null for the heap.
+    public Fleet pool(BufferPool pool)
+    {
+        this.pool = pool;
+        return this;
+    }
+
+    public FleetResult run(long seed)
+    {
+        return new Run(seed).execute();
+    }
+
+    static long usedHeap()
+    {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    class Run {
+        final Simulator sim = new Simulator(Scenario.START_MILLIS);
+        final Random random;
+        final LinkEmulator fwd;
+        final LinkEmulator rev;
+        final SimEndpoint[] senders = new SimEndpoint[connections];
+        final SimEndpoint[] receivers = new SimEndpoint[connections];
+        final long[] produced = new long[connections];
+        final long[] written = new long[connections];
+        final long[] received = new long[connections];
+        final byte[] sbuf = new byte[64 * 1024];
+        final byte[] rbuf = new byte[64 * 1024];
+
+        Run(long seed)
+        {
+            random = new Random(seed);
+            fwd = new LinkEmulator(sim.queue(), forward, seed, new Demux(receivers));
+            rev = new LinkEmulator(sim.queue(), reverse, seed * 31 + 17, new Demux(senders));
+        }
+
+        FleetResult execute()
+        {
+            long heapBefore = usedHeap();
+            for (int i = 0; i < connections; i++) {
+                // conversation numbers start at 1 and double as the demux key
+                senders[i] = new SimEndpoint(sim, new SenderNotify(i), i + 1);
+                receivers[i] = new SimEndpoint(sim, new ReceiverNotify(i), i + 1);
+                if (pool != null) {
+                    senders[i].setBufferPool(pool);
+                    receivers[i].setBufferPool(pool);
+                }
+            }
+            long heapPerEndpoint = (usedHeap() - heapBefore) / (2L * connections);
+
+            for (int i = 0; i < connections; i++) {
+                final int idx = i;
+                sim.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        senders[idx].connect();
+                        senders[idx].armClock();
+                        if (intervalMillis > 0) {
+                            producer(idx).run();
+                        }
+                    }
+                }, random.nextInt(1000));
+            }
+
+            long wallStart = System.nanoTime();
+            sim.runFor(durationMillis);
+            long wallMillis = (System.nanoTime() - wallStart) / 1000000;
+
+            int established = 0;
+            for (int i = 0; i < connections; i++) {
+                if (senders[i].state() == PseudoTcp.TcpState.TCP_ESTABLISHED) {
+                    established++;
+                }
+                senders[i].cleanup();
+                receivers[i].cleanup();
+            }
+            return new FleetResult(connections, established, durationMillis, wallMillis,
+                    sim.queue().executed(), sim.timersScheduled(), sim.timersFired(),
+                    heapPerEndpoint, received.clone(), fwd.dropped() + rev.dropped());
+        }
+
+        Runnable producer(final int idx)
+        {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    produced[idx] += messageSize;
+                    pushData(idx);
+                    sim.queue().scheduleAfter(intervalMillis * 1000, this);
+                }
+            };
+        }
+
+        void pushData(int idx)
+        {
+            SimEndpoint tcp = senders[idx];
+            while (tcp.state() == PseudoTcp.TcpState.TCP_ESTABLISHED) {
+                if (written[idx] == produced[idx]) {
+                    if (intervalMillis > 0) {
+                        break;
+                    }
+                    produced[idx] += messageSize;
+                }
+                int n = tcp.send(sbuf, (int) Math.min(sbuf.length, produced[idx] - written[idx]));
+                if (n <= 0) {
+                    break;
+                }
+                written[idx] += n;
+            }
+            tcp.armClock();
+        }
+
+        class SenderNotify extends Scenario.Notify {
+            final int idx;
+
+            SenderNotify(int idx)
+            {
+                this.idx = idx;
+            }
+
+            @Override
+            public void onTcpOpen(PseudoTcp tcp) {
+                pushData(idx);
+            }
+
+            @Override
+            public void onTcpWriteable(PseudoTcp tcp) {
+                pushData(idx);
+            }
+
+            @Override
+            public WriteResult tcpWritePacket(PseudoTcp tcp, byte[] buffer, int len) {
+                fwd.send(buffer, len);
+                return WriteResult.WR_SUCCESS;
+            }
+        }
+
+        class ReceiverNotify extends Scenario.Notify {
+            final int idx;
+
+            ReceiverNotify(int idx)
+            {
+                this.idx = idx;
+            }
+
+            @Override
+            public void onTcpReadable(PseudoTcp tcp) {
+                int len;
+                while ((len = tcp.recv(rbuf)) > 0) {
+                    received[idx] += len;
+                }
+            }
+
+            @Override
+            public WriteResult tcpWritePacket(PseudoTcp tcp, byte[] buffer, int len) {
+                rev.send(buffer, len);
+                return WriteResult.WR_SUCCESS;
+            }
+        }
+    }
+
+    static class Demux implements LinkEmulator.Sink {
+        final SimEndpoint[] endpoints;
+
+        Demux(SimEndpoint[] endpoints)
+        {
+            this.endpoints = endpoints;
+        }
+
+        @Override
+        public void deliver(byte[] packet)
+        {
+            int idx = (int) HelperFunctions.bytes_to_long(packet, 0) - 1;
+            if (idx >= 0 && idx < endpoints.length) {
+                endpoints[idx].deliver(packet);
+            }
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 60;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        BufferPool pool = (args.length > 3 && args[3].equals("offheap")) ? BufferPool.DEFAULT : null;
+        LinkProfile fwd = new LinkProfile().bandwidth(100000000).delay(20).queue(1024 * 1024);
+        LinkProfile rev = new LinkProfile().bandwidth(100000000).delay(20).queue(1024 * 1024);
+        System.out.println(new Fleet(fwd, rev).connections(connections).duration(seconds * 1000).pool(pool).run(seed));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp.sim;
+
+/**
+ * Outcome of a Fleet run. Fairness is Jain's index over the bytes each
+ * connection delivered: 1.0 is a perfectly even share, 1/n is one
+ * connection taking everything.
+ */
+public class FleetResult {
+
+    public final int connections;
+    public final int established;
+    public final long durationMillis;
+    public final long wallMillis;
+    public final long events;
+    public final long timersScheduled;
+    public final long timersFired;
+    public final long heapPerEndpoint;
+    public final long packetsDropped;
+    private final long[] received;
+
+    FleetResult(int connections, int established, long durationMillis, long wallMillis, long events,
+            long timersScheduled, long timersFired, long heapPerEndpoint, long[] received, long packetsDropped)
+    {
+        this.connections = connections;
+        this.established = established;
+        this.durationMillis = durationMillis;
+        this.wallMillis = wallMillis;
+        this.events = events;
+        this.timersScheduled = timersScheduled;
+        this.timersFired = timersFired;
+        this.heapPerEndpoint = heapPerEndpoint;
+        this.received = received;
+        this.packetsDropped = packetsDropped;
+    }
+
+    public long totalReceived()
+    {
+        long total = 0;
+        for (long r : received) {
+            total += r;
+        }
+        return total;
+    }
+
+    public double goodputMbps()
+    {
+        return totalReceived() * 8.0 / (durationMillis * 1000.0);
+    }
+
+    public double fairness()
+    {
+        double sum = 0, squares = 0;
+        for (long r : received) {
+            sum += r;
+            squares += (double) r * r;
+        }
+        return squares == 0 ? 0 : (sum * sum) / (received.length * squares);
+    }
+
+    // Timer callbacks per endpoint per virtual second
+    public double timerRate()
+    {
+        return timersFired / (2.0 * connections) / (durationMillis / 1000.0);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder b = new StringBuilder();
+        b.append(String.format("connections      %d (%d established)%n", connections, established));
+        b.append(String.format("virtual time     %.1fs in %.1fs wall (%.0fx)%n", durationMillis / 1000.0,
+                wallMillis / 1000.0, wallMillis == 0 ? 0 : (double) durationMillis / wallMillis));
+        b.append(String.format("events           %d%n", events));
+        b.append(String.format("heap/endpoint    %d KB%n", heapPerEndpoint / 1024));
+        b.append(String.format("timers           %d scheduled, %d fired, %.2f/endpoint/s%n",
+                timersScheduled, timersFired, timerRate()));
+        b.append(String.format("goodput          %.2f Mbps (%d packets dropped)%n", goodputMbps(), packetsDropped));
+        b.append(String.format("fairness         %.3f%n", fairness()));
+        return b.toString();
+    }
+}
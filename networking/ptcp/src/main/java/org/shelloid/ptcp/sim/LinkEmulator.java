@@ -0,0 +1,110 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp.sim;
+
+import java.util.Random;
+
+/**
+ * One direction of an emulated link: a drop-tail bottleneck of the given
+ * bandwidth followed by propagation delay, with jitter, random and burst
+ * loss, reordering and duplication drawn from a seeded Random. Packets come
+ * out through the Sink at their virtual arrival time.
+ */
+public class LinkEmulator {
+
+    public interface Sink {
+        void deliver(byte[] packet);
+    }
+
+    private final EventQueue queue;
+    private final LinkProfile profile;
+    private final Random random;
+    private final Sink sink;
+    private long busyUntil;
+    private boolean bad;
+
+    long packets, dropped, queueDrops, reordered, duplicated, bytes;
+
+    public LinkEmulator(EventQueue queue, LinkProfile profile, long seed, Sink sink)
+    {
+        this.queue = queue;
+        this.profile = profile;
+        this.random = new Random(seed);
+        this.sink = sink;
+    }
+
+    public void send(byte[] buffer, int len)
+    {
+        final byte[] packet = new byte[len];
+        System.arraycopy(buffer, 0, packet, 0, len);
+        packets++;
+        bytes += len;
+
+        if (lost()) {
+            dropped++;
+            return;
+        }
+
+        long now = queue.now();
+        long start = Math.max(now, busyUntil);
+        long txMicros = 0;
+        if (profile.bandwidthBps > 0) {
+            if (profile.queueBytes > 0
+                    && (start - now) * profile.bandwidthBps / 8000000 > profile.queueBytes) {
+                queueDrops++;
+                return;
+            }
+            txMicros = len * 8L * 1000000 / profile.bandwidthBps;
+            busyUntil = start + txMicros;
+        }
+        long at = start + txMicros + profile.delayMicros;
+        if (profile.jitterMicros > 0) {
+            at += (long) (random.nextDouble() * profile.jitterMicros);
+        }
+        if (profile.reorderRate > 0 && random.nextDouble() < profile.reorderRate) {
+            reordered++;
+            at += profile.reorderMicros;
+        }
+        queue.schedule(at, deliver(packet));
+        if (profile.duplicateRate > 0 && random.nextDouble() < profile.duplicateRate) {
+            duplicated++;
+            queue.schedule(at + txMicros + 1, deliver(packet));
+        }
+    }
+
+    private boolean lost()
+    {
+        if (profile.burstEnter > 0) {
+            bad = bad ? random.nextDouble() >= profile.burstExit
+                      : random.nextDouble() < profile.burstEnter;
+            if (bad) {
+                return true;
+            }
+        }
+        return profile.lossRate > 0 && random.nextDouble() < profile.lossRate;
+    }
+
+    private Runnable deliver(final byte[] packet)
+    {
+        return new Runnable() {
+            @Override
+            public void run() {
+                sink.deliver(packet);
+            }
+        };
+    }
+
+    public long packets()
+    {
+        return packets;
+    }
+
+    public long dropped()
+    {
+        return dropped + queueDrops;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp.sim;
+
+/**
+ * Impairments of one direction of an emulated link. Every setter returns
+ * this so profiles read as one expression; all rates are probabilities per
+ * packet.
+ */
+public class LinkProfile {
+
+    long bandwidthBps;      // 0: unlimited
+    long queueBytes;        // bottleneck buffer, 0: unlimited
+    long delayMicros;
+    long jitterMicros;
+    double lossRate;
+    double burstEnter;      // Gilbert-Elliott: good -> bad
+    double burstExit;       // Gilbert-Elliott: bad -> good, everything is lost while bad
+    double reorderRate;
+    long reorderMicros;
+    double duplicateRate;
+
+    public LinkProfile bandwidth(long bitsPerSecond)
+    {
+        bandwidthBps = bitsPerSecond;
+        return this;
+    }
+
+    public LinkProfile queue(long bytes)
+    {
+        queueBytes = bytes;
+        return this;
+    }
+
+    public LinkProfile delay(long ms)
+    {
+        delayMicros = ms * 1000;
+        return this;
+    }
+
+    public LinkProfile jitter(long ms)
+    {
+        jitterMicros = ms * 1000;
+        return this;
+    }
+
+    public LinkProfile loss(double rate)
+    {
+        lossRate = rate;
+        return this;
+    }
+
+    public LinkProfile burstLoss(double enter, double exit)
+    {
+        burstEnter = enter;
+        burstExit = exit;
+        return this;
+    }
+
+    public LinkProfile reorder(double rate, long extraDelayMs)
+    {
+        reorderRate = rate;
+        reorderMicros = extraDelayMs * 1000;
+        return this;
+    }
+
+    public LinkProfile duplicate(double rate)
+    {
+        duplicateRate = rate;
+        return this;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder b = new StringBuilder();
+        b.append(bandwidthBps > 0 ? (bandwidthBps / 1000000.0) + "Mbps" : "unlimited");
+        b.append(" delay=").append(delayMicros / 1000).append("ms");
+        if (jitterMicros > 0) b.append(" jitter=").append(jitterMicros / 1000).append("ms");
+        if (queueBytes > 0) b.append(" queue=").append(queueBytes / 1024).append("KB");
+        if (lossRate > 0) b.append(" loss=").append(lossRate);
+        if (burstEnter > 0) b.append(" burst=").append(burstEnter).append('/').append(burstExit);
+        if (reorderRate > 0) b.append(" reorder=").append(reorderRate);
+        if (duplicateRate > 0) b.append(" dup=").append(duplicateRate);
+        return b.toString();
+    }
+}
@@ -0,0 +1,515 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp.sim;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Random;
+import org.shelloid.ptcp.IStreamMuxNotify;
+import org.shelloid.ptcp.MuxStream;
+import org.shelloid.ptcp.PoolSizer;
+import org.shelloid.ptcp.PseudoTcp;
+import org.shelloid.ptcp.StreamMux;
+
+/**
+ * Short connections, the traffic of web and API tunnels: each one sends a
+ * request, reads the response and goes away. Compares a PseudoTcp pair per
+ * connection, with and without the request sent along with the connect
+ * (OPT_ZERO_RTT), against streams of one StreamMux session that is up before
+ * the first connection arrives, and against a pool of sessions connected
+ * ahead of demand, one connection per session at a time. Latency is
+ * connection start to last response byte. Run with an optional seed:
+ *
+ *   java -cp ptcp-1.0.jar org.shelloid.ptcp.sim.Multiplex [seed]
+ */
+public class Multiplex {
+
+    // Time for the session to come up before the first connection
+    static final long WARMUP_MILLIS = 1000;
+    // Pool sizing: the agent's cap, and a rate window short enough for the
+    // arrivals of a run to be seen early on
+    static final int POOL_MAX = 16;
+    static final long POOL_WINDOW_MILLIS = 2000;
+
+    public enum Mode {
+        PAIRS, ZERO_RTT, MUX, POOL
+    }
+
+    final String name;
+    final LinkProfile forward;
+    final LinkProfile reverse;
+    final Mode mode;
+    long durationMillis = 20000;
+    int connections = 500;
+    int requestSize = 400;
+    int responseSize = 8 * 1024;
+
+    public Multiplex(String name, LinkProfile forward, LinkProfile reverse, Mode mode)
+    {
+        this.name = name;
+        this.forward = forward;
+        this.reverse = reverse;
+        this.mode = mode;
+    }
+
+    public Multiplex duration(long ms)
+    {
+        durationMillis = ms;
+        return this;
+    }
+
+    // Connections start at random over the first half of the run, after
+    // WARMUP_MILLIS.
+    public Multiplex connections(int n)
+    {
+        connections = n;
+        return this;
+    }
+
+    public Multiplex exchange(int request, int response)
+    {
+        requestSize = request;
+        responseSize = response;
+        return this;
+    }
+
+    public ScenarioResult run(long seed)
+    {
+        switch (mode) {
+            case MUX:
+                return new MuxRun(seed).execute();
+            case POOL:
+                return new PoolRun(seed).execute();
+            case ZERO_RTT:
+                return new PairRun(seed, true).execute();
+            default:
+                return new PairRun(seed, false).execute();
+        }
+    }
+
+    abstract class Run {
+        final Simulator sim = new Simulator(Scenario.START_MILLIS);
+        final EventQueue queue = sim.queue();
+        final Random random;
+        final byte[] buf = new byte[64 * 1024];
+        final ArrayList<Long> latencies = new ArrayList<>();
+        final long[] started = new long[connections];
+        final long[] received = new long[connections];
+        LinkEmulator fwd;
+        LinkEmulator rev;
+        long payloadSent, bytes;
+
+        Run(long seed)
+        {
+            random = new Random(seed);
+        }
+
+        abstract void start(int idx);
+
+        ScenarioResult execute()
+        {
+            for (int i = 0; i < connections; i++) {
+                final int idx = i;
+                queue.scheduleAfter(1000L * (WARMUP_MILLIS + random.nextInt((int) (durationMillis / 2))),
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                started[idx] = queue.now();
+                                start(idx);
+                            }
+                        });
+            }
+            sim.runFor(durationMillis);
+
+            long[] lat = new long[latencies.size()];
+            for (int i = 0; i < lat.length; i++) {
+                lat[i] = latencies.get(i);
+            }
+            return new ScenarioResult(name, bytes, durationMillis, payloadSent, 0,
+                    fwd.packets() + rev.packets(), fwd.dropped() + rev.dropped(), true, lat);
+        }
+
+        // The client of connection idx read len more response bytes;
+        // true once the whole response is in
+        boolean response(int idx, int len)
+        {
+            received[idx] += len;
+            bytes += len;
+            if (received[idx] == responseSize) {
+                latencies.add((queue.now() - started[idx]) / 1000);
+                return true;
+            }
+            return false;
+        }
+
+        // Sends connection idx's request on a new stream of mux
+        void request(StreamMux mux, int idx)
+        {
+            MuxStream s = mux.open();
+            s.attach(idx);
+            s.write(buf, 0, requestSize);
+            s.close();
+        }
+
+        // A StreamMux session between a client and a server endpoint
+        class MuxPair {
+            final MuxNotify clientNotify = new MuxNotify(true);
+            final MuxNotify serverNotify = new MuxNotify(false);
+            final SimEndpoint client;
+            final SimEndpoint server;
+            StreamMux clientMux;
+            final StreamMux serverMux;
+            long connected;
+
+            MuxPair(int conv, IStreamMuxNotify clientStreams)
+            {
+                client = new SimEndpoint(sim, clientNotify, conv);
+                server = new SimEndpoint(sim, serverNotify, conv);
+                if (clientStreams != null) {
+                    clientMux = new StreamMux(client, true, clientStreams, sim);
+                    clientNotify.mux = clientMux;
+                }
+                serverMux = new StreamMux(server, false, new ServerStreams(), sim);
+                serverNotify.mux = serverMux;
+            }
+
+            void connect()
+            {
+                connected = queue.now() / 1000;
+                client.connect();
+                client.armClock();
+                server.armClock();
+            }
+        }
+
+        class MuxNotify extends Scenario.Notify {
+            final boolean client;
+            StreamMux mux;
+            Runnable opened;
+
+            MuxNotify(boolean client)
+            {
+                this.client = client;
+            }
+
+            @Override
+            public void onTcpOpen(PseudoTcp tcp) {
+                if (opened != null) {
+                    opened.run();
+                }
+                mux.onTcpOpen();
+            }
+
+            @Override
+            public void onTcpReadable(PseudoTcp tcp) {
+                mux.onTcpReadable();
+            }
+
+            @Override
+            public void onTcpWriteable(PseudoTcp tcp) {
+                mux.onTcpWriteable();
+            }
+
+            @Override
+            public WriteResult tcpWritePacket(PseudoTcp tcp, byte[] buffer, int len) {
+                payloadSent += len;
+                (client ? fwd : rev).send(buffer, len);
+                return WriteResult.WR_SUCCESS;
+            }
+        }
+
+        class ClientStreams implements IStreamMuxNotify {
+            @Override
+            public void onStreamOpen(MuxStream stream) {
+                stream.reset();
+            }
+
+            @Override
+            public void onStreamData(MuxStream stream, byte[] buffer, int offset, int len) {
+                response((Integer) stream.attachment(), len);
+                stream.consumed(len);
+            }
+
+            @Override
+            public void onStreamEnd(MuxStream stream) {
+            }
+
+            @Override
+            public void onStreamWriteable(MuxStream stream) {
+            }
+
+            @Override
+            public void onStreamClosed(MuxStream stream, boolean reset) {
+            }
+        }
+
+        // Answers once the request is complete, which a request that fits
+        // one frame always is by the time the FIN arrives
+        class ServerStreams implements IStreamMuxNotify {
+            @Override
+            public void onStreamOpen(MuxStream stream) {
+            }
+
+            @Override
+            public void onStreamData(MuxStream stream, byte[] buffer, int offset, int len) {
+                bytes += len;
+                stream.consumed(len);
+            }
+
+            @Override
+            public void onStreamEnd(MuxStream stream) {
+                int off = 0;
+                while (off < responseSize) {
+                    int n = stream.write(buf, 0, responseSize - off);
+                    if (n <= 0) {
+                        break;
+                    }
+                    off += n;
+                }
+                stream.close();
+            }
+
+            @Override
+            public void onStreamWriteable(MuxStream stream) {
+            }
+
+            @Override
+            public void onStreamClosed(MuxStream stream, boolean reset) {
+            }
+        }
+    }
+
+    // A fresh pair per connection, told apart by conversation number
+    class PairRun extends Run {
+        final SimEndpoint[] clients = new SimEndpoint[connections];
+        final SimEndpoint[] servers = new SimEndpoint[connections];
+        final long[] requested = new long[connections];
+        final boolean zeroRtt;
+
+        PairRun(long seed, boolean zeroRtt)
+        {
+            super(seed);
+            this.zeroRtt = zeroRtt;
+            fwd = new LinkEmulator(queue, forward, seed, new Fleet.Demux(servers));
+            rev = new LinkEmulator(queue, reverse, seed * 31 + 17, new Fleet.Demux(clients));
+        }
+
+        @Override
+        void start(int idx)
+        {
+            clients[idx] = new SimEndpoint(sim, new ClientNotify(idx), idx + 1);
+            servers[idx] = new SimEndpoint(sim, new ServerNotify(idx), idx + 1);
+            clients[idx].setOption(PseudoTcp.Option.OPT_ZERO_RTT, zeroRtt ? 1 : 0);
+            clients[idx].connect();
+            if (zeroRtt) {
+                clients[idx].send(buf, requestSize);
+            }
+            clients[idx].armClock();
+            servers[idx].armClock();
+        }
+
+        class ClientNotify extends Scenario.Notify {
+            final int idx;
+
+            ClientNotify(int idx)
+            {
+                this.idx = idx;
+            }
+
+            @Override
+            public void onTcpOpen(PseudoTcp tcp) {
+                if (!zeroRtt) {
+                    tcp.send(buf, requestSize);
+                }
+                clients[idx].armClock();
+            }
+
+            @Override
+            public void onTcpReadable(PseudoTcp tcp) {
+                int len;
+                while ((len = tcp.recv(buf)) > 0) {
+                    if (response(idx, len)) {
+                        tcp.close(false);
+                    }
+                }
+                clients[idx].armClock();
+            }
+
+            @Override
+            public WriteResult tcpWritePacket(PseudoTcp tcp, byte[] buffer, int len) {
+                payloadSent += len;
+                fwd.send(buffer, len);
+                return WriteResult.WR_SUCCESS;
+            }
+        }
+
+        class ServerNotify extends Scenario.Notify {
+            final int idx;
+
+            ServerNotify(int idx)
+            {
+                this.idx = idx;
+            }
+
+            @Override
+            public void onTcpReadable(PseudoTcp tcp) {
+                int len;
+                while ((len = tcp.recv(buf)) > 0) {
+                    requested[idx] += len;
+                    bytes += len;
+                }
+                if (requested[idx] == requestSize) {
+                    tcp.send(buf, responseSize);
+                    tcp.close(false);
+                }
+                servers[idx].armClock();
+            }
+
+            @Override
+            public WriteResult tcpWritePacket(PseudoTcp tcp, byte[] buffer, int len) {
+                payloadSent += len;
+                rev.send(buffer, len);
+                return WriteResult.WR_SUCCESS;
+            }
+        }
+    }
+
+    // One session, connected at the start; a stream per connection
+    class MuxRun extends Run {
+        final MuxPair pair;
+
+        MuxRun(long seed)
+        {
+            super(seed);
+            pair = new MuxPair(0, new ClientStreams());
+            fwd = new LinkEmulator(queue, forward, seed, pair.server);
+            rev = new LinkEmulator(queue, reverse, seed * 31 + 17, pair.client);
+        }
+
+        @Override
+        ScenarioResult execute()
+        {
+            pair.connect();
+            return super.execute();
+        }
+
+        @Override
+        void start(int idx)
+        {
+            request(pair.clientMux, idx);
+        }
+    }
+
+    // Sessions connected ahead of demand, each carrying one connection at a
+    // time, as many as a PoolSizer asks for; a connection that finds none
+    // ready takes one still connecting, unless that has taken so long that
+    // its handshake was probably lost, or connects one of its own. The
+    // last session released is the next one taken, so sessions that carried
+    // traffic lately, with their congestion windows grown, stay in use.
+    class PoolRun extends Run {
+        // each connection connects at most one session and refills one
+        final SimEndpoint[] clientEnds = new SimEndpoint[2 * connections + POOL_MAX];
+        final SimEndpoint[] serverEnds = new SimEndpoint[clientEnds.length];
+        final ArrayDeque<MuxPair> idle = new ArrayDeque<>();
+        final ArrayDeque<MuxPair> warming = new ArrayDeque<>();
+        final PoolSizer sizer;
+        int sessions;
+
+        PoolRun(long seed)
+        {
+            super(seed);
+            fwd = new LinkEmulator(queue, forward, seed, new Fleet.Demux(serverEnds));
+            rev = new LinkEmulator(queue, reverse, seed * 31 + 17, new Fleet.Demux(clientEnds));
+            sizer = new PoolSizer(POOL_MAX, POOL_WINDOW_MILLIS, durationMillis, millis());
+        }
+
+        @Override
+        ScenarioResult execute()
+        {
+            refill();
+            return super.execute();
+        }
+
+        @Override
+        void start(int idx)
+        {
+            sizer.arrival(millis());
+            MuxPair p = idle.poll();
+            if ((p == null) && !warming.isEmpty()
+                    && (millis() - warming.peek().connected < 2 * sizer.handshake())) {
+                p = warming.poll();
+            }
+            if (p == null) {
+                p = connect();
+            }
+            request(p.clientMux, idx);
+            refill();
+        }
+
+        long millis()
+        {
+            return queue.now() / 1000;
+        }
+
+        void refill()
+        {
+            while ((idle.size() + warming.size() < sizer.target(millis())) && (sessions < clientEnds.length)) {
+                warming.add(connect());
+            }
+        }
+
+        MuxPair connect()
+        {
+            final MuxPair p = new MuxPair(sessions + 1, null);
+            p.clientMux = new StreamMux(p.client, true, new ClientStreams() {
+                @Override
+                public void onStreamClosed(MuxStream stream, boolean reset) {
+                    release(p);
+                }
+            }, sim);
+            p.clientNotify.mux = p.clientMux;
+            clientEnds[sessions] = p.client;
+            serverEnds[sessions++] = p.server;
+            p.clientNotify.opened = new Runnable() {
+                @Override
+                public void run() {
+                    sizer.handshake(millis() - p.connected);
+                    if (warming.remove(p)) {
+                        idle.add(p);
+                    }
+                }
+            };
+            p.connect();
+            return p;
+        }
+
+        void release(MuxPair p)
+        {
+            idle.addFirst(p);
+            while ((idle.size() + warming.size() > sizer.target(millis())) && !idle.isEmpty()) {
+                MuxPair old = idle.pollLast();
+                old.clientMux.close();
+                old.client.close(false);
+            }
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        LinkProfile[] links = {ScenarioSuite.lan(), ScenarioSuite.wan(), ScenarioSuite.wan().loss(0.01)};
+        String[] linkNames = {"lan", "wan", "wan-loss-1%"};
+        System.out.println("seed " + seed);
+        System.out.println(ScenarioResult.header());
+        for (int i = 0; i < links.length; i++) {
+            for (Mode mode : Mode.values()) {
+                String name = linkNames[i] + " " + mode.name().toLowerCase();
+                System.out.println(new Multiplex(name, links[i], links[i], mode).run(seed));
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp.sim;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Map;
+import org.shelloid.ptcp.PseudoTcp;
+
+/**
+ * Closed-loop request/response over a PseudoTcp pair, the traffic of SSH,
+ * RDP and database tunnels: the client writes a request in one or more
+ * pieces (write-write-read is what trips Nagle against delayed ACKs), the
+ * server answers once it has the whole request, and the client sends the
+ * next one a think time after the answer. Latency is request start to
+ * last response byte. Run with an optional seed:
+ *
+ *   java -cp ptcp-1.0.jar org.shelloid.ptcp.sim.RequestResponse [seed]
+ */
+public class RequestResponse {
+
+    final String name;
+    final LinkProfile forward;
+    final LinkProfile reverse;
+    final Map<PseudoTcp.Option, Integer> options = new EnumMap<>(PseudoTcp.Option.class);
+    long durationMillis = 20000;
+    int requestSize = 200;
+    int requestWrites = 2;
+    int responseSize = 1000;
+    long thinkMillis = 10;
+
+    public RequestResponse(String name, LinkProfile forward, LinkProfile reverse)
+    {
+        this.name = name;
+        this.forward = forward;
+        this.reverse = reverse;
+    }
+
+    public RequestResponse duration(long ms)
+    {
+        durationMillis = ms;
+        return this;
+    }
+
+    public RequestResponse request(int size, int writes)
+    {
+        requestSize = size;
+        requestWrites = writes;
+        return this;
+    }
+
+    public RequestResponse response(int size)
+    {
+        responseSize = size;
+        return this;
+    }
+
+    public RequestResponse think(long ms)
+    {
+        thinkMillis = ms;
+        return this;
+    }
+
+    // Set on both endpoints before they connect.
+    public RequestResponse option(PseudoTcp.Option opt, int value)
+    {
+        options.put(opt, value);
+        return this;
+    }
+
+    public ScenarioResult run(long seed)
+    {
+        return new Run(seed).execute();
+    }
+
+    class Run {
+        final Simulator sim = new Simulator(Scenario.START_MILLIS);
+        final EventQueue queue = sim.queue();
+        final SimEndpoint client;
+        final SimEndpoint server;
+        final LinkEmulator fwd;
+        final LinkEmulator rev;
+        final byte[] buf = new byte[64 * 1024];
+        final ArrayList<Long> latencies = new ArrayList<>();
+        long started, requested, answered;
+        long requestBytes, serverRead, serverOwed, clientRead;
+        long payloadSent;
+
+        Run(long seed)
+        {
+            client = new SimEndpoint(sim, new ClientNotify(), 0);
+            server = new SimEndpoint(sim, new ServerNotify(), 0);
+            fwd = new LinkEmulator(queue, forward, seed, server);
+            rev = new LinkEmulator(queue, reverse, seed * 31 + 17, client);
+            for (Map.Entry<PseudoTcp.Option, Integer> o : options.entrySet()) {
+                client.setOption(o.getKey(), o.getValue());
+                server.setOption(o.getKey(), o.getValue());
+            }
+        }
+
+        ScenarioResult execute()
+        {
+            client.connect();
+            client.armClock();
+            server.armClock();
+            sim.runFor(durationMillis);
+
+            long[] lat = new long[latencies.size()];
+            for (int i = 0; i < lat.length; i++) {
+                lat[i] = latencies.get(i);
+            }
+            return new ScenarioResult(name, requestBytes + clientRead, durationMillis, payloadSent, 0,
+                    fwd.packets() + rev.packets(), fwd.dropped() + rev.dropped(), true, lat);
+        }
+
+        // Each piece is its own write, as an application doing separate
+        // send() calls for header and body would.
+        void sendRequest()
+        {
+            started = queue.now();
+            requested++;
+            int piece = (requestSize + requestWrites - 1) / requestWrites;
+            for (int left = requestSize; left > 0; left -= piece) {
+                requestBytes += write(client, Math.min(piece, left));
+            }
+            client.armClock();
+        }
+
+        long write(SimEndpoint tcp, int len)
+        {
+            int n = tcp.send(buf, len);
+            return n > 0 ? n : 0;
+        }
+
+        void onServerReadable()
+        {
+            int len;
+            while ((len = server.recv(buf)) > 0) {
+                serverRead += len;
+            }
+            while (serverRead >= requestSize) {
+                serverRead -= requestSize;
+                serverOwed += responseSize;
+            }
+            while (serverOwed > 0) {
+                int n = server.send(buf, (int) Math.min(buf.length, serverOwed));
+                if (n <= 0) {
+                    break;
+                }
+                serverOwed -= n;
+            }
+            server.armClock();
+        }
+
+        void onClientReadable()
+        {
+            int len;
+            while ((len = client.recv(buf)) > 0) {
+                clientRead += len;
+            }
+            if (answered < requested && clientRead >= (answered + 1) * responseSize) {
+                answered++;
+                latencies.add((queue.now() - started) / 1000);
+                queue.scheduleAfter(thinkMillis * 1000, new Runnable() {
+                    @Override
+                    public void run() {
+                        sendRequest();
+                    }
+                });
+            }
+        }
+
+        class ClientNotify extends Scenario.Notify {
+            @Override
+            public void onTcpOpen(PseudoTcp tcp) {
+                sendRequest();
+            }
+
+            @Override
+            public void onTcpReadable(PseudoTcp tcp) {
+                onClientReadable();
+            }
+
+            @Override
+            public WriteResult tcpWritePacket(PseudoTcp tcp, byte[] buffer, int len) {
+                payloadSent += len;
+                fwd.send(buffer, len);
+                return WriteResult.WR_SUCCESS;
+            }
+        }
+
+        class ServerNotify extends Scenario.Notify {
+            @Override
+            public void onTcpReadable(PseudoTcp tcp) {
+                onServerReadable();
+            }
+
+            @Override
+            public void onTcpWriteable(PseudoTcp tcp) {
+                onServerReadable();
+            }
+
+            @Override
+            public WriteResult tcpWritePacket(PseudoTcp tcp, byte[] buffer, int len) {
+                payloadSent += len;
+                rev.send(buffer, len);
+                return WriteResult.WR_SUCCESS;
+            }
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        LinkProfile[][] links = {
+            {ScenarioSuite.lan(), ScenarioSuite.lan()},
+            {ScenarioSuite.wan(), ScenarioSuite.wan()},
+            {ScenarioSuite.wan().loss(0.01), ScenarioSuite.wan().loss(0.01)},
+        };
+        String[] linkNames = {"lan", "wan", "wan-loss-1%"};
+        System.out.println("seed " + seed);
+        System.out.println(ScenarioResult.header());
+        for (int i = 0; i < links.length; i++) {
+            LinkProfile f = links[i][0], r = links[i][1];
+            System.out.println(new RequestResponse(linkNames[i] + " default", f, r).run(seed));
+            System.out.println(new RequestResponse(linkNames[i] + " nodelay", f, r)
+                    .option(PseudoTcp.Option.OPT_NODELAY, 1).run(seed));
+            System.out.println(new RequestResponse(linkNames[i] + " quickack", f, r)
+                    .option(PseudoTcp.Option.OPT_QUICKACK, 1).run(seed));
+            System.out.println(new RequestResponse(linkNames[i] + " nodelay+qa", f, r)
+                    .option(PseudoTcp.Option.OPT_NODELAY, 1)
+                    .option(PseudoTcp.Option.OPT_QUICKACK, 1).run(seed));
+            System.out.println(new RequestResponse(linkNames[i] + " interactive", f, r)
+                    .option(PseudoTcp.Option.OPT_INTERACTIVE, 1).run(seed));
+        }
+    }
+}
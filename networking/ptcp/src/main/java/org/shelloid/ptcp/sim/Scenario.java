@@ -0,0 +1,275 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp.sim;
+
+import java.util.ArrayList;
+import org.shelloid.ptcp.BufferPool;
+import org.shelloid.ptcp.HelperFunctions;
+import org.shelloid.ptcp.IPseudoTcpNotify;
+import org.shelloid.ptcp.MemoryBudget;
+import org.shelloid.ptcp.NetworkConstants;
+import org.shelloid.ptcp.PseudoTcp;
+
+/**
+ * One reproducible experiment: a PseudoTcp pair talking over two emulated
+ * link directions for a fixed stretch of virtual time. The sender produces
+ * fixed-size messages, either back to back (bulk) or one per interval, and
+ * the receiver checks every byte and times every message.
+ */
+public class Scenario {
+
+    // PseudoTcp treats a zero timestamp as absent, so virtual time starts later
+    static final long START_MILLIS = 1000L * 1000;
+
+    final String name;
+    final LinkProfile forward;
+    final LinkProfile reverse;
+    long durationMillis = 20000;
+    int messageSize = 16 * 1024;
+    long intervalMillis;
+    int mtu;
+    MemoryBudget budget;
+    BufferPool pool;
+    long readIntervalMicros;
+
+    public Scenario(String name, LinkProfile forward, LinkProfile reverse)
+    {
+        this.name = name;
+        this.forward = forward;
+        this.reverse = reverse;
+    }
+
+    public Scenario duration(long ms)
+    {
+        durationMillis = ms;
+        return this;
+    }
+
+    // intervalMs == 0 produces the next message as soon as the previous one
+    // has been accepted by send().
+    public Scenario messages(int size, long intervalMs)
+    {
+        messageSize = size;
+        intervalMillis = intervalMs;
+        return this;
+    }
+
+    // 0 leaves PseudoTcp's own MTU discovery alone, as the agent does.
+    public Scenario mtu(int mtu)
+    {
+        this.mtu = mtu;
+        return this;
+    }
+
+    // Buffer memory both endpoints auto-tune within; null for the run's own.
+    public Scenario budget(MemoryBudget budget)
+    {
+        this.budget = budget;
+        return this;
+    }
+
+    // Keeps both endpoints' buffers off-heap in pool; null for the heap.
+    public Scenario pool(BufferPool pool)
+    {
+        this.pool = pool;
+        return this;
+    }
+
+    // Both endpoints take packets in runs every intervalMicros (see
+    // SimEndpoint.readInterval); 0 takes each as it arrives.
+    public Scenario readInterval(long intervalMicros)
+    {
+        readIntervalMicros = intervalMicros;
+        return this;
+    }
+
+    public String name()
+    {
+        return name;
+    }
+
+    public ScenarioResult run(long seed)
+    {
+        return new Run(seed).execute();
+    }
+
+    static byte pattern(long offset)
+    {
+        return (byte) (offset % 251);
+    }
+
+    class Run {
+        final Simulator sim = new Simulator(START_MILLIS);
+        final EventQueue queue = sim.queue();
+        final SimEndpoint a;
+        final SimEndpoint b;
+        final LinkEmulator fwd;
+        final LinkEmulator rev;
+        final byte[] sbuf = new byte[64 * 1024];
+        final byte[] rbuf = new byte[64 * 1024];
+        final ArrayList<Long> produced = new ArrayList<>();
+        final ArrayList<Long> latencies = new ArrayList<>();
+        long producedBytes, written, received;
+        long payloadSent, payloadRetransmitted, highestSent;
+        int completed;
+        boolean intact = true;
+
+        Run(long seed)
+        {
+            a = new SimEndpoint(sim, new SenderNotify(), 0);
+            b = new SimEndpoint(sim, new ReceiverNotify(), 0);
+            fwd = new LinkEmulator(queue, forward, seed, b);
+            rev = new LinkEmulator(queue, reverse, seed * 31 + 17, a);
+            if (budget != null) {
+                a.setMemoryBudget(budget);
+                b.setMemoryBudget(budget);
+            }
+            if (pool != null) {
+                a.setBufferPool(pool);
+                b.setBufferPool(pool);
+            }
+            a.readInterval(readIntervalMicros);
+            b.readInterval(readIntervalMicros);
+        }
+
+        ScenarioResult execute()
+        {
+            if (mtu > 0) {
+                a.notifyMTU(mtu);
+                b.notifyMTU(mtu);
+            }
+            a.connect();
+            a.armClock();
+            b.armClock();
+            if (intervalMillis > 0) {
+                queue.schedule(queue.now(), new Runnable() {
+                    @Override
+                    public void run() {
+                        produce();
+                        pushData();
+                        queue.scheduleAfter(intervalMillis * 1000, this);
+                    }
+                });
+            }
+            sim.runFor(durationMillis);
+            a.cleanup();
+            b.cleanup();
+
+            long[] lat = new long[latencies.size()];
+            for (int i = 0; i < lat.length; i++) {
+                lat[i] = latencies.get(i);
+            }
+            return new ScenarioResult(name, received, durationMillis, payloadSent, payloadRetransmitted,
+                    fwd.packets() + rev.packets(), fwd.dropped() + rev.dropped(), intact, lat);
+        }
+
+        void produce()
+        {
+            produced.add(queue.now());
+            producedBytes += messageSize;
+        }
+
+        void pushData()
+        {
+            while (a.state() == PseudoTcp.TcpState.TCP_ESTABLISHED) {
+                if (written == producedBytes) {
+                    if (intervalMillis > 0) {
+                        break;
+                    }
+                    produce();
+                }
+                int chunk = (int) Math.min(sbuf.length, producedBytes - written);
+                for (int i = 0; i < chunk; i++) {
+                    sbuf[i] = pattern(written + i);
+                }
+                int n = a.send(sbuf, chunk);
+                if (n <= 0) {
+                    break;
+                }
+                written += n;
+            }
+            a.armClock();
+        }
+
+        void drain(PseudoTcp tcp)
+        {
+            int len;
+            while ((len = tcp.recv(rbuf)) > 0) {
+                for (int i = 0; i < len && intact; i++) {
+                    intact = rbuf[i] == pattern(received + i);
+                }
+                received += len;
+            }
+            while (completed < produced.size() && received >= (long) (completed + 1) * messageSize) {
+                latencies.add((queue.now() - produced.get(completed)) / 1000);
+                completed++;
+            }
+        }
+
+        class SenderNotify extends Notify {
+            @Override
+            public void onTcpOpen(PseudoTcp tcp) {
+                pushData();
+            }
+
+            @Override
+            public void onTcpWriteable(PseudoTcp tcp) {
+                pushData();
+            }
+
+            @Override
+            public WriteResult tcpWritePacket(PseudoTcp tcp, byte[] buffer, int len) {
+                long payload = len - NetworkConstants.HEADER_SIZE;
+                if (payload > 0) {
+                    long seq = HelperFunctions.bytes_to_long(buffer, 4);
+                    payloadSent += payload;
+                    if (seq < highestSent) {
+                        payloadRetransmitted += Math.min(payload, highestSent - seq);
+                    }
+                    highestSent = Math.max(highestSent, seq + payload);
+                }
+                fwd.send(buffer, len);
+                return WriteResult.WR_SUCCESS;
+            }
+        }
+
+        class ReceiverNotify extends Notify {
+            @Override
+            public void onTcpReadable(PseudoTcp tcp) {
+                drain(tcp);
+            }
+
+            @Override
+            public WriteResult tcpWritePacket(PseudoTcp tcp, byte[] buffer, int len) {
+                rev.send(buffer, len);
+                return WriteResult.WR_SUCCESS;
+            }
+        }
+    }
+
+    abstract static class Notify implements IPseudoTcpNotify {
+        @Override
+        public void onTcpOpen(PseudoTcp tcp) {
+        }
+
+        @Override
+        public void onTcpReadable(PseudoTcp tcp) {
+        }
+
+        @Override
+        public void onTcpWriteable(PseudoTcp tcp) {
+        }
+
+        @Override
+        public void onTcpClosed(PseudoTcp tcp, long error) {
+        }
+
+        @Override
+        public void log(PseudoTcp tcp, LogType type, String msg) {
+        }
+    }
+}
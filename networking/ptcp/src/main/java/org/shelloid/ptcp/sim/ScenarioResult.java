@@ -0,0 +1,82 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp.sim;
+
+import java.util.Arrays;
+
+/**
+ * What one scenario run measured. Latency is per message, from the moment
+ * the application produced it to the moment its last byte was read at the
+ * far end.
+ */
+public class ScenarioResult {
+
+    public final String name;
+    public final long bytesReceived;
+    public final long durationMillis;
+    public final long payloadSent;
+    public final long payloadRetransmitted;
+    public final long packetsSent;
+    public final long packetsDropped;
+    public final boolean intact;
+    private final long[] latencies;
+
+    ScenarioResult(String name, long bytesReceived, long durationMillis, long payloadSent,
+            long payloadRetransmitted, long packetsSent, long packetsDropped, boolean intact,
+            long[] latencies)
+    {
+        this.name = name;
+        this.bytesReceived = bytesReceived;
+        this.durationMillis = durationMillis;
+        this.payloadSent = payloadSent;
+        this.payloadRetransmitted = payloadRetransmitted;
+        this.packetsSent = packetsSent;
+        this.packetsDropped = packetsDropped;
+        this.intact = intact;
+        this.latencies = latencies;
+        Arrays.sort(this.latencies);
+    }
+
+    public double goodputMbps()
+    {
+        return bytesReceived * 8.0 / (durationMillis * 1000.0);
+    }
+
+    public double retransmitRatio()
+    {
+        return payloadSent == 0 ? 0 : (double) payloadRetransmitted / payloadSent;
+    }
+
+    public int messages()
+    {
+        return latencies.length;
+    }
+
+    // Latency percentile in milliseconds, -1 if no message arrived.
+    public long latency(double percentile)
+    {
+        if (latencies.length == 0) {
+            return -1;
+        }
+        int idx = (int) Math.ceil(percentile / 100.0 * latencies.length) - 1;
+        return latencies[Math.max(0, Math.min(latencies.length - 1, idx))];
+    }
+
+    public static String header()
+    {
+        return String.format("%-22s %10s %8s %8s %8s %8s %8s %6s",
+                "scenario", "goodput", "retx", "msgs", "p50", "p99", "p99.9", "ok");
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%-22s %7.2fMbps %7.2f%% %8d %6dms %6dms %6dms %6s",
+                name, goodputMbps(), retransmitRatio() * 100, messages(),
+                latency(50), latency(99), latency(99.9), intact ? "yes" : "NO");
+    }
+}
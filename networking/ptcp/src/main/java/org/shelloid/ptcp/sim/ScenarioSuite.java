@@ -0,0 +1,75 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.shelloid.ptcp.BufferPool;
+
+/**
+ * The standard set of impairment scenarios. Run with an optional seed, and
+ * "offheap" to keep the windows in BufferPool.DEFAULT:
+ *
+ *   java -cp ptcp-1.0.jar org.shelloid.ptcp.sim.ScenarioSuite [seed] [offheap]
+ *
+ * The same seed always gives the same table, so two builds of the engine
+ * can be compared line by line.
+ */
+public class ScenarioSuite {
+
+    static LinkProfile lan()
+    {
+        return new LinkProfile().bandwidth(100000000).delay(1).queue(256 * 1024);
+    }
+
+    static LinkProfile wan()
+    {
+        return new LinkProfile().bandwidth(20000000).delay(40).queue(512 * 1024);
+    }
+
+    static LinkProfile satellite()
+    {
+        return new LinkProfile().bandwidth(5000000).delay(300).queue(1024 * 1024).loss(0.005);
+    }
+
+    // high bandwidth-delay product: 2.5 MB in flight to fill it
+    static LinkProfile longFat()
+    {
+        return new LinkProfile().bandwidth(200000000).delay(50).queue(4 * 1024 * 1024);
+    }
+
+    public static List<Scenario> defaults()
+    {
+        List<Scenario> s = new ArrayList<>();
+        s.add(new Scenario("lan", lan(), lan()));
+        s.add(new Scenario("wan", wan(), wan()));
+        s.add(new Scenario("wan-loss-1%", wan().loss(0.01), wan().loss(0.01)));
+        s.add(new Scenario("wan-burst-loss", wan().burstLoss(0.002, 0.3), wan()));
+        s.add(new Scenario("wan-reorder-2%", wan().reorder(0.02, 10), wan()));
+        s.add(new Scenario("wan-duplicate-2%", wan().duplicate(0.02), wan()));
+        s.add(new Scenario("wan-jitter-20ms", wan().jitter(20), wan().jitter(20)));
+        s.add(new Scenario("satellite", satellite(), satellite()));
+        s.add(new Scenario("long-fat-200M", longFat(), longFat()));
+        s.add(new Scenario("wan-mtu1500-loss-1%", wan().loss(0.01), wan().loss(0.01)).mtu(1500));
+        s.add(new Scenario("interactive-wan-loss", wan().loss(0.01), wan().loss(0.01)).messages(512, 20));
+        return s;
+    }
+
+    public static void main(String[] args)
+    {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        boolean offHeap = args.length > 1 && args[1].equals("offheap");
+        System.out.println("seed " + seed + (offHeap ? ", off-heap" : ""));
+        System.out.println(ScenarioResult.header());
+        for (Scenario scenario : defaults()) {
+            if (offHeap) {
+                scenario.pool(BufferPool.DEFAULT);
+            }
+            System.out.println(scenario.run(seed));
+        }
+    }
+}
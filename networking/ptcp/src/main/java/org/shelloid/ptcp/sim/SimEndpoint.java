@@ -0,0 +1,83 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp.sim;
+
+import java.util.ArrayList;
+import org.shelloid.ptcp.HelperFunctions;
+import org.shelloid.ptcp.IPseudoTcpNotify;
+import org.shelloid.ptcp.PseudoTcp;
+
+/**
+ * PseudoTcp on a Simulator's virtual clock, fed by a LinkEmulator. Its
+ * timer is re-armed through HelperFunctions.adjustClock after every packet
+ * and every application call, as the agent does on its event loops.
+ * With a read interval, packets are handed over in runs through
+ * notifyPackets instead, as a read loop polling the link would.
+ * Its buffers count against the Simulator's MemoryBudget.
+ */
+public class SimEndpoint extends PseudoTcp implements LinkEmulator.Sink {
+
+    private final Simulator sim;
+    private final ArrayList<byte[]> pending = new ArrayList<>();
+    private long readIntervalMicros;
+
+    public SimEndpoint(Simulator sim, IPseudoTcpNotify notify, long conv)
+    {
+        super(notify, conv, sim);
+        this.sim = sim;
+        setMemoryBudget(sim.memoryBudget());
+    }
+
+    // 0 hands each packet over as it arrives.
+    public SimEndpoint readInterval(long micros)
+    {
+        readIntervalMicros = micros;
+        return this;
+    }
+
+    @Override
+    public void deliver(byte[] packet)
+    {
+        if (state() == TcpState.TCP_CLOSED) {
+            return;
+        }
+        if (readIntervalMicros == 0) {
+            notifyPacket(packet, packet.length);
+            armClock();
+            return;
+        }
+        pending.add(packet);
+        if (pending.size() == 1) {
+            sim.queue().scheduleAfter(readIntervalMicros, new Runnable() {
+                @Override
+                public void run() {
+                    readPending();
+                }
+            });
+        }
+    }
+
+    void readPending()
+    {
+        int count = pending.size();
+        byte[][] packets = pending.toArray(new byte[count][]);
+        int[] lens = new int[count];
+        for (int i = 0; i < count; i++) {
+            lens[i] = packets[i].length;
+        }
+        pending.clear();
+        if (state() != TcpState.TCP_CLOSED) {
+            notifyPackets(packets, lens, count);
+            armClock();
+        }
+    }
+
+    public void armClock()
+    {
+        HelperFunctions.adjustClock(sim, this);
+    }
+}
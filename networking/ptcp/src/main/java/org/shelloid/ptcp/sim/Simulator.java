@@ -0,0 +1,139 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.shelloid.ptcp.sim;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.shelloid.ptcp.IClock;
+import org.shelloid.ptcp.IScheduler;
+import org.shelloid.ptcp.MemoryBudget;
+
+/**
+ * Discrete-event driver for PseudoTcp: the virtual clock and the timer
+ * scheduler of any number of endpoints, backed by one EventQueue. Timers go
+ * through the regular HelperFunctions.adjustClock path, so a simulated hour
+ * exercises the same code as production and takes as long as the events in
+ * it take to process. Its endpoints share a MemoryBudget of their own, so
+ * that runs in one JVM don't leave each other under budget pressure.
+ */
+public class Simulator implements IClock, IScheduler {
+
+    private final EventQueue queue;
+    private final MemoryBudget budget = new MemoryBudget(MemoryBudget.DEFAULT.limit());
+    long timersFired, timersScheduled, timersCancelled;
+
+    public Simulator(long startMillis)
+    {
+        queue = new EventQueue(startMillis * 1000);
+    }
+
+    public EventQueue queue()
+    {
+        return queue;
+    }
+
+    public MemoryBudget memoryBudget()
+    {
+        return budget;
+    }
+
+    @Override
+    public long now()
+    {
+        return queue.nowMillis();
+    }
+
+    @Override
+    public long nowMicros()
+    {
+        return queue.now();
+    }
+
+    @Override
+    public Future<?> schedule(Runnable task, long delayMillis)
+    {
+        Timer t = new Timer(task);
+        timersScheduled++;
+        queue.scheduleAfter(delayMillis * 1000, t);
+        return t;
+    }
+
+    public void runFor(long millis)
+    {
+        queue.runUntil(queue.now() + millis * 1000);
+    }
+
+    public long timersFired()
+    {
+        return timersFired;
+    }
+
+    public long timersScheduled()
+    {
+        return timersScheduled;
+    }
+
+    public long timersCancelled()
+    {
+        return timersCancelled;
+    }
+
+    class Timer implements Future<Object>, Runnable {
+        final Runnable task;
+        boolean cancelled, done;
+
+        Timer(Runnable task)
+        {
+            this.task = task;
+        }
+
+        @Override
+        public void run()
+        {
+            if (!cancelled) {
+                done = true;
+                timersFired++;
+                task.run();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            if (done || cancelled) {
+                return false;
+            }
+            cancelled = true;
+            timersCancelled++;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            return done || cancelled;
+        }
+
+        @Override
+        public Object get()
+        {
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit)
+        {
+            return null;
+        }
+    }
+}
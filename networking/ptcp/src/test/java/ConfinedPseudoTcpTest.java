@@ -0,0 +1,216 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.shelloid.ptcp.ConfinedPseudoTcp;
+import org.shelloid.ptcp.HelperFunctions;
+import org.shelloid.ptcp.IOwner;
+import org.shelloid.ptcp.IPseudoTcpNotify;
+import org.shelloid.ptcp.MemoryBudget;
+import org.shelloid.ptcp.PseudoTcp;
+import org.shelloid.ptcp.PseudoTcpFacade;
+
+public class ConfinedPseudoTcpTest {
+
+    ScheduledExecutorService loopA;
+    ScheduledExecutorService loopB;
+    // kept apart from MemoryBudget.DEFAULT, which other tests in the JVM share
+    final MemoryBudget budget = new MemoryBudget(MemoryBudget.DEFAULT.limit());
+
+    @Before
+    public void setUp() {
+        loopA = Executors.newSingleThreadScheduledExecutor();
+        loopB = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        loopA.shutdownNow();
+        loopB.shutdownNow();
+    }
+
+    @Test
+    public void offOwnerCallIsRejected() throws Exception
+    {
+        final ConfinedPseudoTcp tcp = new ConfinedPseudoTcp(new Sink(null), 0, owner(loopA));
+        onLoop(loopA, new Runnable() {
+            @Override
+            public void run() {
+                tcp.setMemoryBudget(budget);
+                tcp.connect();
+            }
+        });
+        assertRejected(new Runnable() {
+            @Override
+            public void run() {
+                tcp.notifyClock(tcp.now());
+            }
+        });
+    }
+
+    @Test
+    public void firstCallOffOwnerIsRejected() throws Exception
+    {
+        // the owner does not go to whichever thread happens to call first
+        final ConfinedPseudoTcp tcp = new ConfinedPseudoTcp(new Sink(null), 0, owner(loopA));
+        assertRejected(new Runnable() {
+            @Override
+            public void run() {
+                tcp.setOption(PseudoTcp.Option.OPT_NODELAY, 1);
+            }
+        });
+        assertRejected(new Runnable() {
+            @Override
+            public void run() {
+                tcp.setMemoryBudget(budget);
+            }
+        });
+        assertRejected(new Runnable() {
+            @Override
+            public void run() {
+                tcp.close(true);
+            }
+        });
+        assertFalse(tcp.isClosed());
+        onLoop(loopA, new Runnable() {
+            @Override
+            public void run() {
+                tcp.cleanup();
+            }
+        });
+    }
+
+    @Test
+    public void transferThroughFacades() throws Exception
+    {
+        final byte[] payload = new byte[200 * 1024];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final PseudoTcpFacade[] facades = new PseudoTcpFacade[2];
+
+        Sink sinkA = new Sink(facades);
+        Sink sinkB = new Sink(facades) {
+            @Override
+            public void onTcpReadable(PseudoTcp tcp) {
+                byte[] buf = new byte[4096];
+                int len;
+                while ((len = tcp.recv(buf)) > 0) {
+                    received.write(buf, 0, len);
+                }
+                if (received.size() >= payload.length) {
+                    done.countDown();
+                }
+            }
+        };
+        final ConfinedPseudoTcp a = new ConfinedPseudoTcp(sinkA, 0, owner(loopA));
+        final ConfinedPseudoTcp b = new ConfinedPseudoTcp(sinkB, 0, owner(loopB));
+        onLoop(loopA, new Runnable() {
+            @Override
+            public void run() {
+                a.setMemoryBudget(budget);
+            }
+        });
+        onLoop(loopB, new Runnable() {
+            @Override
+            public void run() {
+                b.setMemoryBudget(budget);
+            }
+        });
+        facades[0] = new PseudoTcpFacade(a, loopA);
+        facades[1] = new PseudoTcpFacade(b, loopB);
+
+        facades[0].connect().get();
+        int off = 0;
+        while (off < payload.length) {
+            int len = Math.min(8192, payload.length - off);
+            int n = facades[0].send(Arrays.copyOfRange(payload, off, off + len), len).get();
+            if (n > 0) {
+                off += n;
+            } else {
+                Thread.sleep(5);
+            }
+        }
+        assertTrue("transfer timed out", done.await(20, TimeUnit.SECONDS));
+        assertArrayEquals(payload, received.toByteArray());
+    }
+
+    static IOwner owner(ScheduledExecutorService loop) throws Exception
+    {
+        return HelperFunctions.owner(loop.submit(new Callable<Thread>() {
+            @Override
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        }).get());
+    }
+
+    // surefire runs with assertions enabled
+    static void assertRejected(Runnable call)
+    {
+        boolean rejected = false;
+        try {
+            call.run();
+        } catch (AssertionError e) {
+            rejected = true;
+        }
+        assertTrue("expected an assertion error off the owner thread", rejected);
+    }
+
+    static void onLoop(ScheduledExecutorService loop, Runnable task) throws Exception
+    {
+        loop.submit(task).get();
+    }
+
+    static class Sink implements IPseudoTcpNotify {
+        final PseudoTcpFacade[] facades;
+
+        Sink(PseudoTcpFacade[] facades) {
+            this.facades = facades;
+        }
+
+        @Override
+        public void onTcpOpen(PseudoTcp tcp) {
+        }
+
+        @Override
+        public void onTcpReadable(PseudoTcp tcp) {
+        }
+
+        @Override
+        public void onTcpWriteable(PseudoTcp tcp) {
+        }
+
+        @Override
+        public void onTcpClosed(PseudoTcp tcp, long error) {
+        }
+
+        @Override
+        public WriteResult tcpWritePacket(PseudoTcp tcp, byte[] buffer, int len) {
+            if (facades != null && len > 0) {
+                PseudoTcpFacade peer = (facades[0].tcp() == tcp) ? facades[1] : facades[0];
+                peer.notifyPacket(buffer, len);
+            }
+            return WriteResult.WR_SUCCESS;
+        }
+
+        @Override
+        public void log(PseudoTcp tcp, LogType type, String msg) {
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.shelloid.ptcp.sim.Fleet;
+import org.shelloid.ptcp.sim.FleetResult;
+import org.shelloid.ptcp.sim.LinkProfile;
+
+public class FleetTest {
+
+    static Fleet fleet(int connections)
+    {
+        LinkProfile link = new LinkProfile().bandwidth(100000000).delay(20).queue(1024 * 1024);
+        return new Fleet(link, new LinkProfile().bandwidth(100000000).delay(20).queue(1024 * 1024))
+                .connections(connections).duration(30000);
+    }
+
+    @Test
+    public void sameSeedSameRun()
+    {
+        FleetResult r1 = fleet(20).run(3);
+        FleetResult r2 = fleet(20).run(3);
+        assertEquals(r1.totalReceived(), r2.totalReceived());
+        assertEquals(r1.events, r2.events);
+        assertEquals(r1.timersFired, r2.timersFired);
+    }
+
+    @Test
+    public void manyConnectionsInVirtualTime()
+    {
+        FleetResult r = fleet(200).run(1);
+        System.out.println(r);
+        assertEquals(200, r.established);
+        assertTrue(r.wallMillis < r.durationMillis);
+        assertTrue(r.timersFired > 0);
+        assertTrue(r.fairness() > 0.9);
+    }
+}
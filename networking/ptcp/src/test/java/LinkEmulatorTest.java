@@ -0,0 +1,151 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.shelloid.ptcp.BufferPool;
+import org.shelloid.ptcp.MemoryBudget;
+import org.shelloid.ptcp.PseudoTcp;
+import org.shelloid.ptcp.sim.LinkProfile;
+import org.shelloid.ptcp.sim.RequestResponse;
+import org.shelloid.ptcp.sim.Scenario;
+import org.shelloid.ptcp.sim.ScenarioResult;
+
+public class LinkEmulatorTest {
+
+    static LinkProfile wan()
+    {
+        return new LinkProfile().bandwidth(20000000).delay(40).queue(512 * 1024);
+    }
+
+    @Test
+    public void sameSeedSameRun()
+    {
+        Scenario s = new Scenario("wan-loss", wan().loss(0.02).duplicate(0.01), wan().loss(0.02))
+                .duration(5000);
+        ScenarioResult r1 = s.run(42);
+        ScenarioResult r2 = s.run(42);
+        assertEquals(r1.bytesReceived, r2.bytesReceived);
+        assertEquals(r1.payloadRetransmitted, r2.payloadRetransmitted);
+        assertEquals(r1.packetsDropped, r2.packetsDropped);
+        assertEquals(r1.latency(99), r2.latency(99));
+        assertTrue(r1.packetsDropped > 0);
+    }
+
+    @Test
+    public void cleanLinkRunsAtLineRate()
+    {
+        LinkProfile lan = new LinkProfile().bandwidth(100000000).delay(1);
+        ScenarioResult r = new Scenario("lan", lan, new LinkProfile().bandwidth(100000000).delay(1))
+                .duration(5000).run(1);
+        System.out.println(ScenarioResult.header());
+        System.out.println(r);
+        assertTrue(r.intact);
+        assertEquals(0, r.payloadRetransmitted);
+        assertTrue(r.goodputMbps() > 90);
+    }
+
+    @Test
+    public void lossyTransferStaysIntact()
+    {
+        ScenarioResult r = new Scenario("wan-loss", wan().loss(0.01), wan().loss(0.01))
+                .duration(5000).run(7);
+        System.out.println(r);
+        assertTrue(r.intact);
+        assertTrue(r.bytesReceived > 0);
+        assertTrue(r.payloadRetransmitted > 0);
+    }
+
+    @Test
+    public void reorderedTransferStaysIntact()
+    {
+        ScenarioResult r = new Scenario("wan-jitter", wan().jitter(20), wan().jitter(20))
+                .duration(5000).run(3);
+        System.out.println(r);
+        assertTrue(r.intact);
+        assertTrue(r.bytesReceived > 0);
+    }
+
+    @Test
+    public void interactiveModeCutsRequestResponseLatency()
+    {
+        ScenarioResult plain = new RequestResponse("rr", wan(), wan()).duration(5000).run(1);
+        ScenarioResult interactive = new RequestResponse("rr-interactive", wan(), wan())
+                .option(PseudoTcp.Option.OPT_INTERACTIVE, 1).duration(5000).run(1);
+        System.out.println(plain);
+        System.out.println(interactive);
+        assertTrue(interactive.latency(50) < plain.latency(50));
+        assertTrue(interactive.messages() > plain.messages());
+    }
+
+    @Test
+    public void autoTunedWindowFillsLongFatPipe()
+    {
+        LinkProfile lfn = new LinkProfile().bandwidth(200000000).delay(50).queue(4 * 1024 * 1024);
+        ScenarioResult r = new Scenario("long-fat", lfn, lfn).duration(10000).run(1);
+        System.out.println(r);
+        assertTrue(r.intact);
+        // a fixed 1 MB window would cap this 100 ms path at 80 Mbps
+        assertTrue(r.goodputMbps() > 120);
+    }
+
+    @Test
+    public void memoryBudgetCapsWindowGrowth()
+    {
+        LinkProfile lfn = new LinkProfile().bandwidth(200000000).delay(50).queue(4 * 1024 * 1024);
+        MemoryBudget budget = new MemoryBudget(2 * 1024 * 1024);
+        ScenarioResult r = new Scenario("long-fat-budget", lfn, lfn).duration(10000).budget(budget).run(1);
+        System.out.println(r);
+        assertTrue(r.intact);
+        assertTrue(budget.used() <= budget.limit());
+        assertTrue(r.goodputMbps() < 120);
+    }
+
+    @Test
+    public void budgetPressureTrimsBusyBuffers()
+    {
+        LinkProfile lfn = new LinkProfile().bandwidth(200000000).delay(50).queue(4 * 1024 * 1024);
+        MemoryBudget budget = new MemoryBudget(2 * 1024 * 1024);
+        ScenarioResult r = new Scenario("long-fat-pressure", lfn, lfn).duration(5000).budget(budget).run(1);
+        System.out.println(r);
+        assertTrue(r.intact);
+        assertTrue(budget.peak() <= budget.limit());
+        assertFalse(budget.underPressure());
+    }
+
+    @Test
+    public void offHeapWindowsMatchHeapRunAndGoBackToPool()
+    {
+        LinkProfile lfn = new LinkProfile().bandwidth(200000000).delay(50).queue(4 * 1024 * 1024);
+        BufferPool pool = new BufferPool(64L * 1024 * 1024);
+        ScenarioResult heap = new Scenario("long-fat", lfn, lfn).duration(5000).run(1);
+        ScenarioResult direct = new Scenario("long-fat", lfn, lfn).duration(5000).pool(pool).run(1);
+        assertTrue(direct.intact);
+        assertEquals(heap.bytesReceived, direct.bytesReceived);
+        assertEquals(0, pool.inUse());
+        new Scenario("long-fat", lfn, lfn).duration(1000).pool(pool).run(2);
+        assertTrue(pool.reuses() > 0);
+        assertEquals(0, pool.inUse());
+    }
+
+    @Test
+    public void packetRunsGetOneAckEach()
+    {
+        // each run on a budget of its own, so both grow their windows alike
+        // whatever ran before in this JVM
+        Scenario each = new Scenario("wan-mtu1500", wan(), wan()).duration(10000).mtu(1500)
+                .budget(new MemoryBudget(MemoryBudget.DEFAULT.limit()));
+        Scenario runs = new Scenario("wan-mtu1500-runs", wan(), wan()).duration(10000).mtu(1500).readInterval(5000)
+                .budget(new MemoryBudget(MemoryBudget.DEFAULT.limit()));
+        ScenarioResult r1 = each.run(1);
+        ScenarioResult r2 = runs.run(1);
+        System.out.println(r1);
+        System.out.println(r2);
+        assertTrue(r2.intact);
+        assertTrue(r2.packetsSent < r1.packetsSent * 3 / 4);
+        assertTrue(r2.goodputMbps() > r1.goodputMbps() * 0.95);
+    }
+}
@@ -6,6 +6,7 @@
 
 import org.shelloid.ptcp.HelperFunctions;
 import org.shelloid.ptcp.IPseudoTcpNotify;
+import org.shelloid.ptcp.MemoryBudget;
 import org.shelloid.ptcp.NetworkConstants;
 import org.shelloid.ptcp.PseudoTcp;
 import java.io.File;
@@ -32,6 +33,8 @@ import org.junit.Test;
 public class PTcpTest {
     
     ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    // kept apart from MemoryBudget.DEFAULT, which other tests in the JVM share
+    final MemoryBudget budget = new MemoryBudget(MemoryBudget.DEFAULT.limit());
 
     public PTcpTest() {
     }
@@ -159,8 +162,10 @@ public class PTcpTest {
         };
         ptcps[0] = new PseudoTcp(notify, 0);
         ptcps[0].attach("A");
+        ptcps[0].setMemoryBudget(budget);
         ptcps[1] = new PseudoTcp(notify, 0);
         ptcps[1].attach("B");
+        ptcps[1].setMemoryBudget(budget);
         
         ptcps[0].connect();
         HelperFunctions.adjustClock(executor, ptcps[0]);
@@ -272,8 +277,10 @@ public class PTcpTest {
         };
         ptcps[0] = new PseudoTcp(notify, 0);
         ptcps[0].attach("A");
+        ptcps[0].setMemoryBudget(budget);
         ptcps[1] = new PseudoTcp(notify, 0);
         ptcps[1].attach("B");
+        ptcps[1].setMemoryBudget(budget);
         
         ptcps[0].connect();
         HelperFunctions.adjustClock(executor, ptcps[0]);
@@ -0,0 +1,64 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.shelloid.ptcp.PoolSizer;
+
+public class PoolSizerTest {
+
+    @Test
+    public void keepsOneUntilIdle()
+    {
+        PoolSizer sizer = new PoolSizer(16, 10000, 60000, 0);
+        assertEquals(1, sizer.target(0));
+        assertEquals(1, sizer.target(59999));
+        assertEquals(0, sizer.target(60000));
+        sizer.arrival(70000);
+        assertEquals(1, sizer.target(70000));
+    }
+
+    @Test
+    public void coversArrivalsDuringAHandshake()
+    {
+        PoolSizer sizer = new PoolSizer(16, 10000, 60000, 0);
+        sizer.handshake(100);
+        // 50 a second for a minute: 5 per handshake, 10 with headroom
+        long now = 0;
+        for (int i = 0; i < 3000; i++) {
+            now += 20;
+            sizer.arrival(now);
+        }
+        assertEquals(50, sizer.rate(now), 2);
+        int target = sizer.target(now);
+        assertTrue(target >= 10 && target <= 11);
+
+        // slower handshakes need more
+        for (int i = 0; i < 50; i++) {
+            sizer.handshake(300);
+        }
+        assertEquals(16, sizer.target(now));
+
+        // and it shrinks back as arrivals stop
+        assertEquals(1, sizer.target(now + 50000));
+        assertEquals(0, sizer.target(now + 60000));
+    }
+
+    @Test
+    public void burstAfterStartIsNotUnderestimated()
+    {
+        PoolSizer sizer = new PoolSizer(16, 10000, 60000, 0);
+        sizer.handshake(100);
+        // 50 a second for two seconds, a fifth of the window
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            now += 20;
+            sizer.arrival(now);
+        }
+        assertEquals(50, sizer.rate(now), 5);
+        assertTrue(sizer.target(now) >= 10);
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.shelloid.ptcp.HelperFunctions;
+import org.shelloid.ptcp.IPseudoTcpNotify;
+import org.shelloid.ptcp.IStreamMuxNotify;
+import org.shelloid.ptcp.MuxStream;
+import org.shelloid.ptcp.NetworkConstants;
+import org.shelloid.ptcp.PseudoTcp;
+import org.shelloid.ptcp.StreamMux;
+import org.shelloid.ptcp.sim.LinkEmulator;
+import org.shelloid.ptcp.sim.LinkProfile;
+import org.shelloid.ptcp.sim.SimEndpoint;
+import org.shelloid.ptcp.sim.Simulator;
+
+public class StreamMuxTest {
+
+    // A session over an emulated link, a StreamMux on each end
+    static class Session {
+        final Simulator sim = new Simulator(1000L * 1000);
+        final Side a = new Side(true);
+        final Side b = new Side(false);
+
+        Session(LinkProfile link)
+        {
+            a.link = new LinkEmulator(sim.queue(), link, 1, b.tcp);
+            b.link = new LinkEmulator(sim.queue(), link, 2, a.tcp);
+            a.tcp.connect();
+            a.tcp.armClock();
+            b.tcp.armClock();
+            run(1000);
+        }
+
+        void run(long ms)
+        {
+            sim.runFor(ms);
+        }
+
+        class Side implements IPseudoTcpNotify, IStreamMuxNotify {
+            final SimEndpoint tcp = new SimEndpoint(sim, this, 0);
+            final StreamMux mux;
+            final Map<Integer, ByteArrayOutputStream> data = new HashMap<>();
+            final Map<Integer, Boolean> closed = new HashMap<>();
+            final Map<Integer, MuxStream> accepted = new HashMap<>();
+            LinkEmulator link;
+            boolean consume = true;
+            int ended;
+
+            Side(boolean initiator)
+            {
+                mux = new StreamMux(tcp, initiator, this, sim);
+            }
+
+            byte[] data(MuxStream s)
+            {
+                ByteArrayOutputStream d = data.get(s.id());
+                return (d == null) ? new byte[0] : d.toByteArray();
+            }
+
+            @Override
+            public void onTcpOpen(PseudoTcp tcp) {
+                mux.onTcpOpen();
+            }
+
+            @Override
+            public void onTcpReadable(PseudoTcp tcp) {
+                mux.onTcpReadable();
+            }
+
+            @Override
+            public void onTcpWriteable(PseudoTcp tcp) {
+                mux.onTcpWriteable();
+            }
+
+            @Override
+            public void onTcpClosed(PseudoTcp tcp, long error) {
+                mux.onTcpClosed(error);
+            }
+
+            @Override
+            public WriteResult tcpWritePacket(PseudoTcp tcp, byte[] buffer, int len) {
+                link.send(buffer, len);
+                return WriteResult.WR_SUCCESS;
+            }
+
+            @Override
+            public void log(PseudoTcp tcp, LogType type, String msg) {
+            }
+
+            @Override
+            public void onStreamOpen(MuxStream stream) {
+                accepted.put(stream.id(), stream);
+            }
+
+            @Override
+            public void onStreamData(MuxStream stream, byte[] buffer, int offset, int len) {
+                if (!data.containsKey(stream.id())) {
+                    data.put(stream.id(), new ByteArrayOutputStream());
+                }
+                data.get(stream.id()).write(buffer, offset, len);
+                if (consume) {
+                    stream.consumed(len);
+                }
+            }
+
+            @Override
+            public void onStreamEnd(MuxStream stream) {
+                ended++;
+            }
+
+            @Override
+            public void onStreamWriteable(MuxStream stream) {
+            }
+
+            @Override
+            public void onStreamClosed(MuxStream stream, boolean reset) {
+                closed.put(stream.id(), reset);
+            }
+        }
+    }
+
+    static LinkProfile lan()
+    {
+        return new LinkProfile().bandwidth(100000000).delay(1).queue(1024 * 1024);
+    }
+
+    static byte[] payload(int len, int seed)
+    {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) {
+            b[i] = (byte) (i * 31 + seed);
+        }
+        return b;
+    }
+
+    // Writes all of b, running the session whenever the stream is full
+    static void writeAll(Session session, MuxStream s, byte[] b)
+    {
+        int off = 0;
+        while (off < b.length) {
+            int n = s.write(b, off, b.length - off);
+            assertTrue(n >= 0);
+            off += n;
+            if (n == 0) {
+                session.run(10);
+            }
+        }
+    }
+
+    @Test
+    public void streamsCarryTheirOwnData()
+    {
+        Session session = new Session(lan());
+        MuxStream[] streams = new MuxStream[5];
+        byte[][] sent = new byte[streams.length][];
+        for (int i = 0; i < streams.length; i++) {
+            streams[i] = session.a.mux.open();
+            sent[i] = payload(100 * 1024 + i, i);
+        }
+        for (int i = 0; i < streams.length; i++) {
+            writeAll(session, streams[i], sent[i]);
+            streams[i].close();
+        }
+        session.run(2000);
+
+        assertEquals(streams.length, session.b.mux.accepted());
+        assertEquals(streams.length, session.b.ended);
+        for (int i = 0; i < streams.length; i++) {
+            assertEquals(1 + 2 * i, streams[i].id());
+            assertTrue(Arrays.equals(sent[i], session.b.data(streams[i])));
+            // half closed: b can still answer
+            MuxStream peer = session.b.accepted.get(streams[i].id());
+            assertFalse(peer.isClosed());
+            writeAll(session, peer, payload(1000, i));
+            peer.close();
+        }
+        session.run(1000);
+
+        for (int i = 0; i < streams.length; i++) {
+            assertTrue(Arrays.equals(payload(1000, i), session.a.data(streams[i])));
+            assertEquals(Boolean.FALSE, session.a.closed.get(streams[i].id()));
+            assertEquals(Boolean.FALSE, session.b.closed.get(streams[i].id()));
+        }
+        assertEquals(0, session.a.mux.streamCount());
+        assertEquals(0, session.b.mux.streamCount());
+    }
+
+    @Test
+    public void unreadStreamDoesNotStallOthers()
+    {
+        Session session = new Session(lan());
+        session.b.consume = false;
+        MuxStream slow = session.a.mux.open();
+        writeAll(session, slow, payload(NetworkConstants.MUX_STREAM_WINDOW, 0));
+        session.run(100);
+        byte[] more = payload(10000, 1);
+        assertTrue(slow.write(more, 0, more.length) > 0);
+        session.run(1000);
+        // the window is used up and the rest waits
+        assertEquals(NetworkConstants.MUX_STREAM_WINDOW, session.b.data(slow).length);
+        assertTrue(slow.sendQueued() > 0);
+
+        session.b.consume = true;
+        MuxStream fast = session.a.mux.open();
+        byte[] sent = payload(50000, 2);
+        writeAll(session, fast, sent);
+        fast.close();
+        session.run(1000);
+        assertTrue(Arrays.equals(sent, session.b.data(fast)));
+        assertEquals(NetworkConstants.MUX_STREAM_WINDOW, session.b.data(slow).length);
+
+        // reading the slow one lets the rest through
+        session.b.accepted.get(slow.id()).consumed(NetworkConstants.MUX_STREAM_WINDOW);
+        session.run(1000);
+        assertEquals(NetworkConstants.MUX_STREAM_WINDOW + more.length, session.b.data(slow).length);
+        assertEquals(0, slow.sendQueued());
+    }
+
+    @Test
+    public void resetReachesThePeer()
+    {
+        Session session = new Session(lan());
+        MuxStream s = session.a.mux.open();
+        writeAll(session, s, payload(1000, 0));
+        session.run(100);
+        s.reset();
+        assertTrue(s.isClosed());
+        assertEquals(NetworkConstants.SOCKET_ERROR, s.write(new byte[1], 0, 1));
+        session.run(100);
+        assertEquals(Boolean.TRUE, session.b.closed.get(s.id()));
+        // no callback for our own reset
+        assertFalse(session.a.closed.containsKey(s.id()));
+        assertEquals(0, session.a.mux.streamCount());
+        assertEquals(0, session.b.mux.streamCount());
+
+        // the session carries on
+        MuxStream next = session.a.mux.open();
+        writeAll(session, next, payload(1000, 1));
+        session.run(100);
+        assertTrue(Arrays.equals(payload(1000, 1), session.b.data(next)));
+    }
+
+    @Test
+    public void dataBeyondTheWindowResetsTheStream()
+    {
+        Session session = new Session(lan());
+        session.b.consume = false;
+        // frames written straight to the session, past the stream's window
+        int len = NetworkConstants.MUX_STREAM_WINDOW + 1;
+        byte[] frames = new byte[2 * NetworkConstants.MUX_HEADER_SIZE + len];
+        frames[0] = 1; // OPEN
+        HelperFunctions.long_to_bytes(3, frames, 1);
+        frames[NetworkConstants.MUX_HEADER_SIZE] = 2; // DATA
+        HelperFunctions.long_to_bytes(3, frames, NetworkConstants.MUX_HEADER_SIZE + 1);
+        HelperFunctions.long_to_bytes(len, frames, NetworkConstants.MUX_HEADER_SIZE + 5);
+        int off = 0;
+        while (off < frames.length) {
+            int n = session.a.tcp.send(frames, off, frames.length - off);
+            if (n > 0) {
+                off += n;
+            }
+            session.a.tcp.armClock();
+            session.run(10);
+        }
+        session.run(1000);
+        assertEquals(Boolean.TRUE, session.b.closed.get(3));
+        assertFalse(session.b.data.containsKey(3));
+        assertEquals(0, session.b.mux.streamCount());
+
+        // the rest of the session still parses
+        MuxStream next = session.a.mux.open();
+        writeAll(session, next, payload(1000, 1));
+        session.run(100);
+        assertTrue(Arrays.equals(payload(1000, 1), session.b.data(next)));
+    }
+
+    @Test
+    public void closingTheSessionResetsEveryStream()
+    {
+        Session session = new Session(lan());
+        MuxStream s1 = session.a.mux.open();
+        MuxStream s2 = session.b.mux.open();
+        writeAll(session, s1, payload(100, 0));
+        writeAll(session, s2, payload(100, 1));
+        session.run(100);
+        assertEquals(2, s2.id());
+        assertEquals(2, session.a.mux.streamCount());
+
+        session.a.mux.close();
+        session.run(100);
+        assertTrue(session.a.mux.isClosed());
+        assertNull(session.a.mux.open());
+        assertEquals(Boolean.TRUE, session.b.closed.get(s1.id()));
+        assertEquals(Boolean.TRUE, session.b.closed.get(s2.id()));
+        assertEquals(0, session.b.mux.streamCount());
+
+        // and a session that goes down takes its streams with it
+        MuxStream s3 = session.b.mux.open();
+        session.b.mux.onTcpClosed(NetworkConstants.ECONNABORTED);
+        assertTrue(s3.isClosed());
+        assertEquals(Boolean.TRUE, session.b.closed.get(s3.id()));
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.shelloid.ptcp.IPseudoTcpNotify;
+import org.shelloid.ptcp.PseudoTcp;
+import org.shelloid.ptcp.sim.SimEndpoint;
+import org.shelloid.ptcp.sim.Simulator;
+
+public class ZeroRttTest {
+
+    static final long DELAY_MILLIS = 40;
+    static final int REQUEST = 400;
+    static final int RESPONSE = 8 * 1024;
+
+    // A client that sends its request straight after connect and a server
+    // that answers as soon as the request is in, 40ms apart; the first
+    // packets of either side can be dropped
+    static class Exchange {
+        final Simulator sim = new Simulator(1000L * 1000);
+        final Side client = new Side();
+        final Side server = new Side();
+        long requestAt = -1, responseAt = -1;
+
+        Exchange(boolean zeroRtt)
+        {
+            this(zeroRtt, 0, 0);
+        }
+
+        // clientDrop and serverDrop: how many of the first packets of each
+        // side are lost
+        Exchange(boolean zeroRtt, int clientDrop, int serverDrop)
+        {
+            client.peer = server;
+            server.peer = client;
+            client.drop = clientDrop;
+            server.drop = serverDrop;
+            client.tcp.setOption(PseudoTcp.Option.OPT_ZERO_RTT, zeroRtt ? 1 : 0);
+            client.tcp.connect();
+            if (client.tcp.send(payload(REQUEST), 0, REQUEST) != REQUEST) {
+                client.unsent = true;
+            }
+            client.tcp.armClock();
+            server.tcp.armClock();
+        }
+
+        long now()
+        {
+            return sim.queue().nowMillis() - 1000L * 1000;
+        }
+
+        class Side implements IPseudoTcpNotify {
+            final SimEndpoint tcp = new SimEndpoint(sim, this, 0);
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            final byte[] buf = new byte[64 * 1024];
+            Side peer;
+            int drop;
+            boolean unsent, opened;
+
+            @Override
+            public void onTcpOpen(PseudoTcp tcp) {
+                opened = true;
+                if (unsent) {
+                    unsent = false;
+                    tcp.send(payload(REQUEST), 0, REQUEST);
+                }
+            }
+
+            @Override
+            public void onTcpReadable(PseudoTcp tcp) {
+                int len;
+                while ((len = tcp.recv(buf)) > 0) {
+                    data.write(buf, 0, len);
+                }
+                if (this == server && data.size() == REQUEST && requestAt < 0) {
+                    requestAt = now();
+                    tcp.send(payload(RESPONSE), 0, RESPONSE);
+                    tcp.close(false);
+                }
+                if (this == client && data.size() == RESPONSE && responseAt < 0) {
+                    responseAt = now();
+                }
+                this.tcp.armClock();
+            }
+
+            @Override
+            public void onTcpWriteable(PseudoTcp tcp) {
+            }
+
+            @Override
+            public void onTcpClosed(PseudoTcp tcp, long error) {
+            }
+
+            @Override
+            public WriteResult tcpWritePacket(PseudoTcp tcp, byte[] buffer, int len) {
+                if (drop > 0) {
+                    drop--;
+                    return WriteResult.WR_SUCCESS;
+                }
+                final byte[] packet = Arrays.copyOf(buffer, len);
+                sim.queue().scheduleAfter(DELAY_MILLIS * 1000, new Runnable() {
+                    @Override
+                    public void run() {
+                        peer.tcp.deliver(packet);
+                    }
+                });
+                return WriteResult.WR_SUCCESS;
+            }
+
+            @Override
+            public void log(PseudoTcp tcp, LogType type, String msg) {
+            }
+        }
+    }
+
+    static byte[] payload(int len)
+    {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) {
+            b[i] = (byte) (i * 7);
+        }
+        return b;
+    }
+
+    @Test
+    public void requestGoesWithTheConnect()
+    {
+        Exchange ex = new Exchange(true);
+        ex.sim.runFor(1000);
+        // read before the handshake completed, answered in one round trip
+        assertEquals(DELAY_MILLIS, ex.requestAt);
+        assertEquals(2 * DELAY_MILLIS, ex.responseAt);
+        assertTrue(Arrays.equals(payload(REQUEST), ex.server.data.toByteArray()));
+        assertTrue(Arrays.equals(payload(RESPONSE), ex.client.data.toByteArray()));
+        assertEquals(PseudoTcp.TcpState.TCP_ESTABLISHED, ex.client.tcp.state());
+        assertEquals(1, ex.client.tcp.getOption(PseudoTcp.Option.OPT_ZERO_RTT));
+    }
+
+    @Test
+    public void withoutTheOptionDataWaitsForTheHandshake()
+    {
+        Exchange ex = new Exchange(false);
+        assertTrue(ex.client.unsent);
+        ex.sim.runFor(1000);
+        assertEquals(3 * DELAY_MILLIS, ex.requestAt);
+        assertEquals(4 * DELAY_MILLIS, ex.responseAt);
+    }
+
+    @Test
+    public void lostConnectIsSentAgain()
+    {
+        Exchange lossy = new Exchange(true, 1, 0);
+        lossy.sim.runFor(10000);
+        // the request that came without its connect was dropped, not fatal
+        assertTrue(lossy.requestAt > 0);
+        assertTrue(Arrays.equals(payload(RESPONSE), lossy.client.data.toByteArray()));
+    }
+
+    @Test
+    public void dataStandsForALostAnswerToTheConnect()
+    {
+        Exchange lossy = new Exchange(true, 0, 1);
+        lossy.sim.runFor(1000);
+        // the answer to the connect is gone, the response with it is not
+        assertEquals(2 * DELAY_MILLIS, lossy.responseAt);
+        assertTrue(lossy.client.opened);
+        assertTrue(Arrays.equals(payload(RESPONSE), lossy.client.data.toByteArray()));
+    }
+}